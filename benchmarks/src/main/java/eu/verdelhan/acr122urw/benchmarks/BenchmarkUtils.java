@@ -0,0 +1,113 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw.benchmarks;
+
+import eu.verdelhan.acr122urw.CardLayout;
+import eu.verdelhan.acr122urw.KeyStore;
+import eu.verdelhan.acr122urw.SimulatedCard;
+import eu.verdelhan.acr122urw.SimulatedReaderWriter;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Helpers for the benchmarks.
+ */
+final class BenchmarkUtils {
+
+    /** The standard output */
+    private static final PrintStream STDOUT = System.out;
+    
+    private BenchmarkUtils() {
+    }
+    
+    /**
+     * Builds a key store.
+     * @param keyCount the number of keys
+     * @return a store of generated keys
+     */
+    static KeyStore generateKeys(int keyCount) {
+        KeyStore keys = new KeyStore(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add(0x100000000000L + i);
+        }
+        return keys;
+    }
+    
+    /**
+     * Builds a 1K card whose sectors all use the same key.
+     * @param key the key of all the sectors (key A and key B)
+     * @return a simulated card
+     */
+    static SimulatedCard createCard(long key) {
+        return createCard(key, CardLayout.CLASSIC_1K);
+    }
+    
+    /**
+     * Builds a card whose sectors all use the same key.
+     * @param key the key of all the sectors (key A and key B)
+     * @param layout the card layout
+     * @return a simulated card
+     */
+    static SimulatedCard createCard(long key, CardLayout layout) {
+        SimulatedCard card = new SimulatedCard(new byte[] { 0x04, 0x11, 0x22, 0x33 }, layout);
+        byte[] keyBytes = KeyStore.toBytes(key);
+        for (int sectorIndex = 0; sectorIndex < layout.getSectorCount(); sectorIndex++) {
+            card.setSectorKeys(sectorIndex, keyBytes, keyBytes);
+        }
+        return card;
+    }
+    
+    /**
+     * Creates a simulated reader/writer (no latency, no failure) with a card in the field.
+     * @param card the card
+     * @return the simulated reader/writer
+     */
+    static SimulatedReaderWriter createReaderWriter(SimulatedCard card) {
+        SimulatedReaderWriter readerWriter = new SimulatedReaderWriter();
+        readerWriter.insertCard(card);
+        return readerWriter;
+    }
+    
+    /**
+     * Silences the standard output (the dump and write flows print their results).
+     */
+    static void silenceStdout() {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+    
+    /**
+     * Restores the standard output.
+     */
+    static void restoreStdout() {
+        System.setOut(STDOUT);
+    }
+}
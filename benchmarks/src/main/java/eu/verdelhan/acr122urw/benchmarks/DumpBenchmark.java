@@ -0,0 +1,126 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw.benchmarks;
+
+import eu.verdelhan.acr122urw.CardImage;
+import eu.verdelhan.acr122urw.CardLayout;
+import eu.verdelhan.acr122urw.KeyStore;
+import eu.verdelhan.acr122urw.MifareUtils;
+import eu.verdelhan.acr122urw.SectorKeyCache;
+import eu.verdelhan.acr122urw.SimulatedCard;
+import eu.verdelhan.acr122urw.SimulatedReaderWriter;
+import java.util.concurrent.TimeUnit;
+import javax.smartcardio.CardException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the dump of a Mifare Classic card, against a simulated card without latency.
+ * <p>
+ * The key opening the card is placed at a given position of the key list.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DumpBenchmark {
+
+    /** Number of candidate keys */
+    @Param({ "8", "100", "1000" })
+    public int keyCount;
+    
+    /** Position of the key opening the card in the key list: first, middle or last */
+    @Param({ "first", "middle", "last" })
+    public String hitPosition;
+    
+    /** Type of the card */
+    @Param({ "CLASSIC_1K", "CLASSIC_4K" })
+    public CardLayout cardType;
+    
+    /** The candidate keys */
+    private KeyStore keys;
+    
+    /** The simulated card */
+    private SimulatedCard card;
+    
+    /** The simulated reader/writer */
+    private SimulatedReaderWriter readerWriter;
+    
+    /** A cache filled by a first dump */
+    private SectorKeyCache warmCache;
+    
+    @Setup
+    public void setUp() throws CardException {
+        keys = BenchmarkUtils.generateKeys(keyCount);
+        int hitIndex;
+        switch (hitPosition) {
+            case "first":
+                hitIndex = 0;
+                break;
+            case "middle":
+                hitIndex = keyCount / 2;
+                break;
+            default:
+                hitIndex = keyCount - 1;
+                break;
+        }
+        card = BenchmarkUtils.createCard(keys.get(hitIndex), cardType);
+        readerWriter = BenchmarkUtils.createReaderWriter(card);
+        warmCache = new SectorKeyCache();
+        MifareUtils.readMifareClassicCard(readerWriter, card.getMfCard(), keys, warmCache, null);
+        BenchmarkUtils.silenceStdout();
+    }
+    
+    @TearDown
+    public void tearDown() {
+        BenchmarkUtils.restoreStdout();
+    }
+    
+    @Benchmark
+    public CardImage readCard() throws CardException {
+        return MifareUtils.readMifareClassicCard(readerWriter, card.getMfCard(), keys, null, null);
+    }
+    
+    @Benchmark
+    public CardImage readKnownCard() throws CardException {
+        return MifareUtils.readMifareClassicCard(readerWriter, card.getMfCard(), keys, warmCache, null);
+    }
+    
+    @Benchmark
+    public void dumpCard() throws CardException {
+        MifareUtils.dumpMifareClassicCard(readerWriter, card.getMfCard(), keys, null, null);
+    }
+}
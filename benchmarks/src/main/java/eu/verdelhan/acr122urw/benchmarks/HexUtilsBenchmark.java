@@ -0,0 +1,107 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw.benchmarks;
+
+import eu.verdelhan.acr122urw.HexUtils;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the hexadecimal codec, on block-sized (16 bytes) data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexUtilsBenchmark {
+
+    /** A block hex string */
+    private String blockHexString = "FFFFFFFFFFFF00000000060504030201";
+    
+    /** A block */
+    private byte[] block = HexUtils.hexStringToBytes(blockHexString);
+    
+    /** A destination array for the decoding */
+    private byte[] decoded = new byte[16];
+    
+    /** A destination buffer for the decoding */
+    private ByteBuffer decodedBuffer = ByteBuffer.allocate(16);
+    
+    /** A destination array for the encoding */
+    private char[] encoded = new char[32];
+    
+    /** A destination builder for the encoding */
+    private StringBuilder encodedBuilder = new StringBuilder(32);
+    
+    @Benchmark
+    public boolean isHexString() {
+        return HexUtils.isHexString(blockHexString);
+    }
+    
+    @Benchmark
+    public byte[] hexStringToBytes() {
+        return HexUtils.hexStringToBytes(blockHexString);
+    }
+    
+    @Benchmark
+    public String bytesToHexString() {
+        return HexUtils.bytesToHexString(block);
+    }
+    
+    @Benchmark
+    public int hexStringToBytesIntoArray() {
+        // Validating and decoding in one pass, no allocation
+        return HexUtils.hexStringToBytes(blockHexString, decoded, 0);
+    }
+    
+    @Benchmark
+    public int hexStringToBytesIntoBuffer() {
+        decodedBuffer.clear();
+        return HexUtils.hexStringToBytes(blockHexString, decodedBuffer);
+    }
+    
+    @Benchmark
+    public char[] bytesToHexStringIntoArray() {
+        HexUtils.bytesToHexString(block, 0, block.length, encoded, 0);
+        return encoded;
+    }
+    
+    @Benchmark
+    public StringBuilder appendHexString() {
+        encodedBuilder.setLength(0);
+        HexUtils.appendHexString(block, 0, block.length, encodedBuilder);
+        return encodedBuilder;
+    }
+}
\ No newline at end of file
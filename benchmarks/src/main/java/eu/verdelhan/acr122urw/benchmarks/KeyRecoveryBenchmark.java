@@ -0,0 +1,106 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw.benchmarks;
+
+import eu.verdelhan.acr122urw.AuthTrace;
+import eu.verdelhan.acr122urw.Crypto1;
+import eu.verdelhan.acr122urw.HexUtils;
+import eu.verdelhan.acr122urw.KeyRecovery;
+import eu.verdelhan.acr122urw.SimulatedCard;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.nfctools.mf.classic.Key;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the offline key search, in keys per second.
+ * <p>
+ * The single-thread benchmark gives the rate of one core; the parallel one the rate of all the cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyRecoveryBenchmark {
+
+    /** Number of keys checked per invocation */
+    private static final int KEY_COUNT = 1 << 16;
+    
+    /** The first key of the searched range */
+    private static final long FIRST_KEY = 0xA0A1A2000000L;
+    
+    /** The captured authentication (its key is out of the searched range) */
+    private AuthTrace trace;
+    
+    /** The cipher of the single-thread search */
+    private Crypto1 cipher;
+    
+    /** The parallel search engine */
+    private KeyRecovery recovery;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        SimulatedCard card = new SimulatedCard(HexUtils.hexStringToBytes("9C599B32"));
+        trace = card.captureAuthentication(1, Key.A, new Random(42));
+        cipher = new Crypto1();
+        recovery = new KeyRecovery();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        recovery.shutdown();
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(KEY_COUNT)
+    public int searchSingleThread() {
+        int matches = 0;
+        for (long key = FIRST_KEY; key < FIRST_KEY + KEY_COUNT; key++) {
+            if (trace.matches(cipher, key)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(16 * KEY_COUNT)
+    public KeyRecovery.Result searchParallel() {
+        return recovery.recover(trace, KeyRecovery.range(FIRST_KEY, 16 * KEY_COUNT));
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw.benchmarks;
+
+import eu.verdelhan.acr122urw.MifareUtils;
+import eu.verdelhan.acr122urw.SimulatedCard;
+import eu.verdelhan.acr122urw.SimulatedReaderWriter;
+import java.util.concurrent.TimeUnit;
+import javax.smartcardio.CardException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the write of a block on a simulated Mifare Classic 1K card, without latency.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBenchmark {
+
+    /** The key of the card */
+    private static final String KEY = "FFFFFFFFFFFF";
+    
+    /** The data to be written */
+    private static final String DATA = "00112233445566778899AABBCCDDEEFF";
+    
+    /** The simulated card */
+    private SimulatedCard card;
+    
+    /** The simulated reader/writer */
+    private SimulatedReaderWriter readerWriter;
+    
+    @Setup
+    public void setUp() {
+        card = new SimulatedCard(new byte[] { 0x04, 0x11, 0x22, 0x33 });
+        readerWriter = BenchmarkUtils.createReaderWriter(card);
+        BenchmarkUtils.silenceStdout();
+    }
+    
+    @TearDown
+    public void tearDown() {
+        BenchmarkUtils.restoreStdout();
+    }
+    
+    @Benchmark
+    public void writeBlock() throws CardException {
+        MifareUtils.writeToMifareClassicCard(readerWriter, card.getMfCard(), 1, 2, KEY, DATA);
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import org.nfctools.mf.classic.Key;
+
+/**
+ * The access conditions of a Mifare Classic sector, decoded from the access bits of its trailer.
+ * <p>
+ * Each group of blocks (each block in a small sector, groups of 5 data blocks in a large sector, and the
+ * trailer) gets a condition made of 3 bits (C1 C2 C3). The permissions granted by each condition are
+ * looked up in a precomputed table, so the planners can pick the key type which can succeed and skip
+ * the operations which can't. For the trailer, reading means reading the access bits (key A is never
+ * readable) and writing means writing the keys.
+ */
+public final class AccessConditions {
+
+    /** Permission: the block can be read with key A */
+    public static final int READ_KEY_A = 1;
+    
+    /** Permission: the block can be read with key B */
+    public static final int READ_KEY_B = 2;
+    
+    /** Permission: the block can be written with key A */
+    public static final int WRITE_KEY_A = 4;
+    
+    /** Permission: the block can be written with key B */
+    public static final int WRITE_KEY_B = 8;
+    
+    /** Permission (trailer only): key B can be read, so it can't be used for authentication */
+    public static final int KEY_B_READABLE = 16;
+    
+    /**
+     * The permissions, indexed by (condition << 1 | 1 if trailer).
+     * <p>
+     * From the Mifare Classic datasheet; the increment/decrement rights of value blocks are not used.
+     */
+    private static final int[] PERMISSIONS = {
+        // 000
+        READ_KEY_A | READ_KEY_B | WRITE_KEY_A | WRITE_KEY_B, READ_KEY_A | WRITE_KEY_A | KEY_B_READABLE,
+        // 001
+        READ_KEY_A | READ_KEY_B, READ_KEY_A | WRITE_KEY_A | KEY_B_READABLE,
+        // 010
+        READ_KEY_A | READ_KEY_B, READ_KEY_A | KEY_B_READABLE,
+        // 011
+        READ_KEY_B | WRITE_KEY_B, READ_KEY_A | READ_KEY_B | WRITE_KEY_B,
+        // 100
+        READ_KEY_A | READ_KEY_B | WRITE_KEY_B, READ_KEY_A | READ_KEY_B | WRITE_KEY_B,
+        // 101
+        READ_KEY_B, READ_KEY_A | READ_KEY_B,
+        // 110
+        READ_KEY_A | READ_KEY_B | WRITE_KEY_B, READ_KEY_A | READ_KEY_B,
+        // 111
+        0, READ_KEY_A | READ_KEY_B
+    };
+    
+    /** Key types to be tried: key A, then key B */
+    private static final Key[] KEY_A_THEN_B = { Key.A, Key.B };
+    
+    /** Key types to be tried: key B, then key A */
+    private static final Key[] KEY_B_THEN_A = { Key.B, Key.A };
+    
+    /** Key types to be tried: key A only */
+    private static final Key[] KEY_A_ONLY = { Key.A };
+    
+    /** Key types to be tried: key B only */
+    private static final Key[] KEY_B_ONLY = { Key.B };
+    
+    /** Key types to be tried: none */
+    private static final Key[] NO_KEY = {};
+    
+    /** The conditions of the 4 groups of blocks (3 bits per group, group 0 in the lowest bits) */
+    private final int conditions;
+    
+    /**
+     * Constructor.
+     * @param conditions the packed conditions of the 4 groups of blocks
+     */
+    private AccessConditions(int conditions) {
+        this.conditions = conditions;
+    }
+    
+    /**
+     * Decodes the access bits of a sector trailer (bytes 6 to 8).
+     * @param data a buffer holding the trailer
+     * @param offset the offset of the trailer in the buffer
+     * @return the access conditions, null if the access bits are invalid (inverted bits don't match)
+     */
+    public static AccessConditions decode(byte[] data, int offset) {
+        int b6 = data[offset + 6] & 0xFF;
+        int b7 = data[offset + 7] & 0xFF;
+        int b8 = data[offset + 8] & 0xFF;
+        if ((((b6 & 0x0F) ^ (b7 >>> 4)) != 0x0F)
+                || (((b6 >>> 4) ^ (b8 & 0x0F)) != 0x0F)
+                || (((b7 & 0x0F) ^ (b8 >>> 4)) != 0x0F)) {
+            // Inverted bits don't match
+            return null;
+        }
+        int conditions = 0;
+        for (int bitsIndex = 0; bitsIndex < 4; bitsIndex++) {
+            int c1 = (b7 >>> (4 + bitsIndex)) & 1;
+            int c2 = (b8 >>> bitsIndex) & 1;
+            int c3 = (b8 >>> (4 + bitsIndex)) & 1;
+            conditions |= ((c1 << 2) | (c2 << 1) | c3) << (3 * bitsIndex);
+        }
+        return new AccessConditions(conditions);
+    }
+    
+    /**
+     * @param bitsIndex the index (0 to 3) of the access bits of a group of blocks
+     * @return the condition (C1 C2 C3 bits) of the group
+     */
+    public int getCondition(int bitsIndex) {
+        return (conditions >>> (3 * bitsIndex)) & 7;
+    }
+    
+    /**
+     * @return true if key B can be read from the trailer (and so can't be used for authentication)
+     */
+    public boolean isKeyBReadable() {
+        return (PERMISSIONS[(getCondition(3) << 1) | 1] & KEY_B_READABLE) != 0;
+    }
+    
+    /**
+     * @param layout the card layout
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @return the permissions of the block (READ_KEY_A, READ_KEY_B, WRITE_KEY_A, WRITE_KEY_B and KEY_B_READABLE flags)
+     */
+    public int getPermissions(CardLayout layout, int sectorIndex, int blockIndex) {
+        boolean trailer = layout.isTrailer(sectorIndex, blockIndex);
+        int permissions = PERMISSIONS[(getCondition(layout.accessBitsIndex(sectorIndex, blockIndex)) << 1) | (trailer ? 1 : 0)];
+        if (isKeyBReadable()) {
+            // Key B can't be used for authentication
+            permissions &= ~(READ_KEY_B | WRITE_KEY_B);
+        }
+        return permissions;
+    }
+    
+    /**
+     * @param layout the card layout
+     * @param sectorIndex a sector index
+     * @return the permissions shared by all the blocks of the sector
+     */
+    public int getSectorPermissions(CardLayout layout, int sectorIndex) {
+        int permissions = ~0;
+        for (int blockIndex = 0; blockIndex < layout.getBlockCount(sectorIndex); blockIndex++) {
+            permissions &= getPermissions(layout, sectorIndex, blockIndex);
+        }
+        return permissions;
+    }
+    
+    /**
+     * @param layout the card layout
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @param keyType a key type
+     * @return true if the block can be read with the key type, false otherwise
+     */
+    public boolean canRead(CardLayout layout, int sectorIndex, int blockIndex, Key keyType) {
+        return (getPermissions(layout, sectorIndex, blockIndex) & ((keyType == Key.A) ? READ_KEY_A : READ_KEY_B)) != 0;
+    }
+    
+    /**
+     * @param layout the card layout
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @param keyType a key type
+     * @return true if the block can be written with the key type, false otherwise
+     */
+    public boolean canWrite(CardLayout layout, int sectorIndex, int blockIndex, Key keyType) {
+        return (getPermissions(layout, sectorIndex, blockIndex) & ((keyType == Key.A) ? WRITE_KEY_A : WRITE_KEY_B)) != 0;
+    }
+    
+    /**
+     * @param layout the card layout
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @return a description of the permissions of the block (e.g. "read A/B, write B")
+     */
+    public String describe(CardLayout layout, int sectorIndex, int blockIndex) {
+        return describe(getPermissions(layout, sectorIndex, blockIndex), layout.isTrailer(sectorIndex, blockIndex));
+    }
+    
+    /**
+     * Gives the key types allowing an operation.
+     * @param permissions the permissions of a block (or of a sector)
+     * @param write true for a writing, false for a reading
+     * @param preferred the key type to be tried first, when both key types are allowed
+     * @return the key types allowing the operation, in the order in which they have to be tried (shared array, not to be modified)
+     */
+    static Key[] getKeyTypes(int permissions, boolean write, Key preferred) {
+        boolean keyA = (permissions & (write ? WRITE_KEY_A : READ_KEY_A)) != 0;
+        boolean keyB = (permissions & (write ? WRITE_KEY_B : READ_KEY_B)) != 0;
+        if (keyA && keyB) {
+            return (preferred == Key.B) ? KEY_B_THEN_A : KEY_A_THEN_B;
+        } else if (keyA) {
+            return KEY_A_ONLY;
+        } else if (keyB) {
+            return KEY_B_ONLY;
+        }
+        return NO_KEY;
+    }
+    
+    /**
+     * @param preferred the key type to be tried first
+     * @return both key types, in the order in which they have to be tried (shared array, not to be modified)
+     */
+    static Key[] getKeyTypes(Key preferred) {
+        return (preferred == Key.B) ? KEY_B_THEN_A : KEY_A_THEN_B;
+    }
+    
+    /**
+     * @param permissions the permissions of a block
+     * @param trailer true if the block is a sector trailer
+     * @return a description of the permissions
+     */
+    static String describe(int permissions, boolean trailer) {
+        StringBuilder sb = new StringBuilder(48);
+        sb.append(trailer ? "access bits read " : "read ");
+        appendKeyTypes(permissions, READ_KEY_A, READ_KEY_B, sb);
+        sb.append(trailer ? ", keys write " : ", write ");
+        appendKeyTypes(permissions, WRITE_KEY_A, WRITE_KEY_B, sb);
+        if ((permissions & KEY_B_READABLE) != 0) {
+            sb.append(", key B readable");
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Appends the key types allowing an operation (e.g. "A/B", "never").
+     * @param permissions the permissions of a block
+     * @param keyAFlag the permission of the operation with key A
+     * @param keyBFlag the permission of the operation with key B
+     * @param sb the string builder
+     */
+    private static void appendKeyTypes(int permissions, int keyAFlag, int keyBFlag, StringBuilder sb) {
+        boolean keyA = (permissions & keyAFlag) != 0;
+        boolean keyB = (permissions & keyBFlag) != 0;
+        if (keyA && keyB) {
+            sb.append("A/B");
+        } else if (keyA) {
+            sb.append('A');
+        } else if (keyB) {
+            sb.append('B');
+        } else {
+            sb.append("never");
+        }
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        return (o instanceof AccessConditions) && ((AccessConditions) o).conditions == conditions;
+    }
+    
+    @Override
+    public int hashCode() {
+        return conditions;
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(16);
+        for (int bitsIndex = 0; bitsIndex < 4; bitsIndex++) {
+            if (bitsIndex > 0) {
+                sb.append(' ');
+            }
+            int condition = getCondition(bitsIndex);
+            sb.append((char) ('0' + (condition >>> 2))).append((char) ('0' + ((condition >>> 1) & 1))).append((char) ('0' + (condition & 1)));
+        }
+        return sb.toString();
+    }
+}
@@ -24,48 +24,132 @@
 package eu.verdelhan.acr122urw;
 
 import java.io.IOException;
+import javax.smartcardio.CardException;
 import javax.smartcardio.CardTerminal;
+import org.nfctools.mf.MfAccess;
 import org.nfctools.mf.MfCardListener;
+import org.nfctools.mf.MfReaderWriter;
+import org.nfctools.mf.block.MfBlock;
+import org.nfctools.mf.card.MfCard;
 import org.nfctools.spi.acs.Acr122ReaderWriter;
 import org.nfctools.spi.acs.AcsTerminal;
 import org.nfctools.utils.CardTerminalUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * An ACR122 device.
  */
-public class Acr122Device extends AcsTerminal {
+public class Acr122Device extends AcsTerminal implements ReaderDevice {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Acr122Device.class);
 
     /** The ACR122 reader/writer */
     private Acr122ReaderWriter readerWriter;
     
+    /** The terminal */
+    private final CardTerminal terminal;
+    
+    /** The terminal name */
+    private String name;
+    
     /**
      * Constructor.
      */
     public Acr122Device() {
-        CardTerminal terminal = CardTerminalUtils.getTerminalByName("ACR122");
+        this(CardTerminalUtils.getTerminalByName("ACR122"));
+    }
+    
+    /**
+     * Constructor.
+     * @param terminal the ACR122 terminal
+     */
+    public Acr122Device(CardTerminal terminal) {
         setCardTerminal(terminal);
+        this.terminal = terminal;
+        name = terminal.getName();
         readerWriter = new Acr122ReaderWriter(this);
     }
+    
+    @Override
+    public String getName() {
+        return name;
+    }
 
     @Override
     public void open() throws IOException {
-        System.out.println("Opening device");
+        LOGGER.info("Opening device {}", name);
         super.open();
     }
 
-    /**
-     * Start listening for cards using the provided listener.
-     * @param listener a listener
-     */
-    public void listen(MfCardListener listener) throws IOException {
-        System.out.println("Listening for cards...");
-        readerWriter.setCardListener(listener);
+    @Override
+    public void listen(final MfCardListener listener) throws IOException {
+        LOGGER.info("Listening for cards on {}", name);
+        readerWriter.setCardListener(new MfCardListener() {
+            @Override
+            public void cardDetected(MfCard mfCard, MfReaderWriter mfReaderWriter) throws IOException {
+                listener.cardDetected(mfCard, new TerminalReaderWriter(mfReaderWriter, terminal));
+            }
+        });
     }
     
     @Override
     public void close() throws IOException {
-        System.out.println("Closing device");
+        LOGGER.info("Closing device {}", name);
         readerWriter.removeCardListener();
         super.close();
     }
+    
+    /**
+     * The ACR122 reader/writer, probing the card presence through the PC/SC terminal.
+     * <p>
+     * The reader may report a card which left the field as a failed authentication.
+     */
+    private static class TerminalReaderWriter implements MfReaderWriter, CardPresence {
+        
+        /** The actual reader/writer */
+        private final MfReaderWriter delegate;
+        
+        /** The terminal */
+        private final CardTerminal terminal;
+        
+        /**
+         * Constructor.
+         * @param delegate the actual reader/writer
+         * @param terminal the terminal
+         */
+        TerminalReaderWriter(MfReaderWriter delegate, CardTerminal terminal) {
+            this.delegate = delegate;
+            this.terminal = terminal;
+        }
+        
+        @Override
+        public boolean isCardPresent() throws IOException {
+            try {
+                return terminal.isCardPresent();
+            } catch (CardException ce) {
+                throw new IOException(ce);
+            }
+        }
+        
+        @Override
+        public MfBlock[] readBlock(MfAccess access) throws IOException {
+            return delegate.readBlock(access);
+        }
+        
+        @Override
+        public void writeBlock(MfAccess access, MfBlock... mfBlock) throws IOException {
+            delegate.writeBlock(access, mfBlock);
+        }
+        
+        @Override
+        public void setCardListener(MfCardListener mfCardListener) throws IOException {
+            delegate.setCardListener(mfCardListener);
+        }
+        
+        @Override
+        public void removeCardListener() {
+            delegate.removeCardListener();
+        }
+    }
 }
\ No newline at end of file
@@ -23,9 +23,23 @@
  */
 package eu.verdelhan.acr122urw;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import javax.smartcardio.CardException;
 
 import org.nfctools.mf.MfCardListener;
@@ -39,12 +53,79 @@ import org.nfctools.mf.card.MfCard;
  */
 public class Acr122Manager {
     
+    /** The keys which opened the sectors of the already dumped cards */
+    private static final SectorKeyCache SECTOR_KEY_CACHE = new SectorKeyCache();
+    
+    /** The file of the key successes, kept between runs */
+    private static final File KEY_RANKING_FILE = new File(System.getProperty("user.home"), ".acr122urw-key-ranking");
+    
+    /** Default file of the daemon token */
+    private static final File DAEMON_TOKEN_FILE = new File(System.getProperty("user.home"), ".acr122urw-daemon-token");
+    
+    /** True if the simulated device is used instead of an ACR122 reader */
+    private static boolean simulated = false;
+    
+    /** True if all the attached ACR122 readers are used */
+    private static boolean allReaders = false;
+    
+    /** The metrics of the exchanges with the cards (null if disabled) */
+    private static ReaderMetrics metrics = null;
+    
+    /** The retry policy of the exchanges with the cards */
+    private static final RetryPolicy RETRY_POLICY = new RetryPolicy();
+    
+    /** The file the exchanges with the cards are recorded into (null if disabled) */
+    private static File recordFile = null;
+    
+    /** The recorder of the exchanges with the cards (null if disabled) */
+    private static TraceRecorder recorder = null;
+    
+    /** The recorded trace replayed instead of using an ACR122 reader (null if disabled) */
+    private static File replayFile = null;
+    
+    /** Multiplier of the recorded durations of the replayed trace */
+    private static double replayTimeScale = 1;
+    
     /**
      * Entry point.
      * @param args the command line arguments
      * @see Acr122Manager#printHelpAndExit() 
      */
     public static void main(String[] args) throws IOException {
+        while (args != null && args.length > 0
+                && ("--simulate".equals(args[0]) || "--all-readers".equals(args[0]) || "--metrics".equals(args[0])
+                || "--retries".equals(args[0]) || "--timeout-factor".equals(args[0])
+                || "--record".equals(args[0]) || "--replay".equals(args[0]) || "--replay-scale".equals(args[0]))) {
+            int optionLength = 1;
+            if ("--simulate".equals(args[0])) {
+                simulated = true;
+            } else if ("--all-readers".equals(args[0])) {
+                allReaders = true;
+            } else if ("--metrics".equals(args[0])) {
+                metrics = new ReaderMetrics();
+            } else {
+                optionLength = 2;
+                try {
+                    if ("--retries".equals(args[0])) {
+                        RETRY_POLICY.setMaxRetries(Integer.parseInt(args[1]));
+                    } else if ("--timeout-factor".equals(args[0])) {
+                        RETRY_POLICY.setTimeoutFactor(Double.parseDouble(args[1]));
+                    } else if ("--record".equals(args[0])) {
+                        recordFile = new File(args[1]);
+                    } else if ("--replay".equals(args[0])) {
+                        replayFile = new File(args[1]);
+                    } else {
+                        replayTimeScale = Double.parseDouble(args[1]);
+                        if (replayTimeScale < 0) {
+                            printHelpAndExit();
+                        }
+                    }
+                } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                    printHelpAndExit();
+                }
+            }
+            args = Arrays.copyOfRange(args, optionLength, args.length);
+        }
         if (args == null || args.length == 0) {
             printHelpAndExit();
         }
@@ -58,6 +139,20 @@ public class Acr122Manager {
             case "--write":
                 writeToCards(args);
                 break;
+            case "-b":
+            case "--write-batch":
+                writeTemplateToCards(args);
+                break;
+            case "--daemon":
+                runDaemon(args);
+                break;
+            case "--recover":
+                recoverKeys(args);
+                break;
+            case "-s":
+            case "--scan":
+                scanCards(args);
+                break;
             case "-h":
             case "--help":
             default:
@@ -80,21 +175,110 @@ public class Acr122Manager {
      * Listens for cards using the provided listener.
      * @param listener a listener
      */
-    private static void listen(MfCardListener listener) throws IOException {
-        Acr122Device acr122;
-        try {
-            acr122 = new Acr122Device();
-        } catch (RuntimeException re) {
-            System.out.println("No ACR122 reader found.");
+    private static void listen(final MfCardListener listener) throws IOException {
+        listen(new CardListenerFactory() {
+            @Override
+            public MfCardListener createListener(ReaderDevice device) {
+                return listener;
+            }
+        });
+    }
+    
+    /**
+     * Listens for cards using one listener per device.
+     * @param listenerFactory the factory of the listener of each device
+     */
+    private static void listen(final CardListenerFactory listenerFactory) throws IOException {
+        ReaderPool pool = startReaders(listenerFactory);
+        if (pool == null) {
             return;
         }
-        acr122.open();
         
-        acr122.listen(listener);
-        System.out.println("Press ENTER to exit");
+        // On stderr, so the results written to stdout stay parseable
+        System.err.println("Press ENTER to exit");
         System.in.read();
         
-        acr122.close();
+        stopReaders(pool);
+        
+        if (metrics != null) {
+            System.err.println(metrics.getSummary());
+        }
+    }
+    
+    /**
+     * Opens the readers and starts listening for cards using one listener per device.
+     * @param listenerFactory the factory of the listener of each device
+     * @return the pool of the started readers, null if no reader could be started
+     */
+    private static ReaderPool startReaders(final CardListenerFactory listenerFactory) {
+        if (metrics != null) {
+            metrics.register("acr122urw");
+        }
+        if (recordFile != null) {
+            try {
+                recorder = new TraceRecorder(new FileOutputStream(recordFile));
+            } catch (IOException ioe) {
+                System.out.println("Unable to create the trace " + recordFile + ": " + ioe.getMessage());
+                return null;
+            }
+        }
+        // Each attempt of an exchange is recorded into the metrics (and into the trace)
+        CardListenerFactory instrumentedListenerFactory = new CardListenerFactory() {
+            @Override
+            public MfCardListener createListener(ReaderDevice device) {
+                MfCardListener listener = RetryingReaderWriter.wrap(listenerFactory.createListener(device), RETRY_POLICY, metrics);
+                if (metrics != null) {
+                    listener = InstrumentedReaderWriter.instrument(listener, metrics);
+                }
+                return (recorder == null) ? listener : RecordingReaderWriter.record(listener, device.getName(), recorder);
+            }
+        };
+        
+        ReaderPool pool;
+        if (replayFile != null) {
+            try {
+                pool = new ReaderPool(ReplayDevice.load(replayFile, replayTimeScale));
+            } catch (IOException ioe) {
+                System.out.println("Unable to load the trace " + replayFile + ": " + ioe.getMessage());
+                return null;
+            }
+        } else if (simulated) {
+            pool = new ReaderPool(Collections.singletonList(SimulatedDevice.createDemo()));
+        } else if (allReaders) {
+            try {
+                pool = ReaderPool.createAcr122Pool();
+            } catch (CardException ce) {
+                System.out.println("Unable to list the readers: " + ce.getMessage());
+                return null;
+            }
+        } else {
+            try {
+                pool = new ReaderPool(Collections.singletonList(new Acr122Device()));
+            } catch (RuntimeException re) {
+                System.out.println("No ACR122 reader found.");
+                return null;
+            }
+        }
+        if (pool.start(instrumentedListenerFactory) == 0) {
+            System.out.println("No ACR122 reader found.");
+            return null;
+        }
+        return pool;
+    }
+    
+    /**
+     * Stops the readers, then closes the trace of the exchanges if recording.
+     * @param pool the pool of the started readers
+     */
+    private static void stopReaders(ReaderPool pool) {
+        pool.stop();
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException ioe) {
+                System.out.println("Unable to write the trace " + recordFile + ": " + ioe.getMessage());
+            }
+        }
     }
     
     /**
@@ -103,31 +287,487 @@ public class Acr122Manager {
      */
     private static void dumpCards(String... args) throws IOException {
         // Building the list of keys
-        final List<String> keys = new ArrayList<>();
+        KeyStore candidateKeys = new KeyStore();
+        List<File> keyFiles = new ArrayList<>();
+        File traceFile = null;
+        String format = "text";
+        File outputFile = null;
+        File storeDirectory = null;
+        BitSet parsedVolatileSectors = null;
         for (int i = 1; i < args.length; i++) {
-            String k = args[i].toUpperCase();
-            if (MifareUtils.isValidMifareClassic1KKey(k)) {
-                keys.add(k);
+            if ("--keys-file".equals(args[i]) && i + 1 < args.length) {
+                keyFiles.add(new File(args[++i]));
+            } else if ("--traces".equals(args[i]) && i + 1 < args.length) {
+                traceFile = new File(args[++i]);
+            } else if ("--store".equals(args[i]) && i + 1 < args.length) {
+                storeDirectory = new File(args[++i]);
+            } else if ("--volatile-sectors".equals(args[i]) && i + 1 < args.length) {
+                parsedVolatileSectors = parseSectorList(args[++i]);
+                if (parsedVolatileSectors == null) {
+                    printHelpAndExit();
+                }
+            } else if ("--format".equals(args[i]) && i + 1 < args.length) {
+                format = args[++i];
+            } else if ("--output".equals(args[i]) && i + 1 < args.length) {
+                outputFile = new File(args[++i]);
+            } else {
+                String k = args[i].toUpperCase();
+                if (MifareUtils.isValidMifareClassic1KKey(k)) {
+                    candidateKeys.add(k);
+                }
             }
         }
+        // Adding the keys of the dictionaries
+        loadKeyFiles(candidateKeys, keyFiles);
         // Adding the common keys
-        keys.addAll(MifareUtils.COMMON_MIFARE_CLASSIC_1K_KEYS);
+        candidateKeys.addAll(MifareUtils.COMMON_MIFARE_CLASSIC_1K_KEYS);
+        // Recovering the keys of the captured authentications, tried first
+        final KeyStore keys;
+        if (traceFile == null) {
+            keys = candidateKeys;
+        } else {
+            List<AuthTrace> traces;
+            try {
+                traces = AuthTrace.load(traceFile);
+            } catch (IOException ioe) {
+                System.out.println("Unable to load the traces: " + ioe.getMessage());
+                return;
+            }
+            keys = new KeyStore(candidateKeys.size());
+            KeyRecovery recovery = new KeyRecovery();
+            for (KeyRecovery.Result result : recovery.recover(traces, KeyRecovery.dictionary(candidateKeys))) {
+                System.out.println(result);
+                if (result.isFound()) {
+                    keys.add(result.getKey());
+                }
+            }
+            recovery.shutdown();
+            for (int i = 0; i < candidateKeys.size(); i++) {
+                keys.add(candidateKeys.get(i));
+            }
+        }
         
-        // Card listener for dump
-        MfCardListener listener = new MfCardListener() {
+        final KeyRanking ranking = loadKeyRanking();
+        // A replay starts from no learnt key, like the recorded run's own cache
+        final SectorKeyCache sectorKeyCache = (replayFile == null) ? SECTOR_KEY_CACHE : new SectorKeyCache();
+        
+        // Opening the store of the card images
+        if (parsedVolatileSectors != null && storeDirectory == null) {
+            printHelpAndExit();
+        }
+        final BitSet volatileSectors = parsedVolatileSectors;
+        final CardImageStore store;
+        if (storeDirectory == null) {
+            store = null;
+        } else {
+            try {
+                store = new CardImageStore(storeDirectory);
+                System.err.println(store.size() + " cards in the store " + storeDirectory);
+            } catch (IOException ioe) {
+                System.out.println("Unable to open the store: " + ioe.getMessage());
+                return;
+            }
+        }
+        
+        // Card listeners for dump: the reader threads only read the cards, into pooled images,
+        // then the processing stage stores and writes the results to a shared sink
+        final ResultSink sink;
+        try {
+            sink = createResultSink(format, outputFile);
+        } catch (IOException ioe) {
+            System.out.println("Unable to open the output: " + ioe.getMessage());
+            if (store != null) {
+                store.close();
+            }
+            return;
+        }
+        final ProcessingStage processing = new ProcessingStage();
+        final CardImagePool imagePool = new CardImagePool();
+        CardListenerFactory listenerFactory = new CardListenerFactory() {
             @Override
-            public void cardDetected(MfCard mfCard, MfReaderWriter mfReaderWriter) throws IOException {
-                printCardInfo(mfCard);
+            public MfCardListener createListener(final ReaderDevice device) {
+                return new MfCardListener() {
+                    @Override
+                    public void cardDetected(final MfCard mfCard, MfReaderWriter mfReaderWriter) throws IOException {
+                        long detectionTime = System.currentTimeMillis();
+                        long start = System.nanoTime();
+                        CardImage previous = null;
+                        if (store != null) {
+                            try {
+                                previous = store.get(mfCard.getId());
+                            } catch (IOException ioe) {
+                                System.err.println("Unable to get the stored image of the card: " + ioe.getMessage());
+                            }
+                        }
+                        // Partial image if the card is removed
+                        final CardImage image = MifareUtils.readMifareClassicCard(mfReaderWriter, mfCard, keys, sectorKeyCache, ranking,
+                                previous, volatileSectors, imagePool.acquire(CardLayout.forCard(mfCard)));
+                        final boolean storable = (store != null && (previous == null || !image.isCardLost()));
+                        final CardRecord record = new CardRecord(device.getName(), mfCard.getId(), mfCard.getTagType().toString(),
+                                image, detectionTime, System.nanoTime() - start);
+                        processing.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (storable) {
+                                    // A partial image doesn't replace a previous one
+                                    try {
+                                        store.put(mfCard.getId(), image);
+                                    } catch (IOException ioe) {
+                                        System.err.println("Unable to store the image of the card: " + ioe.getMessage());
+                                    }
+                                }
+                                try {
+                                    sink.write(record);
+                                } catch (IOException ioe) {
+                                    System.err.println("Unable to write the result: " + ioe.getMessage());
+                                }
+                                imagePool.release(image);
+                            }
+                        });
+                    }
+                };
+            }
+        };
+        
+        // Start listening
+        listen(listenerFactory);
+        processing.close();
+        sink.close();
+        if (store != null) {
+            store.close();
+        }
+        
+        saveKeyRanking(ranking);
+    }
+    
+    /**
+     * Scans cards (UID and type only).
+     * @param args the arguments of the scan command
+     */
+    private static void scanCards(String... args) throws IOException {
+        UidAllowList allowList = null;
+        long dedupWindowMillis = 2000;
+        for (int i = 1; i < args.length; i++) {
+            if ("--allow-list".equals(args[i]) && i + 1 < args.length) {
+                File allowListFile = new File(args[++i]);
+                allowList = new UidAllowList();
                 try {
-                    MifareUtils.dumpMifareClassic1KCard(mfReaderWriter, mfCard, keys);
-                } catch (CardException ce) {
-                    System.out.println("Card removed or not present.");
+                    int added = allowList.load(allowListFile);
+                    System.err.println(added + " UIDs loaded from " + allowListFile);
+                } catch (IOException ioe) {
+                    System.out.println("Unable to load the allow-list: " + ioe.getMessage());
+                    return;
+                }
+            } else if ("--dedup-window".equals(args[i]) && i + 1 < args.length) {
+                try {
+                    dedupWindowMillis = Long.parseLong(args[++i]);
+                } catch (NumberFormatException nfe) {
+                    dedupWindowMillis = -1;
+                }
+                if (dedupWindowMillis < 0) {
+                    printHelpAndExit();
                 }
+            } else {
+                printHelpAndExit();
             }
-        };
+        }
+        
+        // One line per card: detection time, UID, type, decision, decision time and reader
+        // (the date format isn't thread-safe: only used under the lock of the output)
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+        CardScanner scanner = new CardScanner(new CardScanner.Handler() {
+            @Override
+            public void cardScanned(ScanEvent event) {
+                String line = " " + HexUtils.bytesToHexString(event.getCardId()) + " "
+                        + event.getTagType() + " "
+                        + event.getDecision() + " "
+                        + TimeUnit.NANOSECONDS.toMicros(event.getDecisionNanos()) + "us "
+                        + event.getReaderName();
+                synchronized (System.out) {
+                    System.out.println(dateFormat.format(new Date(event.getDetectionTime())) + line);
+                }
+            }
+        }, allowList, dedupWindowMillis, TimeUnit.MILLISECONDS);
         
         // Start listening
-        listen(listener);
+        listen(scanner);
+    }
+    
+    /**
+     * Runs the resident service.
+     * @param args the arguments of the daemon command
+     */
+    private static void runDaemon(String... args) throws IOException {
+        int port = ReaderDaemon.DEFAULT_PORT;
+        File tokenFile = DAEMON_TOKEN_FILE;
+        File templateDir = null;
+        KeyStore keys = new KeyStore();
+        for (int i = 1; i < args.length; i++) {
+            if ("--port".equals(args[i]) && i + 1 < args.length) {
+                try {
+                    port = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException nfe) {
+                    printHelpAndExit();
+                }
+            } else if ("--token-file".equals(args[i]) && i + 1 < args.length) {
+                tokenFile = new File(args[++i]);
+            } else if ("--template-dir".equals(args[i]) && i + 1 < args.length) {
+                templateDir = new File(args[++i]);
+                if (!templateDir.isDirectory()) {
+                    System.out.println("Not a directory: " + templateDir);
+                    return;
+                }
+            } else if ("--keys-file".equals(args[i]) && i + 1 < args.length) {
+                File keyFile = new File(args[++i]);
+                try {
+                    int added = keys.load(keyFile);
+                    System.out.println(added + " keys loaded from " + keyFile);
+                } catch (IOException ioe) {
+                    System.out.println("Unable to load the keys of " + keyFile + ": " + ioe.getMessage());
+                }
+            } else {
+                printHelpAndExit();
+            }
+        }
+        KeyRanking ranking = loadKeyRanking();
+        
+        String token;
+        try {
+            token = ReaderDaemon.createToken(tokenFile);
+        } catch (IOException ioe) {
+            System.out.println("Unable to write the token file " + tokenFile + ": " + ioe.getMessage());
+            return;
+        }
+        ReaderDaemon daemon;
+        try {
+            daemon = new ReaderDaemon(port, token, templateDir, keys, ranking);
+        } catch (IOException ioe) {
+            System.out.println("Unable to open the control socket: " + ioe.getMessage());
+            return;
+        }
+        ReaderPool pool = startReaders(daemon.getListenerFactory());
+        if (pool == null) {
+            daemon.close();
+            return;
+        }
+        System.err.println("Waiting for commands on 127.0.0.1:" + daemon.getPort() + " (token in " + tokenFile + ")");
+        try {
+            daemon.serve();
+        } finally {
+            stopReaders(pool);
+            daemon.close();
+        }
+        
+        if (metrics != null) {
+            System.err.println(metrics.getSummary());
+        }
+        saveKeyRanking(ranking);
+    }
+    
+    /**
+     * Searches the keys of captured authentications.
+     * @param args the arguments of the recover command
+     */
+    private static void recoverKeys(String... args) throws IOException {
+        if (args.length < 2) {
+            printHelpAndExit();
+        }
+        File traceFile = new File(args[1]);
+        KeyStore keys = new KeyStore();
+        List<File> keyFiles = new ArrayList<>();
+        KeyRecovery.KeySpace keySpace = null;
+        File outputFile = null;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        for (int i = 2; i < args.length; i++) {
+            if ("--keys-file".equals(args[i]) && i + 1 < args.length) {
+                keyFiles.add(new File(args[++i]));
+            } else if ("--keyspace".equals(args[i]) && i + 2 < args.length) {
+                long first = KeyStore.parseKey(args[++i]);
+                long count;
+                try {
+                    count = Long.parseLong(args[++i]);
+                } catch (NumberFormatException nfe) {
+                    count = -1;
+                }
+                if (first == KeyStore.INVALID_KEY || count < 0 || first + count > (1L << 48)) {
+                    printHelpAndExit();
+                }
+                keySpace = KeyRecovery.range(first, count);
+            } else if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                try {
+                    parallelism = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException nfe) {
+                    parallelism = 0;
+                }
+                if (parallelism <= 0) {
+                    printHelpAndExit();
+                }
+            } else if ("--output".equals(args[i]) && i + 1 < args.length) {
+                outputFile = new File(args[++i]);
+            } else {
+                String k = args[i].toUpperCase();
+                if (MifareUtils.isValidMifareClassic1KKey(k)) {
+                    keys.add(k);
+                } else {
+                    printHelpAndExit();
+                }
+            }
+        }
+        
+        List<AuthTrace> traces;
+        try {
+            traces = AuthTrace.load(traceFile);
+        } catch (IOException ioe) {
+            System.out.println("Unable to load the traces: " + ioe.getMessage());
+            return;
+        }
+        if (keySpace == null) {
+            // Searching the dictionaries
+            loadKeyFiles(keys, keyFiles);
+            keys.addAll(MifareUtils.COMMON_MIFARE_CLASSIC_1K_KEYS);
+            keySpace = KeyRecovery.dictionary(keys);
+        }
+        for (AuthTrace trace : traces) {
+            if (!trace.isTagAnswerCaptured() && keySpace.size() > (1L << 24)) {
+                System.out.println("Warning: no tag answer for sector " + trace.getSectorIndex()
+                        + ", the search may give a wrong key");
+            }
+        }
+        
+        KeyRecovery recovery = new KeyRecovery(parallelism);
+        System.out.println("Searching " + keySpace.size() + " keys for " + traces.size()
+                + " authentications using " + recovery.getParallelism() + " threads");
+        List<KeyRecovery.Result> results = recovery.recover(traces, keySpace);
+        recovery.shutdown();
+        KeyStore foundKeys = new KeyStore();
+        for (KeyRecovery.Result result : results) {
+            System.out.println(result);
+            if (result.isFound()) {
+                foundKeys.add(result.getKey());
+            }
+        }
+        
+        if (outputFile != null && foundKeys.size() > 0) {
+            // Appending the found keys to the dictionary
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(outputFile, true), StandardCharsets.US_ASCII)) {
+                for (int i = 0; i < foundKeys.size(); i++) {
+                    out.write(KeyStore.toHexString(foundKeys.get(i)) + "\n");
+                }
+            } catch (IOException ioe) {
+                System.out.println("Unable to write the found keys: " + ioe.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Adds the keys of dictionary files.
+     * @param keys the key store
+     * @param keyFiles the dictionary files (one key per line)
+     */
+    private static void loadKeyFiles(KeyStore keys, List<File> keyFiles) {
+        for (File keyFile : keyFiles) {
+            try {
+                int added = keys.load(keyFile);
+                System.out.println(added + " keys loaded from " + keyFile);
+            } catch (IOException ioe) {
+                System.out.println("Unable to load the keys of " + keyFile + ": " + ioe.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * @return the key ranking of the previous runs (empty if there is none, or when replaying a trace)
+     */
+    private static KeyRanking loadKeyRanking() {
+        KeyRanking ranking = new KeyRanking();
+        if (replayFile == null && KEY_RANKING_FILE.isFile()) {
+            try {
+                ranking.load(KEY_RANKING_FILE);
+            } catch (IOException ioe) {
+                System.out.println("Unable to load the key ranking: " + ioe.getMessage());
+            }
+        }
+        return ranking;
+    }
+    
+    /**
+     * Saves the key ranking for the next runs (not when replaying a trace).
+     * @param ranking the key ranking
+     */
+    private static void saveKeyRanking(KeyRanking ranking) {
+        if (replayFile != null) {
+            return;
+        }
+        try {
+            ranking.save(KEY_RANKING_FILE);
+        } catch (IOException ioe) {
+            System.out.println("Unable to save the key ranking: " + ioe.getMessage());
+        }
+    }
+    
+    /**
+     * Parses a list of sector indexes.
+     * @param s a comma-separated list of sector indexes or ranges (e.g. "1,4-6")
+     * @return the set of sectors, null if the list is invalid
+     */
+    private static BitSet parseSectorList(String s) {
+        BitSet sectors = new BitSet(CardLayout.MAX_SECTOR_COUNT);
+        try {
+            for (String item : s.split(",")) {
+                int dash = item.indexOf('-');
+                int first = Integer.parseInt(item.substring(0, (dash < 0) ? item.length() : dash).trim());
+                int last = (dash < 0) ? first : Integer.parseInt(item.substring(dash + 1).trim());
+                if (first < 0 || last < first || last >= CardLayout.MAX_SECTOR_COUNT) {
+                    return null;
+                }
+                sectors.set(first, last + 1);
+            }
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+        return sectors;
+    }
+    
+    /**
+     * Creates the sink of the dump results.
+     * @param format the output format (text, jsonl or binary)
+     * @param outputFile the output file (null for the standard output)
+     * @return the result sink
+     */
+    private static ResultSink createResultSink(String format, File outputFile) throws IOException {
+        OutputStream out;
+        if (outputFile == null) {
+            // The standard output must stay open after the dump
+            out = new FilterOutputStream(System.out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    this.out.write(b, off, len);
+                }
+                
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+        } else {
+            out = new FileOutputStream(outputFile);
+        }
+        switch (format) {
+            case "text":
+                return (outputFile == null)
+                        ? new ConsoleResultSink()
+                        : new ConsoleResultSink(new PrintStream(out, false, "UTF-8"));
+            case "jsonl":
+                return new JsonLinesResultSink(out);
+            case "binary":
+                if (outputFile == null) {
+                    printHelpAndExit();
+                }
+                return new BinaryResultSink(out);
+            default:
+                printHelpAndExit();
+                return null;
+        }
     }
     
     /**
@@ -144,8 +784,7 @@ public class Acr122Manager {
         final String block = args[2];
         final String key = args[3].toUpperCase();
         final String data = args[4].toUpperCase();
-        if (!MifareUtils.isValidMifareClassic1KSectorIndex(sector)
-                || !MifareUtils.isValidMifareClassic1KBlockIndex(block)
+        if (!MifareUtils.isValidMifareClassicBlockIndex(sector, block)
                 || !MifareUtils.isValidMifareClassic1KKey(key)
                 || !HexUtils.isHexString(data)) {
             printHelpAndExit();
@@ -160,7 +799,7 @@ public class Acr122Manager {
             public void cardDetected(MfCard mfCard, MfReaderWriter mfReaderWriter) throws IOException {
                 printCardInfo(mfCard);
                 try {
-                    MifareUtils.writeToMifareClassic1KCard(mfReaderWriter, mfCard, sectorId, blockId, key, data);
+                    MifareUtils.writeToMifareClassicCard(mfReaderWriter, mfCard, sectorId, blockId, key, data);
                 } catch (CardException ce) {
                     System.out.println("Card removed or not present.");
                 }
@@ -171,6 +810,87 @@ public class Acr122Manager {
         listen(listener);
     }
     
+    /**
+     * Writes a template to cards.
+     * @param args the arguments of the batch write command
+     */
+    private static void writeTemplateToCards(String... args) throws IOException {
+        // Checking arguments
+        if (args.length < 2) {
+            printHelpAndExit();
+        }
+        File templateFile = new File(args[1]);
+        String imageKey = null;
+        final WriteOptions options = new WriteOptions();
+        for (int i = 2; i < args.length; i++) {
+            if ("--image".equals(args[i]) && i + 1 < args.length) {
+                imageKey = args[++i].toUpperCase();
+                if (!MifareUtils.isValidMifareClassic1KKey(imageKey)) {
+                    printHelpAndExit();
+                }
+            } else if ("--no-verify".equals(args[i])) {
+                options.setVerify(false);
+            } else if ("--rewrite".equals(args[i])) {
+                options.setRewriteMismatches(true);
+            } else if ("--diff".equals(args[i])) {
+                options.setDifferential(true);
+            } else if ("--include-trailers".equals(args[i])) {
+                options.setIncludeTrailers(true);
+            } else {
+                printHelpAndExit();
+            }
+        }
+        
+        final WriteTemplate template;
+        try {
+            template = (imageKey == null)
+                    ? WriteTemplate.load(templateFile)
+                    : WriteTemplate.loadImage(templateFile, KeyStore.parseKey(imageKey), options.isIncludeTrailers());
+        } catch (IOException ioe) {
+            System.out.println("Unable to load the template: " + ioe.getMessage());
+            return;
+        }
+        System.out.println(template.getBlockCount() + " blocks to be written per card");
+        
+        // Card listener for batch writing (the results are printed by the processing stage)
+        final ProcessingStage processing = new ProcessingStage();
+        MfCardListener listener = new MfCardListener() {
+            @Override
+            public void cardDetected(final MfCard mfCard, MfReaderWriter mfReaderWriter) throws IOException {
+                WriteStats stats = null;
+                try {
+                    stats = MifareUtils.writeTemplateToMifareClassicCard(mfReaderWriter, mfCard, template, options);
+                } catch (CardException ce) {
+                    // Card removed
+                }
+                final WriteStats cardStats = stats;
+                processing.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (System.out) {
+                            printCardInfo(mfCard);
+                            System.out.println((cardStats == null) ? "Card removed or not present." : cardStats.toString());
+                            if (cardStats != null && cardStats.getMismatchedCount() > 0) {
+                                CardLayout layout = CardLayout.forCard(mfCard);
+                                for (int sectorIndex = 0; sectorIndex < layout.getSectorCount(); sectorIndex++) {
+                                    for (int blockIndex = 0; blockIndex < layout.getBlockCount(sectorIndex); blockIndex++) {
+                                        if (cardStats.isBlockMismatched(sectorIndex, blockIndex)) {
+                                            System.out.println("Sector " + sectorIndex + " block " + blockIndex + ": <Verification failed>");
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }
+                });
+            }
+        };
+        
+        // Start listening
+        listen(listener);
+        processing.close();
+    }
+    
     /**
      * Prints help and exits.
      */
@@ -179,16 +899,67 @@ public class Acr122Manager {
         String jarName = jarPath.substring(jarPath.lastIndexOf('/') + 1);
         
         StringBuilder sb = new StringBuilder("Usage: java -jar ");
-        sb.append(jarName).append(" [option]\n");
+        sb.append(jarName).append(" [--simulate | --all-readers | --replay FILE] [--metrics] [--retries N] [--timeout-factor X]\n");
+        sb.append("\t\t[--record FILE] [option]\n");
         
         sb.append("Options:\n");
+        sb.append("\t    --simulate\t\t\tuse a simulated reader and card instead of an ACR122 reader\n");
+        sb.append("\t    --all-readers\t\tuse all the attached ACR122 readers concurrently\n");
+        sb.append("\t    --metrics\t\t\tprint latency and key metrics on exit (also exposed through JMX)\n");
+        sb.append("\t    --retries N\t\t\tretry the failed transmissions N times (default: 2)\n");
+        sb.append("\t    --timeout-factor X\t\ttime out the exchanges after X times the p99 response time per block of the reader\n");
+        sb.append("\t\t\t\t\t(default: 0, waiting for the reader)\n");
+        sb.append("\t    --record FILE\t\trecord the exchanges with the cards (requests, responses, timings) into FILE\n");
+        sb.append("\t    --replay FILE\t\treplay the cards and exchanges recorded into FILE instead of using an ACR122 reader\n");
+        sb.append("\t    --replay-scale X\t\tmultiply the recorded timings by X (default: 1, 0 for no waiting)\n");
         sb.append("\t-h, --help\t\t\tshow this help message and exit\n");
-        sb.append("\t-d, --dump [KEYS...]\t\tdump Mifare Classic 1K cards using KEYS\n");
-        sb.append("\t-w, --write S B KEY DATA\twrite DATA to sector S, block B of Mifare Classic 1K cards using KEY\n");
+        sb.append("\t-d, --dump [KEYS...]\t\tdump Mifare Classic cards using KEYS\n");
+        sb.append("\t    --keys-file FILE\t\talso use the keys of FILE (one key per line) for dumping\n");
+        sb.append("\t    --format FORMAT\t\toutput format of the dump: text (default), jsonl or binary\n");
+        sb.append("\t    --output FILE\t\twrite the dump to FILE instead of the standard output (required for binary)\n");
+        sb.append("\t    --traces FILE\t\tfirst search the keys of the authentications captured in FILE\n");
+        sb.append("\t    --store DIR\t\t\tkeep the last image of each card in DIR and try its keys first\n");
+        sb.append("\t    --volatile-sectors LIST\tonly read these sectors (e.g. 1,4-6) of the cards found in the store\n");
+        sb.append("\t-s, --scan\t\t\treport the UID and type of the cards as soon as they are detected (no authentication)\n");
+        sb.append("\t    --allow-list FILE\t\talso report whether the UID is in FILE (one hex UID per line): ALLOW or DENY\n");
+        sb.append("\t    --dedup-window MS\t\tdon't report again a card detected by the same reader within MS ms (default: 2000)\n");
+        sb.append("\t-w, --write S B KEY DATA\twrite DATA to sector S, block B of Mifare Classic cards using KEY\n");
+        sb.append("\t-b, --write-batch FILE\t\twrite the blocks of the template FILE (lines of S B KEY DATA) to Mifare Classic cards\n");
+        sb.append("\t    --image KEY\t\t\tFILE is a binary image (Mini, 1K or 4K), its data blocks are written using KEY\n");
+        sb.append("\t    --no-verify\t\t\tdon't read back the written blocks (one pass and one CRC32 at the end of each card)\n");
+        sb.append("\t    --rewrite\t\t\twrite again (once) the blocks which failed the verification\n");
+        sb.append("\t    --diff\t\t\tonly write the blocks which differ from the card contents\n");
+        sb.append("\t    --include-trailers\t\talso write the sector trailers (image or --diff)\n");
+        sb.append("\t    --daemon\t\t\tkeep the readers open and take DUMP, WRITE, BATCH, STOP, STATUS and SHUTDOWN\n");
+        sb.append("\t\t\t\t\tcommands (one per line) on 127.0.0.1, after AUTH TOKEN: the token is\n");
+        sb.append("\t\t\t\t\twritten at startup to a file only readable by the user of the daemon\n");
+        sb.append("\t    --port PORT\t\t\tTCP port of the daemon (default: ").append(ReaderDaemon.DEFAULT_PORT).append(")\n");
+        sb.append("\t    --token-file FILE\t\tfile of the daemon token (default: ~/.acr122urw-daemon-token)\n");
+        sb.append("\t    --template-dir DIR\t\tdirectory of the BATCH templates (BATCH is refused without it)\n");
+        sb.append("\t    --recover FILE [KEYS...]\tsearch the keys of the authentications captured in FILE (lines of\n");
+        sb.append("\t\t\t\t\tS A|B UID NT NR_ENC AR_ENC [AT_ENC]) among KEYS and the common keys\n");
+        sb.append("\t    --keyspace FIRST COUNT\tsearch the COUNT keys from FIRST instead (e.g. A0A1A2000000 16777216)\n");
+        sb.append("\t    --threads N\t\t\tnumber of search threads (default: one per core)\n");
+        sb.append("\t    --output FILE\t\tappend the found keys to the dictionary FILE\n");
         
         sb.append("Examples:\n");
         sb.append("\tjava -jar ").append(jarName).append(" --dump FF00A1A0B000 FF00A1A0B001 FF00A1A0B099\n");
-        sb.append("\tjava -jar ").append(jarName).append(" --write 13 2 FF00A1A0B001 FFFFFFFFFFFF00000000060504030201");
+        sb.append("\tjava -jar ").append(jarName).append(" --dump --keys-file mfc_default_keys.dic\n");
+        sb.append("\tjava -jar ").append(jarName).append(" --all-readers --dump --format jsonl --output dumps.jsonl\n");
+        sb.append("\tjava -jar ").append(jarName).append(" --simulate --dump\n");
+        sb.append("\tjava -jar ").append(jarName).append(" --dump --store cards --volatile-sectors 1,2\n");
+        sb.append("\tjava -jar ").append(jarName).append(" --all-readers --dump FF00A1A0B000\n");
+        sb.append("\tjava -jar ").append(jarName).append(" --metrics --simulate --dump\n");
+        sb.append("\tjava -jar ").append(jarName).append(" --retries 4 --timeout-factor 3 --dump\n");
+        sb.append("\tjava -jar ").append(jarName).append(" --all-readers --record site.trace --dump\n");
+        sb.append("\tjava -jar ").append(jarName).append(" --replay site.trace --replay-scale 0 --metrics --dump\n");
+        sb.append("\tjava -jar ").append(jarName).append(" --all-readers --scan --allow-list staff.txt --dedup-window 5000\n");
+        sb.append("\tjava -jar ").append(jarName).append(" --write 13 2 FF00A1A0B001 FFFFFFFFFFFF00000000060504030201\n");
+        sb.append("\tjava -jar ").append(jarName).append(" --write-batch template.txt --diff --no-verify\n");
+        sb.append("\tjava -jar ").append(jarName).append(" --write-batch template.txt --rewrite\n");
+        sb.append("\tjava -jar ").append(jarName).append(" --all-readers --daemon --keys-file mfc_default_keys.dic --template-dir templates\n");
+        sb.append("\tjava -jar ").append(jarName).append(" --recover traces.txt --keyspace A0A1A2000000 16777216 --output found.dic\n");
+        sb.append("\tjava -jar ").append(jarName).append(" --dump --traces traces.txt --keys-file found.dic");
         
         System.out.println(sb.toString());
         
@@ -0,0 +1,202 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.nfctools.mf.classic.Key;
+
+/**
+ * A captured authentication to a sector (nonces and answers exchanged between the reader and the card).
+ * <p>
+ * A candidate key is checked by running the cipher over the authentication: the decrypted
+ * reader answer (and tag answer, if captured) must be the successors of the tag nonce.
+ * The reader answer alone leaves one false match every 2^32 keys: the tag answer should
+ * be captured for the searches over large keyspaces.
+ */
+public class AuthTrace {
+
+    /** The authenticated sector */
+    private final int sectorIndex;
+    
+    /** The key type */
+    private final Key keyType;
+    
+    /** The UID used in the authentication (4 bytes, the last ones of a 7-byte UID) */
+    private final int uid;
+    
+    /** The tag nonce (plain) */
+    private final int tagNonce;
+    
+    /** The encrypted reader nonce */
+    private final int encryptedReaderNonce;
+    
+    /** The encrypted reader answer */
+    private final int encryptedReaderAnswer;
+    
+    /** The encrypted tag answer */
+    private final int encryptedTagAnswer;
+    
+    /** True if the tag answer has been captured */
+    private final boolean tagAnswerCaptured;
+    
+    /** The expected reader answer (plain) */
+    private final int readerAnswer;
+    
+    /** The expected tag answer (plain) */
+    private final int tagAnswer;
+    
+    /**
+     * Constructor.
+     * @param sectorIndex the authenticated sector
+     * @param keyType the key type
+     * @param uid the UID used in the authentication
+     * @param tagNonce the tag nonce
+     * @param encryptedReaderNonce the encrypted reader nonce
+     * @param encryptedReaderAnswer the encrypted reader answer
+     * @param encryptedTagAnswer the encrypted tag answer
+     * @param tagAnswerCaptured true if the tag answer has been captured
+     */
+    public AuthTrace(int sectorIndex, Key keyType, int uid, int tagNonce, int encryptedReaderNonce,
+            int encryptedReaderAnswer, int encryptedTagAnswer, boolean tagAnswerCaptured) {
+        this.sectorIndex = sectorIndex;
+        this.keyType = keyType;
+        this.uid = uid;
+        this.tagNonce = tagNonce;
+        this.encryptedReaderNonce = encryptedReaderNonce;
+        this.encryptedReaderAnswer = encryptedReaderAnswer;
+        this.encryptedTagAnswer = encryptedTagAnswer;
+        this.tagAnswerCaptured = tagAnswerCaptured;
+        readerAnswer = Crypto1.prngSuccessor(tagNonce, 64);
+        tagAnswer = Crypto1.prngSuccessor(tagNonce, 96);
+    }
+    
+    /**
+     * Builds the trace of an authentication, as a reader holding the key would run it.
+     * @param sectorIndex the authenticated sector
+     * @param keyType the key type
+     * @param uid the UID used in the authentication
+     * @param key the packed key
+     * @param tagNonce the tag nonce
+     * @param readerNonce the reader nonce
+     * @return the trace
+     */
+    public static AuthTrace authenticate(int sectorIndex, Key keyType, int uid, long key, int tagNonce, int readerNonce) {
+        Crypto1 cipher = new Crypto1().reset(key);
+        cipher.word(uid ^ tagNonce, false);
+        int encryptedReaderNonce = readerNonce ^ cipher.word(readerNonce, false);
+        int encryptedReaderAnswer = Crypto1.prngSuccessor(tagNonce, 64) ^ cipher.word(0, false);
+        int encryptedTagAnswer = Crypto1.prngSuccessor(tagNonce, 96) ^ cipher.word(0, false);
+        return new AuthTrace(sectorIndex, keyType, uid, tagNonce, encryptedReaderNonce, encryptedReaderAnswer, encryptedTagAnswer, true);
+    }
+    
+    /**
+     * Loads traces from a text file.
+     * <p>
+     * Each line holds the sector index, the key type (A or B), then the UID, the tag nonce, the
+     * encrypted reader nonce, the encrypted reader answer and optionally the encrypted tag answer
+     * as 8-digit hex strings (e.g. "15 A 9C599B32 82A4166C A1E458CE 6EEA41E0 5CADF439"). Empty lines
+     * and comments (starting with #) are ignored.
+     * @param file the trace file
+     * @return the traces
+     */
+    public static List<AuthTrace> load(File file) throws IOException {
+        List<AuthTrace> traces = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if ((fields.length != 6 && fields.length != 7)
+                        || !MifareUtils.isValidMifareClassicBlockIndex(fields[0], "0")
+                        || !("A".equalsIgnoreCase(fields[1]) || "B".equalsIgnoreCase(fields[1]))) {
+                    throw new IOException("Invalid trace line " + lineNumber + ": " + line);
+                }
+                int[] words = new int[5];
+                for (int i = 2; i < fields.length; i++) {
+                    if (fields[i].length() != 8 || !HexUtils.isHexString(fields[i])) {
+                        throw new IOException("Invalid trace line " + lineNumber + ": " + line);
+                    }
+                    words[i - 2] = (int) Long.parseLong(fields[i], 16);
+                }
+                traces.add(new AuthTrace(Integer.parseInt(fields[0]), "A".equalsIgnoreCase(fields[1]) ? Key.A : Key.B,
+                        words[0], words[1], words[2], words[3], words[4], fields.length == 7));
+            }
+        }
+        return traces;
+    }
+    
+    /**
+     * @param cipher a cipher (reset by the check)
+     * @param key a packed candidate key
+     * @return true if the key matches the authentication, false otherwise
+     */
+    public boolean matches(Crypto1 cipher, long key) {
+        cipher.reset(key);
+        cipher.word(uid ^ tagNonce, false);
+        cipher.word(encryptedReaderNonce, true);
+        if ((encryptedReaderAnswer ^ cipher.word(0, false)) != readerAnswer) {
+            return false;
+        }
+        return !tagAnswerCaptured || (encryptedTagAnswer ^ cipher.word(0, false)) == tagAnswer;
+    }
+    
+    /**
+     * @return the authenticated sector
+     */
+    public int getSectorIndex() {
+        return sectorIndex;
+    }
+    
+    /**
+     * @return the key type
+     */
+    public Key getKeyType() {
+        return keyType;
+    }
+    
+    /**
+     * @return true if the tag answer has been captured, false otherwise
+     */
+    public boolean isTagAnswerCaptured() {
+        return tagAnswerCaptured;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%d %s %08X %08X %08X %08X", sectorIndex, keyType, uid, tagNonce, encryptedReaderNonce, encryptedReaderAnswer)
+                + (tagAnswerCaptured ? String.format(" %08X", encryptedTagAnswer) : "");
+    }
+}
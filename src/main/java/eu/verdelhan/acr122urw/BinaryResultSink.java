@@ -0,0 +1,102 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.nfctools.mf.classic.Key;
+
+/**
+ * A sink writing the results in a compact binary format.
+ * <p>
+ * The stream starts with the {@link #MAGIC} int and the {@link #VERSION} byte. Then each card is written as:
+ * <ul>
+ * <li>the reader name and the tag type (modified UTF-8 strings)</li>
+ * <li>the UID length (byte) and the UID</li>
+ * <li>the detection time (milliseconds since the epoch) and the reading duration (nanoseconds), as longs</li>
+ * <li>whether the card left the field during the reading (boolean byte)</li>
+ * <li>the sector count of the card (byte: 5 for a Mini, 16 for a 1K, 40 for a 4K card)</li>
+ * <li>the bitmap of the read blocks (one bit per block, least significant bit first, padded to a whole byte)</li>
+ * <li>the card image (320, 1024 or 4096 bytes)</li>
+ * <li>for each sector, the key type (byte: 0 for none, 1 for A, 2 for B) followed by the 6 bytes of the key if any</li>
+ * </ul>
+ * All numbers are big-endian. Records are buffered: they are flushed when the sink is closed.
+ */
+public class BinaryResultSink implements ResultSink {
+
+    /** Magic number of the stream ("MFRS") */
+    public static final int MAGIC = 0x4D465253;
+    
+    /** Format version */
+    public static final int VERSION = 1;
+    
+    /** The output stream */
+    private final DataOutputStream out;
+    
+    /**
+     * Constructor.
+     * @param out the output stream
+     */
+    public BinaryResultSink(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+    }
+    
+    @Override
+    public synchronized void write(CardRecord record) throws IOException {
+        CardImage image = record.getImage();
+        out.writeUTF(record.getReaderName());
+        out.writeUTF(record.getTagType());
+        out.writeByte(record.getCardId().length);
+        out.write(record.getCardId());
+        out.writeLong(record.getDetectionTime());
+        out.writeLong(record.getDurationNanos());
+        out.writeBoolean(image.isCardLost());
+        CardLayout layout = image.getLayout();
+        out.writeByte(layout.getSectorCount());
+        byte[] readBlocks = image.getReadBlocks().toByteArray();
+        out.write(readBlocks);
+        for (int i = readBlocks.length; i < (layout.getBlockCount() + 7) / 8; i++) {
+            out.writeByte(0);
+        }
+        out.write(image.getData());
+        for (int sectorIndex = 0; sectorIndex < layout.getSectorCount(); sectorIndex++) {
+            SectorKey key = image.getSectorKey(sectorIndex);
+            if (key == null) {
+                out.writeByte(0);
+            } else {
+                out.writeByte((key.getType() == Key.A) ? 1 : 2);
+                out.write(key.getKeyBytes());
+            }
+        }
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
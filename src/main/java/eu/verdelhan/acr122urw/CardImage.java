@@ -0,0 +1,223 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The memory image of a Mifare Classic card.
+ * <p>
+ * The whole card is held in one flat buffer, along with a bitmap of the blocks
+ * which could be read and the keys which opened them.
+ */
+public class CardImage {
+
+    /** Block size (in bytes) */
+    public static final int BLOCK_SIZE = CardLayout.BLOCK_SIZE;
+    
+    /** The card layout */
+    private final CardLayout layout;
+    
+    /** The card data */
+    private final byte[] data;
+    
+    /** Bitmap of the read blocks (bit i is set if block i has been read) */
+    private final BitSet readBlocks;
+    
+    /** The keys which opened the blocks */
+    private final SectorKey[] blockKeys;
+    
+    /** Bitmap of the sectors copied from a stored image instead of being read */
+    private final BitSet storedSectors = new BitSet();
+    
+    /** True if the card left the field before the end of the reading */
+    private boolean cardLost;
+    
+    /**
+     * Constructor (Mifare Classic 1K card).
+     */
+    public CardImage() {
+        this(CardLayout.CLASSIC_1K);
+    }
+    
+    /**
+     * Constructor.
+     * @param layout the card layout
+     */
+    public CardImage(CardLayout layout) {
+        this.layout = layout;
+        data = new byte[layout.getSize()];
+        readBlocks = new BitSet(layout.getBlockCount());
+        blockKeys = new SectorKey[layout.getBlockCount()];
+    }
+    
+    /**
+     * @return the card layout
+     */
+    public CardLayout getLayout() {
+        return layout;
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @return the offset of the block in the card data
+     */
+    public int blockOffset(int sectorIndex, int blockIndex) {
+        return layout.blockOffset(sectorIndex, blockIndex);
+    }
+    
+    /**
+     * @return the card data (the size of the card); blocks which could not be read are left zeroed
+     */
+    public byte[] getData() {
+        return data;
+    }
+    
+    /**
+     * @return the bitmap of the read blocks (bit i is set if block i has been read)
+     */
+    public BitSet getReadBlocks() {
+        return (BitSet) readBlocks.clone();
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @return true if the block has been read, false otherwise
+     */
+    public boolean isBlockRead(int sectorIndex, int blockIndex) {
+        return readBlocks.get(layout.blockNumber(sectorIndex, blockIndex));
+    }
+    
+    /**
+     * @return true if all the blocks of the card have been read, false otherwise
+     */
+    public boolean isComplete() {
+        return readBlocks.cardinality() == layout.getBlockCount();
+    }
+    
+    /**
+     * @return true if the card left the field (or the transmission failed) before the end of the reading, false otherwise
+     */
+    public boolean isCardLost() {
+        return cardLost;
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @return true if the sector has been copied from a stored image of the card instead of being read, false otherwise
+     */
+    public boolean isSectorStored(int sectorIndex) {
+        return storedSectors.get(sectorIndex);
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @return the key which opened the block, null if the block has not been read
+     */
+    public SectorKey getBlockKey(int sectorIndex, int blockIndex) {
+        return blockKeys[layout.blockNumber(sectorIndex, blockIndex)];
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @return the key which opened the sector, null if no block of the sector has been read
+     */
+    public SectorKey getSectorKey(int sectorIndex) {
+        int firstBlockNumber = layout.blockNumber(sectorIndex, 0);
+        for (int blockIndex = 0; blockIndex < layout.getBlockCount(sectorIndex); blockIndex++) {
+            SectorKey key = blockKeys[firstBlockNumber + blockIndex];
+            if (key != null) {
+                return key;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Copies a block of the card.
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @param dest the destination array
+     * @param destOffset the offset in the destination array
+     */
+    public void copyBlock(int sectorIndex, int blockIndex, byte[] dest, int destOffset) {
+        System.arraycopy(data, blockOffset(sectorIndex, blockIndex), dest, destOffset, BLOCK_SIZE);
+    }
+    
+    /**
+     * Stores a read block.
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @param blockData the block data
+     * @param key the key which opened the block
+     */
+    void setBlock(int sectorIndex, int blockIndex, byte[] blockData, SectorKey key) {
+        int blockNumber = layout.blockNumber(sectorIndex, blockIndex);
+        System.arraycopy(blockData, 0, data, blockNumber * BLOCK_SIZE, BLOCK_SIZE);
+        blockKeys[blockNumber] = key;
+        readBlocks.set(blockNumber);
+    }
+    
+    /**
+     * Copies a sector from a previous image of the same card.
+     * @param previous the previous image (same layout)
+     * @param sectorIndex a sector index
+     * @return true if the sector has been copied, false if it was not completely read in the previous image
+     */
+    boolean copySector(CardImage previous, int sectorIndex) {
+        int firstBlockNumber = layout.blockNumber(sectorIndex, 0);
+        int blockCount = layout.getBlockCount(sectorIndex);
+        if (previous.layout != layout
+                || previous.readBlocks.nextClearBit(firstBlockNumber) < firstBlockNumber + blockCount) {
+            return false;
+        }
+        System.arraycopy(previous.data, firstBlockNumber * BLOCK_SIZE, data, firstBlockNumber * BLOCK_SIZE, blockCount * BLOCK_SIZE);
+        System.arraycopy(previous.blockKeys, firstBlockNumber, blockKeys, firstBlockNumber, blockCount);
+        readBlocks.set(firstBlockNumber, firstBlockNumber + blockCount);
+        storedSectors.set(sectorIndex);
+        return true;
+    }
+    
+    /**
+     * Flags the image as partial because the card left the field.
+     */
+    void setCardLost() {
+        cardLost = true;
+    }
+    
+    /**
+     * Empties the image, for the reading of another card.
+     */
+    void clear() {
+        Arrays.fill(data, (byte) 0);
+        Arrays.fill(blockKeys, null);
+        readBlocks.clear();
+        storedSectors.clear();
+        cardLost = false;
+    }
+}
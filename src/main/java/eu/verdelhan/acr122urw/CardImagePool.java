@@ -0,0 +1,79 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pool of card images, reused from card to card.
+ * <p>
+ * A released image is cleared and must not be used anymore by its previous owner.
+ * This class is thread-safe.
+ */
+public class CardImagePool {
+
+    /** Default maximum number of idle images per layout */
+    public static final int DEFAULT_CAPACITY = 64;
+    
+    /** The idle images, per layout */
+    private final Map<CardLayout, BlockingQueue<CardImage>> idleImages = new EnumMap<>(CardLayout.class);
+    
+    /**
+     * Constructor.
+     */
+    public CardImagePool() {
+        this(DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * Constructor.
+     * @param capacity the maximum number of idle images per layout
+     */
+    public CardImagePool(int capacity) {
+        for (CardLayout layout : CardLayout.values()) {
+            idleImages.put(layout, new ArrayBlockingQueue<CardImage>(capacity));
+        }
+    }
+    
+    /**
+     * @param layout a card layout
+     * @return an empty image for the layout
+     */
+    public CardImage acquire(CardLayout layout) {
+        CardImage image = idleImages.get(layout).poll();
+        return (image == null) ? new CardImage(layout) : image;
+    }
+    
+    /**
+     * Gives an image back to the pool.
+     * @param image the image (left to the garbage collector if the pool is full)
+     */
+    public void release(CardImage image) {
+        image.clear();
+        idleImages.get(image.getLayout()).offer(image);
+    }
+}
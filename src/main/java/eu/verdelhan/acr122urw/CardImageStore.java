@@ -0,0 +1,570 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+import org.nfctools.mf.classic.Key;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An on-disk store of the last image of each card.
+ * <p>
+ * Images are appended to a log file ({@value #LOG_FILE_NAME}): a card which is read again
+ * gets a new record. The offset of the last record of each UID is kept in a memory-mapped
+ * hash table ({@value #INDEX_FILE_NAME}, open addressing with linear probing), so that a UID
+ * is looked up in constant time, whatever the number of cards.
+ * <p>
+ * Each record holds its payload length (int), the storage time (long), the payload and the
+ * CRC-32 of the time and payload (int). The payload holds the UID length (byte) and the UID,
+ * flags (byte, bit 0 set if the card was lost), the sector count (byte), the bitmap of the
+ * read blocks (one bit per block, padded to a whole byte), the card data and, for each sector,
+ * the key type (byte: 0 for none, 1 for A, 2 for B) followed by the 6 bytes of the key (zeroed
+ * if none). All numbers are big-endian.
+ * <p>
+ * The index is rebuilt from the log if it is missing or invalid, and the records appended
+ * after its last update (e.g. before a crash) are indexed when the store is opened. A torn
+ * record at the end of the log is truncated. Nothing is forced to the disk before
+ * {@link #close()}. This class is thread-safe.
+ */
+public class CardImageStore implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CardImageStore.class);
+    
+    /** Name of the log file */
+    public static final String LOG_FILE_NAME = "images.log";
+    
+    /** Name of the index file */
+    public static final String INDEX_FILE_NAME = "images.idx";
+    
+    /** Magic number of the index ("MFIX") */
+    private static final int INDEX_MAGIC = 0x4D464958;
+    
+    /** Format version */
+    private static final int VERSION = 1;
+    
+    /** Size of the index header: magic, version, capacity, size and indexed log length (then reserved) */
+    private static final int HEADER_SIZE = 32;
+    
+    /** Position of the capacity in the index header */
+    private static final int CAPACITY_POSITION = 8;
+    
+    /** Position of the size in the index header */
+    private static final int SIZE_POSITION = 12;
+    
+    /** Position of the indexed log length in the index header */
+    private static final int INDEXED_LENGTH_POSITION = 16;
+    
+    /** Maximum UID length (Mifare Classic UIDs have 4, 7 or 10 bytes) */
+    private static final int MAX_UID_LENGTH = 15;
+    
+    /** Size of an index slot: UID length (0 for a free slot), UID and record offset */
+    private static final int SLOT_SIZE = 1 + MAX_UID_LENGTH + 8;
+    
+    /** Initial slot count */
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    
+    /** Maximum slot count (the index mapping must stay under 2 GB) */
+    private static final int MAX_CAPACITY = 1 << 26;
+    
+    /** Maximum load factor of the index */
+    private static final float LOAD_FACTOR = 0.5f;
+    
+    /** Size of a record around its payload: payload length, storage time and CRC */
+    private static final int RECORD_OVERHEAD = 4 + 8 + 4;
+    
+    /** Maximum payload length (4K card) */
+    private static final int MAX_PAYLOAD_LENGTH = 1 + MAX_UID_LENGTH + 1 + 1
+            + CardLayout.MAX_BLOCK_COUNT / 8 + CardLayout.CLASSIC_4K.getSize() + CardLayout.MAX_SECTOR_COUNT * 7;
+    
+    /** Flag of the images of lost cards */
+    private static final int FLAG_CARD_LOST = 1;
+    
+    /** The index file */
+    private final File indexFile;
+    
+    /** The log channel */
+    private final FileChannel log;
+    
+    /** The lock of the log, preventing other processes from using the store */
+    private final FileLock lock;
+    
+    /** The index channel */
+    private FileChannel indexChannel;
+    
+    /** The mapped index */
+    private MappedByteBuffer index;
+    
+    /** Slot count of the index (power of 2) */
+    private int capacity;
+    
+    /** Number of indexed cards */
+    private int size;
+    
+    /** Length of the log (offset of the next record) */
+    private long logLength;
+    
+    /**
+     * Constructor.
+     * @param directory the directory of the store (created if needed)
+     */
+    public CardImageStore(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the directory " + directory);
+        }
+        indexFile = new File(directory, INDEX_FILE_NAME);
+        log = FileChannel.open(new File(directory, LOG_FILE_NAME).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        lock = log.tryLock();
+        if (lock == null) {
+            log.close();
+            throw new IOException("The store " + directory + " is used by another process");
+        }
+        try {
+            long indexedLength = openIndex();
+            if (indexedLength < 0 || indexedLength > log.size()) {
+                if (log.size() > 0) {
+                    LOGGER.info("Rebuilding the index of {}", directory);
+                }
+                createIndex(INITIAL_CAPACITY);
+                indexedLength = 0;
+            }
+            indexLog(indexedLength);
+        } catch (IOException ioe) {
+            close();
+            throw ioe;
+        }
+    }
+    
+    /**
+     * @param uid a card UID
+     * @return the last stored image of the card, null if the card is unknown
+     */
+    public synchronized CardImage get(byte[] uid) throws IOException {
+        checkUid(uid);
+        int position = findSlot(index, capacity, uid, uid.length);
+        if (index.get(position) == 0) {
+            return null;
+        }
+        long offset = index.getLong(position + 1 + MAX_UID_LENGTH);
+        ByteBuffer payload = readRecord(offset);
+        if (payload == null) {
+            throw new IOException("Corrupted record at offset " + offset);
+        }
+        return decode(payload);
+    }
+    
+    /**
+     * Stores the image of a card.
+     * <p>
+     * Nothing is appended if the image is the same as the last stored one.
+     * @param uid the card UID
+     * @param image the card image
+     * @return true if the image has been appended, false if it was already stored
+     */
+    public synchronized boolean put(byte[] uid, CardImage image) throws IOException {
+        checkUid(uid);
+        ByteBuffer record = encode(uid, image);
+        int position = findSlot(index, capacity, uid, uid.length);
+        if (index.get(position) != 0) {
+            ByteBuffer payload = readRecord(index.getLong(position + 1 + MAX_UID_LENGTH));
+            if (payload != null && payload.equals(ByteBuffer.wrap(record.array(), 12, record.limit() - RECORD_OVERHEAD))) {
+                // Unchanged
+                return false;
+            }
+        }
+        
+        if (index.get(position) == 0 && size + 1 > capacity * LOAD_FACTOR) {
+            grow();
+            position = findSlot(index, capacity, uid, uid.length);
+        }
+        long offset = logLength;
+        while (record.hasRemaining()) {
+            log.write(record, offset + record.position());
+        }
+        logLength += record.limit();
+        if (index.get(position) == 0) {
+            index.put(position, (byte) uid.length);
+            for (int i = 0; i < uid.length; i++) {
+                index.put(position + 1 + i, uid[i]);
+            }
+            size++;
+            index.putInt(SIZE_POSITION, size);
+        }
+        index.putLong(position + 1 + MAX_UID_LENGTH, offset);
+        index.putLong(INDEXED_LENGTH_POSITION, logLength);
+        return true;
+    }
+    
+    /**
+     * @return the number of stored cards
+     */
+    public synchronized int size() {
+        return size;
+    }
+    
+    /**
+     * Forces the store to the disk and closes it.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (index != null) {
+                index.putLong(INDEXED_LENGTH_POSITION, logLength);
+                index.force();
+                indexChannel.close();
+                index = null;
+            }
+            if (log.isOpen()) {
+                log.force(true);
+            }
+        } finally {
+            if (lock != null && lock.isValid()) {
+                lock.release();
+            }
+            log.close();
+        }
+    }
+    
+    /**
+     * Opens the existing index.
+     * @return the indexed log length, -1 if the index is missing or invalid
+     */
+    private long openIndex() throws IOException {
+        if (indexFile.length() < HEADER_SIZE) {
+            return -1;
+        }
+        FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+            // Reading the header
+        }
+        int indexCapacity = header.getInt(CAPACITY_POSITION);
+        if (header.getInt(0) != INDEX_MAGIC
+                || header.getInt(4) != VERSION
+                || indexCapacity < INITIAL_CAPACITY
+                || indexCapacity > MAX_CAPACITY
+                || Integer.bitCount(indexCapacity) != 1
+                || channel.size() != indexSize(indexCapacity)) {
+            channel.close();
+            return -1;
+        }
+        indexChannel = channel;
+        index = channel.map(FileChannel.MapMode.READ_WRITE, 0, indexSize(indexCapacity));
+        capacity = indexCapacity;
+        size = index.getInt(SIZE_POSITION);
+        return index.getLong(INDEXED_LENGTH_POSITION);
+    }
+    
+    /**
+     * Creates an empty index, replacing the current one.
+     * @param indexCapacity the slot count of the index
+     */
+    private void createIndex(int indexCapacity) throws IOException {
+        if (indexChannel != null) {
+            indexChannel.close();
+        }
+        Files.deleteIfExists(indexFile.toPath());
+        indexChannel = createIndexFile(indexFile, indexCapacity);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexSize(indexCapacity));
+        capacity = indexCapacity;
+        size = 0;
+    }
+    
+    /**
+     * Indexes the records of the log from an offset, truncating a torn record at the end.
+     * @param offset the offset of the first record to be indexed
+     */
+    private void indexLog(long offset) throws IOException {
+        long logSize = log.size();
+        ByteBuffer payload;
+        while (offset < logSize && (payload = readRecord(offset)) != null) {
+            int uidLength = payload.get(payload.position()) & 0xFF;
+            byte[] uid = new byte[uidLength];
+            for (int i = 0; i < uidLength; i++) {
+                uid[i] = payload.get(payload.position() + 1 + i);
+            }
+            int position = findSlot(index, capacity, uid, uidLength);
+            if (index.get(position) == 0) {
+                if (size + 1 > capacity * LOAD_FACTOR) {
+                    grow();
+                    position = findSlot(index, capacity, uid, uidLength);
+                }
+                index.put(position, (byte) uidLength);
+                for (int i = 0; i < uidLength; i++) {
+                    index.put(position + 1 + i, uid[i]);
+                }
+                size++;
+            }
+            index.putLong(position + 1 + MAX_UID_LENGTH, offset);
+            offset += RECORD_OVERHEAD + payload.remaining();
+        }
+        if (offset < logSize) {
+            LOGGER.warn("Truncating the torn record at offset {} of the image log", offset);
+            log.truncate(offset);
+        }
+        logLength = offset;
+        index.putInt(SIZE_POSITION, size);
+        index.putLong(INDEXED_LENGTH_POSITION, logLength);
+    }
+    
+    /**
+     * Doubles the capacity of the index.
+     */
+    private void grow() throws IOException {
+        int newCapacity = capacity * 2;
+        if (newCapacity > MAX_CAPACITY) {
+            throw new IOException("The index is full (" + size + " cards)");
+        }
+        File newIndexFile = new File(indexFile.getPath() + ".tmp");
+        Files.deleteIfExists(newIndexFile.toPath());
+        FileChannel newIndexChannel = createIndexFile(newIndexFile, newCapacity);
+        MappedByteBuffer newIndex = newIndexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexSize(newCapacity));
+        byte[] uid = new byte[MAX_UID_LENGTH];
+        for (int slot = 0; slot < capacity; slot++) {
+            int position = HEADER_SIZE + slot * SLOT_SIZE;
+            int uidLength = index.get(position);
+            if (uidLength != 0) {
+                for (int i = 0; i < uidLength; i++) {
+                    uid[i] = index.get(position + 1 + i);
+                }
+                int newPosition = findSlot(newIndex, newCapacity, uid, uidLength);
+                for (int i = 0; i < SLOT_SIZE; i++) {
+                    newIndex.put(newPosition + i, index.get(position + i));
+                }
+            }
+        }
+        newIndex.putInt(SIZE_POSITION, size);
+        newIndex.putLong(INDEXED_LENGTH_POSITION, index.getLong(INDEXED_LENGTH_POSITION));
+        newIndex.force();
+        indexChannel.close();
+        Files.move(newIndexFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        indexChannel = newIndexChannel;
+        index = newIndex;
+        capacity = newCapacity;
+    }
+    
+    /**
+     * Reads a record of the log.
+     * @param offset the offset of the record
+     * @return the payload of the record (between its position and its limit), null if the record is torn or corrupted
+     */
+    private ByteBuffer readRecord(long offset) throws IOException {
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        readFully(lengthBuffer, offset);
+        if (lengthBuffer.hasRemaining()) {
+            return null;
+        }
+        int payloadLength = lengthBuffer.getInt(0);
+        if (payloadLength <= 0 || payloadLength > MAX_PAYLOAD_LENGTH) {
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.allocate(8 + payloadLength + 4);
+        readFully(record, offset + 4);
+        if (record.hasRemaining()) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, 8 + payloadLength);
+        if ((int) crc.getValue() != record.getInt(8 + payloadLength)) {
+            return null;
+        }
+        record.position(8);
+        record.limit(8 + payloadLength);
+        return record;
+    }
+    
+    /**
+     * Reads bytes of the log until the buffer is full or the end of the log is reached.
+     * @param buffer the buffer
+     * @param offset the offset in the log
+     */
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (log.read(buffer, offset + buffer.position()) < 0) {
+                break;
+            }
+        }
+    }
+    
+    /**
+     * @param uid the card UID
+     * @param image the card image
+     * @return the record of the image (flipped)
+     */
+    private static ByteBuffer encode(byte[] uid, CardImage image) {
+        CardLayout layout = image.getLayout();
+        int bitmapSize = (layout.getBlockCount() + 7) / 8;
+        int payloadLength = 1 + uid.length + 1 + 1 + bitmapSize + layout.getSize() + layout.getSectorCount() * 7;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + payloadLength);
+        record.putInt(payloadLength);
+        record.putLong(System.currentTimeMillis());
+        record.put((byte) uid.length).put(uid);
+        record.put((byte) (image.isCardLost() ? FLAG_CARD_LOST : 0));
+        record.put((byte) layout.getSectorCount());
+        byte[] bitmap = image.getReadBlocks().toByteArray();
+        record.put(bitmap);
+        record.position(record.position() + bitmapSize - bitmap.length);
+        record.put(image.getData());
+        for (int sectorIndex = 0; sectorIndex < layout.getSectorCount(); sectorIndex++) {
+            SectorKey key = image.getSectorKey(sectorIndex);
+            if (key == null) {
+                record.position(record.position() + 7);
+            } else {
+                record.put((byte) ((key.getType() == Key.A) ? 1 : 2));
+                record.put(key.getKeyBytes());
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, 8 + payloadLength);
+        record.putInt((int) crc.getValue());
+        record.flip();
+        return record;
+    }
+    
+    /**
+     * @param payload the payload of a record
+     * @return the card image
+     */
+    private static CardImage decode(ByteBuffer payload) throws IOException {
+        payload.position(payload.position() + 1 + (payload.get(payload.position()) & 0xFF));
+        int flags = payload.get();
+        CardLayout layout = CardLayout.forSectorCount(payload.get() & 0xFF);
+        if (layout == null) {
+            throw new IOException("Invalid sector count in the image log");
+        }
+        byte[] bitmap = new byte[(layout.getBlockCount() + 7) / 8];
+        payload.get(bitmap);
+        BitSet readBlocks = BitSet.valueOf(bitmap);
+        byte[] data = new byte[layout.getSize()];
+        payload.get(data);
+        
+        CardImage image = new CardImage(layout);
+        for (int sectorIndex = 0; sectorIndex < layout.getSectorCount(); sectorIndex++) {
+            int keyType = payload.get();
+            byte[] keyBytes = new byte[6];
+            payload.get(keyBytes);
+            SectorKey key = (keyType == 0) ? null : new SectorKey((keyType == 1) ? Key.A : Key.B, KeyStore.toKey(keyBytes), keyBytes);
+            for (int blockIndex = 0; blockIndex < layout.getBlockCount(sectorIndex); blockIndex++) {
+                if (readBlocks.get(layout.blockNumber(sectorIndex, blockIndex))) {
+                    int offset = layout.blockOffset(sectorIndex, blockIndex);
+                    image.setBlock(sectorIndex, blockIndex, Arrays.copyOfRange(data, offset, offset + CardImage.BLOCK_SIZE), key);
+                }
+            }
+        }
+        if ((flags & FLAG_CARD_LOST) != 0) {
+            image.setCardLost();
+        }
+        return image;
+    }
+    
+    /**
+     * @param table the index
+     * @param tableCapacity the slot count of the index
+     * @param uid the card UID
+     * @param uidLength the UID length
+     * @return the position of the slot of the UID in the index, or of the free slot where it has to be inserted
+     */
+    private static int findSlot(ByteBuffer table, int tableCapacity, byte[] uid, int uidLength) {
+        int mask = tableCapacity - 1;
+        int slot = hash(uid, uidLength) & mask;
+        while (true) {
+            int position = HEADER_SIZE + slot * SLOT_SIZE;
+            int slotUidLength = table.get(position);
+            if (slotUidLength == 0) {
+                return position;
+            }
+            if (slotUidLength == uidLength) {
+                int i = 0;
+                while (i < uidLength && table.get(position + 1 + i) == uid[i]) {
+                    i++;
+                }
+                if (i == uidLength) {
+                    return position;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+    
+    /**
+     * @param uid a card UID
+     * @param uidLength the UID length
+     * @return the hash of the UID (FNV-1a, then mixed)
+     */
+    private static int hash(byte[] uid, int uidLength) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < uidLength; i++) {
+            h ^= uid[i] & 0xFF;
+            h *= 0x100000001B3L;
+        }
+        return LongHashSet.hash(h);
+    }
+    
+    /**
+     * Creates an empty index file.
+     * @param file the index file
+     * @param indexCapacity the slot count of the index
+     * @return the channel of the index file
+     */
+    private static FileChannel createIndexFile(File file, int indexCapacity) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(indexSize(indexCapacity));
+            raf.writeInt(INDEX_MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(indexCapacity);
+        }
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+    
+    /**
+     * @param indexCapacity the slot count of an index
+     * @return the size of the index file
+     */
+    private static long indexSize(int indexCapacity) {
+        return HEADER_SIZE + (long) indexCapacity * SLOT_SIZE;
+    }
+    
+    /**
+     * @param uid a card UID
+     */
+    private static void checkUid(byte[] uid) {
+        if (uid.length == 0 || uid.length > MAX_UID_LENGTH) {
+            throw new IllegalArgumentException("Invalid UID length: " + uid.length + " bytes");
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import org.nfctools.api.TagType;
+import org.nfctools.mf.card.MfCard;
+import org.nfctools.mf.classic.MemoryLayout;
+
+/**
+ * The memory layout of a Mifare Classic card.
+ * <p>
+ * A card is made of small sectors (4 blocks), optionally followed by large sectors (16 blocks),
+ * each sector ending with its trailer. The first 32 sectors of all the layouts share the same
+ * geometry, so a (sector, block) address means the same block on every card holding it.
+ */
+public enum CardLayout {
+
+    /** Mifare Classic Mini (320 bytes): 5 small sectors */
+    MINI(5, 0, MemoryLayout.CLASSIC_1K),
+    /** Mifare Classic 1K (1024 bytes): 16 small sectors */
+    CLASSIC_1K(16, 0, MemoryLayout.CLASSIC_1K),
+    /** Mifare Classic 4K (4096 bytes): 32 small sectors, then 8 large sectors */
+    CLASSIC_4K(32, 8, MemoryLayout.CLASSIC_4K);
+    
+    /** Block count of a small sector */
+    public static final int SMALL_SECTOR_BLOCK_COUNT = 4;
+    
+    /** Block count of a large sector */
+    public static final int LARGE_SECTOR_BLOCK_COUNT = 16;
+    
+    /** Block size (in bytes) */
+    public static final int BLOCK_SIZE = 16;
+    
+    /** Maximum sector count, over all the layouts */
+    public static final int MAX_SECTOR_COUNT = 40;
+    
+    /** Maximum block count, over all the layouts */
+    public static final int MAX_BLOCK_COUNT = 256;
+    
+    /** Number of small sectors */
+    private final int smallSectorCount;
+    
+    /** Number of large sectors */
+    private final int largeSectorCount;
+    
+    /** The nfctools memory layout (the Mini shares the 1K one for its 5 sectors) */
+    private final MemoryLayout memoryLayout;
+    
+    /**
+     * Constructor.
+     * @param smallSectorCount the number of small sectors
+     * @param largeSectorCount the number of large sectors
+     * @param memoryLayout the nfctools memory layout
+     */
+    private CardLayout(int smallSectorCount, int largeSectorCount, MemoryLayout memoryLayout) {
+        this.smallSectorCount = smallSectorCount;
+        this.largeSectorCount = largeSectorCount;
+        this.memoryLayout = memoryLayout;
+    }
+    
+    /**
+     * @param card a card
+     * @return the layout of the card (cards of other types are handled as 1K cards)
+     */
+    public static CardLayout forCard(MfCard card) {
+        TagType tagType = card.getTagType();
+        if (tagType == TagType.MIFARE_CLASSIC_4K) {
+            return CLASSIC_4K;
+        } else if (tagType == TagType.MIFARE_MINI) {
+            return MINI;
+        }
+        return CLASSIC_1K;
+    }
+    
+    /**
+     * @param size a memory size (in bytes)
+     * @return the layout of the cards of this size, null if there is none
+     */
+    public static CardLayout forSize(int size) {
+        for (CardLayout layout : values()) {
+            if (layout.getSize() == size) {
+                return layout;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * @param sectorCount a sector count
+     * @return the layout of the cards with this sector count, null if there is none
+     */
+    public static CardLayout forSectorCount(int sectorCount) {
+        for (CardLayout layout : values()) {
+            if (layout.getSectorCount() == sectorCount) {
+                return layout;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * @return the nfctools memory layout
+     */
+    public MemoryLayout getMemoryLayout() {
+        return memoryLayout;
+    }
+    
+    /**
+     * @return the number of sectors
+     */
+    public int getSectorCount() {
+        return smallSectorCount + largeSectorCount;
+    }
+    
+    /**
+     * @return the number of blocks of the card
+     */
+    public int getBlockCount() {
+        return smallSectorCount * SMALL_SECTOR_BLOCK_COUNT + largeSectorCount * LARGE_SECTOR_BLOCK_COUNT;
+    }
+    
+    /**
+     * @return the memory size (in bytes)
+     */
+    public int getSize() {
+        return getBlockCount() * BLOCK_SIZE;
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @return the number of blocks of the sector
+     */
+    public int getBlockCount(int sectorIndex) {
+        return (sectorIndex < smallSectorCount) ? SMALL_SECTOR_BLOCK_COUNT : LARGE_SECTOR_BLOCK_COUNT;
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @return the index of the trailer block in the sector
+     */
+    public int getTrailerBlockIndex(int sectorIndex) {
+        return getBlockCount(sectorIndex) - 1;
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @return true if the block is the sector trailer, false otherwise
+     */
+    public boolean isTrailer(int sectorIndex, int blockIndex) {
+        return blockIndex == getTrailerBlockIndex(sectorIndex);
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @return true if the sector exists in this layout, false otherwise
+     */
+    public boolean isValidSectorIndex(int sectorIndex) {
+        return sectorIndex >= 0 && sectorIndex < getSectorCount();
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @return true if the block exists in this layout, false otherwise
+     */
+    public boolean isValidBlockIndex(int sectorIndex, int blockIndex) {
+        return isValidSectorIndex(sectorIndex) && blockIndex >= 0 && blockIndex < getBlockCount(sectorIndex);
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @return the index of the block in the card
+     */
+    public int blockNumber(int sectorIndex, int blockIndex) {
+        if (sectorIndex < smallSectorCount) {
+            return sectorIndex * SMALL_SECTOR_BLOCK_COUNT + blockIndex;
+        }
+        return smallSectorCount * SMALL_SECTOR_BLOCK_COUNT + (sectorIndex - smallSectorCount) * LARGE_SECTOR_BLOCK_COUNT + blockIndex;
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @return the offset of the block in the card memory
+     */
+    public int blockOffset(int sectorIndex, int blockIndex) {
+        return blockNumber(sectorIndex, blockIndex) * BLOCK_SIZE;
+    }
+    
+    /**
+     * Gives the access bits governing a block.
+     * <p>
+     * In small sectors, each block has its own access bits. In large sectors, data blocks
+     * share them by groups of 5 blocks.
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @return the index (0 to 3) of the access bits of the block in the sector trailer
+     */
+    public int accessBitsIndex(int sectorIndex, int blockIndex) {
+        if (sectorIndex < smallSectorCount) {
+            return blockIndex;
+        }
+        return (blockIndex == LARGE_SECTOR_BLOCK_COUNT - 1) ? 3 : blockIndex / 5;
+    }
+}
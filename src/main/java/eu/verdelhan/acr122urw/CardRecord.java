@@ -0,0 +1,108 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+/**
+ * The result of the reading of a card.
+ */
+public class CardRecord {
+
+    /** The name of the reader */
+    private final String readerName;
+    
+    /** The card UID */
+    private final byte[] cardId;
+    
+    /** The tag type */
+    private final String tagType;
+    
+    /** The card image */
+    private final CardImage image;
+    
+    /** The detection time (in milliseconds since the epoch) */
+    private final long detectionTime;
+    
+    /** The reading duration (in nanoseconds) */
+    private final long durationNanos;
+    
+    /**
+     * Constructor.
+     * @param readerName the name of the reader
+     * @param cardId the card UID
+     * @param tagType the tag type
+     * @param image the card image
+     * @param detectionTime the detection time (in milliseconds since the epoch)
+     * @param durationNanos the reading duration (in nanoseconds)
+     */
+    public CardRecord(String readerName, byte[] cardId, String tagType, CardImage image, long detectionTime, long durationNanos) {
+        this.readerName = readerName;
+        this.cardId = cardId;
+        this.tagType = tagType;
+        this.image = image;
+        this.detectionTime = detectionTime;
+        this.durationNanos = durationNanos;
+    }
+
+    /**
+     * @return the name of the reader
+     */
+    public String getReaderName() {
+        return readerName;
+    }
+
+    /**
+     * @return the card UID
+     */
+    public byte[] getCardId() {
+        return cardId;
+    }
+
+    /**
+     * @return the tag type
+     */
+    public String getTagType() {
+        return tagType;
+    }
+
+    /**
+     * @return the card image
+     */
+    public CardImage getImage() {
+        return image;
+    }
+
+    /**
+     * @return the detection time (in milliseconds since the epoch)
+     */
+    public long getDetectionTime() {
+        return detectionTime;
+    }
+
+    /**
+     * @return the reading duration (in nanoseconds)
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+}
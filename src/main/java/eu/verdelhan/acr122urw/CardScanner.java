@@ -0,0 +1,154 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.nfctools.mf.MfCardListener;
+import org.nfctools.mf.MfReaderWriter;
+import org.nfctools.mf.card.MfCard;
+
+/**
+ * A scanner reporting the UID and type of the detected cards, without any authentication.
+ * <p>
+ * Each reader gets its own listener: the same card detected again by a reader within the
+ * deduplication window is not reported again (the window restarts at each detection, so a card
+ * left on the reader is reported once). The decision of the allow-list is made on the reader
+ * thread, right after the detection.
+ */
+public class CardScanner implements CardListenerFactory {
+
+    /** Number of recent cards remembered by each reader for the deduplication */
+    private static final int RECENT_CARD_COUNT = 256;
+    
+    /** The handler of the scans */
+    private final Handler handler;
+    
+    /** The allow-list (null if none) */
+    private final AllowList allowList;
+    
+    /** The deduplication window (in nanoseconds, 0 to report all the detections) */
+    private final long dedupWindowNanos;
+    
+    /**
+     * Constructor.
+     * @param handler the handler of the scans
+     * @param allowList the allow-list (null if none)
+     * @param dedupWindow the deduplication window (0 to report all the detections)
+     * @param unit the unit of the deduplication window
+     */
+    public CardScanner(Handler handler, AllowList allowList, long dedupWindow, TimeUnit unit) {
+        if (dedupWindow < 0) {
+            throw new IllegalArgumentException("Invalid deduplication window: " + dedupWindow);
+        }
+        this.handler = handler;
+        this.allowList = allowList;
+        dedupWindowNanos = unit.toNanos(dedupWindow);
+    }
+    
+    @Override
+    public MfCardListener createListener(final ReaderDevice device) {
+        return new MfCardListener() {
+            
+            /** The recently detected cards (hashed UIDs) */
+            private final long[] recentCards = new long[RECENT_CARD_COUNT];
+            
+            /** The last detection times of the recent cards (in nanoseconds) */
+            private final long[] recentTimes = new long[RECENT_CARD_COUNT];
+            
+            /** The index of the next replaced recent card */
+            private int nextRecentCard = 0;
+            
+            @Override
+            public void cardDetected(MfCard mfCard, MfReaderWriter mfReaderWriter) throws IOException {
+                long start = System.nanoTime();
+                byte[] uid = mfCard.getId();
+                if (isDuplicate(uid, start)) {
+                    return;
+                }
+                ScanEvent.Decision decision = ScanEvent.Decision.NONE;
+                if (allowList != null) {
+                    decision = allowList.isAllowed(uid) ? ScanEvent.Decision.ALLOW : ScanEvent.Decision.DENY;
+                }
+                handler.cardScanned(new ScanEvent(device.getName(), uid, mfCard.getTagType().toString(),
+                        System.currentTimeMillis(), decision, System.nanoTime() - start));
+            }
+            
+            /**
+             * @param uid the UID of a detected card
+             * @param now the detection time (in nanoseconds)
+             * @return true if the card has been detected within the deduplication window, false otherwise
+             */
+            private boolean isDuplicate(byte[] uid, long now) {
+                if (dedupWindowNanos == 0) {
+                    return false;
+                }
+                long card = hash(uid);
+                for (int i = 0; i < RECENT_CARD_COUNT; i++) {
+                    if (recentCards[i] == card && recentTimes[i] != 0) {
+                        boolean duplicate = now - recentTimes[i] < dedupWindowNanos;
+                        recentTimes[i] = now;
+                        return duplicate;
+                    }
+                }
+                // Replacing the oldest remembered card
+                recentCards[nextRecentCard] = card;
+                recentTimes[nextRecentCard] = now;
+                nextRecentCard = (nextRecentCard + 1) % RECENT_CARD_COUNT;
+                return false;
+            }
+        };
+    }
+    
+    /**
+     * @param uid a card UID
+     * @return a 64-bit hash of the UID (the packed UID for UIDs up to 7 bytes)
+     */
+    private static long hash(byte[] uid) {
+        long packed = UidAllowList.pack(uid);
+        if (packed != 0) {
+            return packed;
+        }
+        // FNV-1a
+        long hash = 0xCBF29CE484222325L;
+        for (byte b : uid) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+        }
+        return hash;
+    }
+    
+    /**
+     * A handler of the scanned cards.
+     * <p>
+     * Implementations must be thread-safe: several readers may report to the same handler.
+     */
+    public interface Handler {
+        
+        /**
+         * Handles a scanned card (called on the reader thread: should return quickly).
+         * @param event the scan
+         */
+        void cardScanned(ScanEvent event);
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * A sink printing the results as text.
+ * <p>
+ * Each card is printed in one go, so the results of several readers don't interleave.
+ */
+public class ConsoleResultSink implements ResultSink {
+
+    /** The output stream */
+    private final PrintStream out;
+    
+    /**
+     * Constructor (prints to the standard output).
+     */
+    public ConsoleResultSink() {
+        this(System.out);
+    }
+    
+    /**
+     * Constructor.
+     * @param out the output stream
+     */
+    public ConsoleResultSink(PrintStream out) {
+        this.out = out;
+    }
+    
+    @Override
+    public void write(CardRecord record) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Card detected: ").append(record.getTagType())
+                .append(" ID: ");
+        HexUtils.appendHexString(record.getCardId(), 0, record.getCardId().length, sb);
+        sb.append(" (").append(record.getReaderName()).append(")\n");
+        MifareUtils.appendCardImage(record.getImage(), sb);
+        synchronized (out) {
+            out.print(sb);
+            out.flush();
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (out == System.out || out == System.err) {
+            out.flush();
+        } else {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+/**
+ * The Crypto-1 cipher of the Mifare Classic cards.
+ * <p>
+ * The 48-bit LFSR is kept as its odd and even bits, as in the crapto1 library, so that a
+ * step is a few shifts and masks. Used to check candidate keys against captured
+ * authentications (see {@link AuthTrace}) and to simulate the reader side of an authentication.
+ * This class is not thread-safe: use one instance per thread.
+ */
+public final class Crypto1 {
+
+    /** Feedback polynomial, odd bits */
+    private static final int LF_POLY_ODD = 0x29CE5C;
+    
+    /** Feedback polynomial, even bits */
+    private static final int LF_POLY_EVEN = 0x870804;
+    
+    /** The odd bits of the LFSR */
+    private int odd;
+    
+    /** The even bits of the LFSR */
+    private int even;
+    
+    /**
+     * Loads a key into the LFSR.
+     * @param key the packed key
+     * @return this cipher
+     */
+    public Crypto1 reset(long key) {
+        odd = 0;
+        even = 0;
+        for (int i = 47; i > 0; i -= 2) {
+            odd = odd << 1 | (int) (key >>> ((i - 1) ^ 7)) & 1;
+            even = even << 1 | (int) (key >>> (i ^ 7)) & 1;
+        }
+        return this;
+    }
+    
+    /**
+     * Clocks the LFSR once.
+     * @param in the input bit
+     * @param encrypted true if the input bit is encrypted (it is then decrypted before being fed back)
+     * @return the keystream bit
+     */
+    public int bit(int in, boolean encrypted) {
+        int ret = filter(odd);
+        int feedin = encrypted ? ret : 0;
+        feedin ^= (in != 0) ? 1 : 0;
+        feedin ^= LF_POLY_ODD & odd;
+        feedin ^= LF_POLY_EVEN & even;
+        int newEven = even << 1 | parity(feedin);
+        even = odd;
+        odd = newEven;
+        return ret;
+    }
+    
+    /**
+     * Clocks the LFSR 32 times.
+     * @param in the input word (bytes in transmission order)
+     * @param encrypted true if the input word is encrypted
+     * @return the keystream word
+     */
+    public int word(int in, boolean encrypted) {
+        int ret = 0;
+        for (int i = 0; i < 32; i++) {
+            ret |= bit((in >>> (i ^ 24)) & 1, encrypted) << (i ^ 24);
+        }
+        return ret;
+    }
+    
+    /**
+     * @param nonce a tag nonce
+     * @param n a step count
+     * @return the nonce after n steps of the tag PRNG (e.g. 64 steps give the expected reader answer)
+     */
+    public static int prngSuccessor(int nonce, int n) {
+        int x = Integer.reverseBytes(nonce);
+        for (int i = 0; i < n; i++) {
+            x = x >>> 1 | (x >>> 16 ^ x >>> 18 ^ x >>> 19 ^ x >>> 21) << 31;
+        }
+        return Integer.reverseBytes(x);
+    }
+    
+    /**
+     * @param x the odd bits of the LFSR
+     * @return the output bit of the non-linear filter
+     */
+    private static int filter(int x) {
+        int f = 0xf22c0 >>> (x & 0xf) & 16;
+        f |= 0x6c9c0 >>> (x >>> 4 & 0xf) & 8;
+        f |= 0x3c8b0 >>> (x >>> 8 & 0xf) & 4;
+        f |= 0x1e458 >>> (x >>> 12 & 0xf) & 2;
+        f |= 0x0d938 >>> (x >>> 16 & 0xf) & 1;
+        return 0xEC57E80A >>> f & 1;
+    }
+    
+    /**
+     * @param x a word
+     * @return the parity of the word
+     */
+    private static int parity(int x) {
+        x ^= x >>> 16;
+        x ^= x >>> 8;
+        x ^= x >>> 4;
+        return 0x6996 >>> (x & 0xf) & 1;
+    }
+}
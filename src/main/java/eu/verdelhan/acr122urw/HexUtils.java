@@ -23,42 +23,134 @@
  */
 package eu.verdelhan.acr122urw;
 
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Hexadecimal utility class.
+ * <p>
+ * The codec is table-driven. Besides the convenience methods returning new arrays and strings,
+ * the overloads decoding into a caller-supplied buffer and encoding into a caller-supplied
+ * char array or {@link Appendable} don't allocate anything.
  */
 public final class HexUtils {
 
-    /** Regex pattern for hexadecimal strings */
-    private static final Pattern HEX_STRING_PATTERN = Pattern.compile("^([0-9A-Fa-f]{2})+$");
-    
     /** Array of all hexadecimal chars */
     private static final char[] HEX_CHARS = "0123456789ABCDEF".toCharArray();
     
+    /** Values of the hexadecimal digits, indexed by char (-1 for the other chars) */
+    private static final byte[] DIGITS = new byte[128];
+    
+    static {
+        for (int i = 0; i < DIGITS.length; i++) {
+            DIGITS[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            DIGITS['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            DIGITS['A' + i] = (byte) (10 + i);
+            DIGITS['a' + i] = (byte) (10 + i);
+        }
+    }
+    
     private HexUtils() {
     }
 
+    /**
+     * @param c a char
+     * @return the value of the hexadecimal digit, -1 if the char is not a hexadecimal digit
+     */
+    public static int digit(char c) {
+        return (c < DIGITS.length) ? DIGITS[c] : -1;
+    }
+    
     /**
      * @param s a string
-     * @return true if the provided string is hexadecimal, false otherwise
+     * @return true if the provided string is hexadecimal (non-empty, with an even length), false otherwise
      */
-    public static boolean isHexString(String s) {
-        return (s != null) && HEX_STRING_PATTERN.matcher(s).matches();
+    public static boolean isHexString(CharSequence s) {
+        if (s == null || s.length() == 0 || (s.length() & 1) != 0) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (digit(s.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
     }
     
     /**
      * @param s a hex string
-     * @return a byte array
+     * @return a byte array (empty for an empty string)
+     * @throws IllegalArgumentException if the string is not hexadecimal (invalid char or odd length)
      */
-    public static byte[] hexStringToBytes(String s) {
-        int len = s.length();
-        byte[] data = new byte[len / 2];
-        for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4) + Character.digit(s.charAt(i + 1), 16));
+    public static byte[] hexStringToBytes(CharSequence s) {
+        if (s.length() == 0) {
+            return new byte[0];
+        }
+        byte[] data = new byte[s.length() / 2];
+        if (hexStringToBytes(s, data, 0) < 0) {
+            throw new IllegalArgumentException("Not a hex string: " + s);
         }
         return data;
     }
+    
+    /**
+     * Decodes a hex string into a byte array, validating it on the way.
+     * @param s a hex string
+     * @param dest the destination array
+     * @param destOffset the offset in the destination array
+     * @return the number of decoded bytes, -1 if the string is not hexadecimal (the destination may then be partially written)
+     */
+    public static int hexStringToBytes(CharSequence s, byte[] dest, int destOffset) {
+        if (s == null || s.length() == 0 || (s.length() & 1) != 0) {
+            return -1;
+        }
+        int byteCount = s.length() / 2;
+        if (destOffset < 0 || destOffset + byteCount > dest.length) {
+            throw new IndexOutOfBoundsException("Not enough room for " + byteCount + " bytes at offset " + destOffset);
+        }
+        for (int i = 0; i < byteCount; i++) {
+            int high = digit(s.charAt(2 * i));
+            int low = digit(s.charAt(2 * i + 1));
+            if ((high | low) < 0) {
+                return -1;
+            }
+            dest[destOffset + i] = (byte) ((high << 4) | low);
+        }
+        return byteCount;
+    }
+    
+    /**
+     * Decodes a hex string into a buffer, validating it on the way.
+     * <p>
+     * The buffer position is moved past the decoded bytes, or left unchanged if the string is not hexadecimal.
+     * @param s a hex string
+     * @param dest the destination buffer
+     * @return the number of decoded bytes, -1 if the string is not hexadecimal
+     */
+    public static int hexStringToBytes(CharSequence s, ByteBuffer dest) {
+        if (s == null || s.length() == 0 || (s.length() & 1) != 0) {
+            return -1;
+        }
+        int byteCount = s.length() / 2;
+        if (byteCount > dest.remaining()) {
+            throw new IndexOutOfBoundsException("Not enough room for " + byteCount + " bytes");
+        }
+        int position = dest.position();
+        for (int i = 0; i < byteCount; i++) {
+            int high = digit(s.charAt(2 * i));
+            int low = digit(s.charAt(2 * i + 1));
+            if ((high | low) < 0) {
+                return -1;
+            }
+            dest.put(position + i, (byte) ((high << 4) | low));
+        }
+        dest.position(position + byteCount);
+        return byteCount;
+    }
 
     /**
      * @param bytes a byte array
@@ -66,11 +158,51 @@ public final class HexUtils {
      */
     public static String bytesToHexString(byte[] bytes) {
         char[] hexChars = new char[bytes.length * 2];
-        for (int i = 0; i < bytes.length; i++) {
+        bytesToHexString(bytes, 0, bytes.length, hexChars, 0);
+        return new String(hexChars);
+    }
+    
+    /**
+     * Encodes bytes into a char array.
+     * @param bytes a byte array
+     * @param offset the offset of the first byte to be encoded
+     * @param length the number of bytes to be encoded
+     * @param dest the destination array (2 chars per byte)
+     * @param destOffset the offset in the destination array
+     */
+    public static void bytesToHexString(byte[] bytes, int offset, int length, char[] dest, int destOffset) {
+        for (int i = 0; i < length; i++) {
+            int v = bytes[offset + i] & 0xFF;
+            dest[destOffset + 2 * i] = HEX_CHARS[v >>> 4];
+            dest[destOffset + 2 * i + 1] = HEX_CHARS[v & 0x0F];
+        }
+    }
+    
+    /**
+     * Appends the hex string of bytes.
+     * @param bytes a byte array
+     * @param offset the offset of the first byte to be appended
+     * @param length the number of bytes to be appended
+     * @param dest the destination
+     */
+    public static void appendHexString(byte[] bytes, int offset, int length, Appendable dest) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
             int v = bytes[i] & 0xFF;
-            hexChars[i * 2] = HEX_CHARS[v >>> 4];
-            hexChars[i * 2 + 1] = HEX_CHARS[v & 0x0F];
+            dest.append(HEX_CHARS[v >>> 4]).append(HEX_CHARS[v & 0x0F]);
+        }
+    }
+    
+    /**
+     * Appends the hex string of bytes.
+     * @param bytes a byte array
+     * @param offset the offset of the first byte to be appended
+     * @param length the number of bytes to be appended
+     * @param dest the destination
+     */
+    public static void appendHexString(byte[] bytes, int offset, int length, StringBuilder dest) {
+        for (int i = offset; i < offset + length; i++) {
+            int v = bytes[i] & 0xFF;
+            dest.append(HEX_CHARS[v >>> 4]).append(HEX_CHARS[v & 0x0F]);
         }
-        return new String(hexChars);
     }
 }
\ No newline at end of file
@@ -0,0 +1,112 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.IOException;
+import org.nfctools.mf.MfAccess;
+import org.nfctools.mf.MfCardListener;
+import org.nfctools.mf.MfReaderWriter;
+import org.nfctools.mf.block.MfBlock;
+import org.nfctools.mf.card.MfCard;
+
+/**
+ * A reader/writer recording the latency and the outcome of each access into {@link ReaderMetrics}.
+ */
+public class InstrumentedReaderWriter implements MfReaderWriter, CardPresence {
+
+    /** The actual reader/writer */
+    private final MfReaderWriter delegate;
+    
+    /** The metrics */
+    private final ReaderMetrics metrics;
+    
+    /**
+     * Constructor.
+     * @param delegate the actual reader/writer
+     * @param metrics the metrics
+     */
+    public InstrumentedReaderWriter(MfReaderWriter delegate, ReaderMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+    
+    /**
+     * @param listener a card listener
+     * @param metrics the metrics
+     * @return a listener recording the processing time of each card and the accesses made by the listener
+     */
+    public static MfCardListener instrument(final MfCardListener listener, final ReaderMetrics metrics) {
+        return new MfCardListener() {
+            @Override
+            public void cardDetected(MfCard mfCard, MfReaderWriter mfReaderWriter) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    listener.cardDetected(mfCard, new InstrumentedReaderWriter(mfReaderWriter, metrics));
+                } finally {
+                    metrics.recordCard(System.nanoTime() - start);
+                }
+            }
+        };
+    }
+    
+    @Override
+    public MfBlock[] readBlock(MfAccess access) throws IOException {
+        long start = System.nanoTime();
+        try {
+            MfBlock[] blocks = delegate.readBlock(access);
+            metrics.recordRead(access, System.nanoTime() - start, null);
+            return blocks;
+        } catch (IOException | RuntimeException e) {
+            metrics.recordRead(access, System.nanoTime() - start, e);
+            throw e;
+        }
+    }
+    
+    @Override
+    public void writeBlock(MfAccess access, MfBlock... mfBlock) throws IOException {
+        long start = System.nanoTime();
+        try {
+            delegate.writeBlock(access, mfBlock);
+            metrics.recordWrite(access, System.nanoTime() - start, null);
+        } catch (IOException | RuntimeException e) {
+            metrics.recordWrite(access, System.nanoTime() - start, e);
+            throw e;
+        }
+    }
+    
+    @Override
+    public boolean isCardPresent() throws IOException {
+        return !(delegate instanceof CardPresence) || ((CardPresence) delegate).isCardPresent();
+    }
+    
+    @Override
+    public void setCardListener(MfCardListener mfCardListener) throws IOException {
+        delegate.setCardListener(mfCardListener);
+    }
+    
+    @Override
+    public void removeCardListener() {
+        delegate.removeCardListener();
+    }
+}
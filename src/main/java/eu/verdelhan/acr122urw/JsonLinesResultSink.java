@@ -0,0 +1,168 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.BufferedWriter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A sink writing the results as JSON Lines (one JSON object per card).
+ * <p>
+ * Each record holds the reader name, the card UID and type, the detection time, the reading
+ * duration, whether the card left the field during the reading, the blocks of the card (hex strings,
+ * null for unread blocks), the key of each sector (null for unread sectors) and the access conditions
+ * of each sector (C1 C2 C3 bits of the 4 groups of blocks, e.g. "000 000 000 001"; null when the trailer
+ * has not been read or holds invalid access bits). Records are buffered:
+ * they are flushed when the sink is flushed or closed.
+ */
+public class JsonLinesResultSink implements ResultSink, Flushable {
+
+    /** The output writer */
+    private final Writer out;
+    
+    /** The buffer of the current record */
+    private final StringBuilder sb = new StringBuilder(4096);
+    
+    /**
+     * Constructor.
+     * @param out the output stream
+     */
+    public JsonLinesResultSink(OutputStream out) {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+    }
+    
+    @Override
+    public synchronized void write(CardRecord record) throws IOException {
+        CardImage image = record.getImage();
+        CardLayout layout = image.getLayout();
+        sb.setLength(0);
+        sb.append("{\"reader\":");
+        appendString(record.getReaderName());
+        sb.append(",\"uid\":\"");
+        HexUtils.appendHexString(record.getCardId(), 0, record.getCardId().length, sb);
+        sb.append("\",\"type\":");
+        appendString(record.getTagType());
+        sb.append(",\"detectedAt\":").append(record.getDetectionTime());
+        sb.append(",\"durationMicros\":").append(TimeUnit.NANOSECONDS.toMicros(record.getDurationNanos()));
+        sb.append(",\"cardLost\":").append(image.isCardLost());
+        sb.append(",\"blocks\":[");
+        for (int sectorIndex = 0; sectorIndex < layout.getSectorCount(); sectorIndex++) {
+            for (int blockIndex = 0; blockIndex < layout.getBlockCount(sectorIndex); blockIndex++) {
+                if (sectorIndex > 0 || blockIndex > 0) {
+                    sb.append(',');
+                }
+                if (image.isBlockRead(sectorIndex, blockIndex)) {
+                    sb.append('"');
+                    HexUtils.appendHexString(image.getData(), layout.blockOffset(sectorIndex, blockIndex), CardImage.BLOCK_SIZE, sb);
+                    sb.append('"');
+                } else {
+                    sb.append("null");
+                }
+            }
+        }
+        sb.append("],\"keys\":[");
+        for (int sectorIndex = 0; sectorIndex < layout.getSectorCount(); sectorIndex++) {
+            if (sectorIndex > 0) {
+                sb.append(',');
+            }
+            SectorKey key = image.getSectorKey(sectorIndex);
+            if (key == null) {
+                sb.append("null");
+            } else {
+                sb.append("{\"type\":\"").append(key.getType())
+                        .append("\",\"key\":\"").append(key.getKeyHexString()).append("\"}");
+            }
+        }
+        sb.append("],\"access\":[");
+        for (int sectorIndex = 0; sectorIndex < layout.getSectorCount(); sectorIndex++) {
+            if (sectorIndex > 0) {
+                sb.append(',');
+            }
+            AccessConditions conditions = MifareUtils.getAccessConditions(image, sectorIndex);
+            if (conditions == null) {
+                sb.append("null");
+            } else {
+                sb.append('"').append(conditions).append('"');
+            }
+        }
+        sb.append("]}\n");
+        out.append(sb);
+    }
+    
+    @Override
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+    
+    /**
+     * Appends a JSON string.
+     * @param s the string (may be null)
+     */
+    private void appendString(String s) {
+        if (s == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.nfctools.mf.classic.Key;
+
+/**
+ * A ranking of the keys according to their past successes.
+ * <p>
+ * Successes are counted per key, key type and sector index (sites often use
+ * a different key per sector). Candidate keys are then tried by decreasing
+ * number of successes for the sector, then for the whole card, before the
+ * keys which never succeeded.
+ * This class is thread-safe.
+ */
+public class KeyRanking {
+
+    /** Index of the whole card counter (after the sector counters) */
+    private static final int TOTAL_INDEX = CardLayout.MAX_SECTOR_COUNT;
+    
+    /** Counter count per key type */
+    private static final int COUNTERS_PER_TYPE = CardLayout.MAX_SECTOR_COUNT + 1;
+    
+    /** Success counters (packed key -&gt; counters of key A, then counters of key B) */
+    private final Map<Long, long[]> successes = new HashMap<>();
+    
+    /**
+     * Records a successful read.
+     * @param sectorIndex the index of the read sector
+     * @param key the key which opened the sector
+     */
+    public synchronized void recordSuccess(int sectorIndex, SectorKey key) {
+        int offset = offset(key.getType());
+        long[] counters = counters(key.getKey());
+        counters[offset + sectorIndex]++;
+        counters[offset + TOTAL_INDEX]++;
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param key a key
+     * @return the number of times the key opened the sector
+     */
+    public synchronized long getSuccessCount(int sectorIndex, SectorKey key) {
+        long[] counters = successes.get(key.getKey());
+        return (counters == null) ? 0 : counters[offset(key.getType()) + sectorIndex];
+    }
+    
+    /**
+     * @param key a key
+     * @return the number of times the key opened a sector
+     */
+    public synchronized long getSuccessCount(SectorKey key) {
+        return getSuccessCount(TOTAL_INDEX, key);
+    }
+    
+    /**
+     * Ranks the keys which already succeeded, for a sector.
+     * <p>
+     * Keys are ordered by decreasing number of successes on the sector, then on the whole card.
+     * Keys which never succeeded are not part of the ranking: they should be tried afterwards,
+     * in their original order.
+     * @param sectorIndex the index of the sector to be read
+     * @param keys the candidate keys
+     * @return the ranked keys (only those of the candidate keys)
+     */
+    public synchronized List<SectorKey> rank(final int sectorIndex, KeyStore keys) {
+        List<SectorKey> ranked = new ArrayList<>();
+        for (Map.Entry<Long, long[]> entry : successes.entrySet()) {
+            long key = entry.getKey();
+            if (keys.contains(key)) {
+                long[] counters = entry.getValue();
+                for (Key type : Key.values()) {
+                    if (counters[offset(type) + TOTAL_INDEX] > 0) {
+                        ranked.add(new SectorKey(type, key));
+                    }
+                }
+            }
+        }
+        Collections.sort(ranked, new Comparator<SectorKey>() {
+            @Override
+            public int compare(SectorKey k1, SectorKey k2) {
+                int cmp = Long.compare(getSuccessCount(sectorIndex, k2), getSuccessCount(sectorIndex, k1));
+                return (cmp != 0) ? cmp : Long.compare(getSuccessCount(k2), getSuccessCount(k1));
+            }
+        });
+        return ranked;
+    }
+    
+    /**
+     * Loads the success counters from a file.
+     * @param file the file to be loaded
+     */
+    public synchronized void load(File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        for (String name : properties.stringPropertyNames()) {
+            // Format: KEY.TYPE=COUNT_SECTOR_0,COUNT_SECTOR_1,...
+            String[] nameParts = name.split("\\.");
+            String[] counts = properties.getProperty(name).split(",");
+            long key = (nameParts.length == 2) ? KeyStore.parseKey(nameParts[0]) : KeyStore.INVALID_KEY;
+            if (key == KeyStore.INVALID_KEY || counts.length > CardLayout.MAX_SECTOR_COUNT) {
+                continue;
+            }
+            Key type;
+            try {
+                type = Key.valueOf(nameParts[1]);
+            } catch (IllegalArgumentException iae) {
+                continue;
+            }
+            long[] counters = counters(key);
+            int offset = offset(type);
+            for (int sectorIndex = 0; sectorIndex < counts.length; sectorIndex++) {
+                try {
+                    long count = Long.parseLong(counts[sectorIndex].trim());
+                    counters[offset + sectorIndex] += count;
+                    counters[offset + TOTAL_INDEX] += count;
+                } catch (NumberFormatException nfe) {
+                    // Ignoring the counter
+                }
+            }
+        }
+    }
+    
+    /**
+     * Saves the success counters to a file.
+     * @param file the file to be written
+     */
+    public synchronized void save(File file) throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<Long, long[]> entry : successes.entrySet()) {
+            for (Key type : Key.values()) {
+                int offset = offset(type);
+                long[] counters = entry.getValue();
+                if (counters[offset + TOTAL_INDEX] > 0) {
+                    // Sectors beyond the 1K ones are only saved when used (4K cards)
+                    int sectorCount = CardLayout.MAX_SECTOR_COUNT;
+                    while (sectorCount > CardLayout.CLASSIC_1K.getSectorCount() && counters[offset + sectorCount - 1] == 0) {
+                        sectorCount--;
+                    }
+                    StringBuilder sb = new StringBuilder();
+                    for (int sectorIndex = 0; sectorIndex < sectorCount; sectorIndex++) {
+                        if (sectorIndex > 0) {
+                            sb.append(',');
+                        }
+                        sb.append(counters[offset + sectorIndex]);
+                    }
+                    properties.setProperty(KeyStore.toHexString(entry.getKey()) + "." + type, sb.toString());
+                }
+            }
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, "Key successes per sector");
+        }
+    }
+    
+    /**
+     * @param key a packed key
+     * @return the counters of the key (created if needed)
+     */
+    private long[] counters(long key) {
+        long[] counters = successes.get(key);
+        if (counters == null) {
+            counters = new long[2 * COUNTERS_PER_TYPE];
+            successes.put(key, counters);
+        }
+        return counters;
+    }
+    
+    /**
+     * @param type a key type
+     * @return the offset of the counters of the key type
+     */
+    private static int offset(Key type) {
+        return (type == Key.A) ? 0 : COUNTERS_PER_TYPE;
+    }
+}
@@ -0,0 +1,330 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An offline key search engine, checking candidate keys against captured authentications.
+ * <p>
+ * The candidates (a dictionary or a range of the 48-bit keyspace) are split into chunks
+ * searched in parallel on a fork/join pool, using all the cores by default. The search
+ * stops as soon as a key is found. This class is thread-safe.
+ */
+public class KeyRecovery {
+
+    /** Number of keys below which a chunk is searched sequentially */
+    private static final int CHUNK_SIZE = 1 << 16;
+    
+    /** Number of keys between two checks of the end of the search */
+    private static final int CANCELLATION_CHECK_INTERVAL = 1 << 10;
+    
+    /** The pool of the search workers */
+    private final ForkJoinPool pool;
+    
+    /**
+     * Constructor (one worker per core).
+     */
+    public KeyRecovery() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Constructor.
+     * @param parallelism the number of search workers
+     */
+    public KeyRecovery(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+    
+    /**
+     * @return the number of search workers
+     */
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+    
+    /**
+     * @param keys a key store
+     * @return the space of the keys of the store
+     */
+    public static KeySpace dictionary(final KeyStore keys) {
+        return new KeySpace() {
+            @Override
+            public long size() {
+                return keys.size();
+            }
+            
+            @Override
+            public long get(long index) {
+                return keys.get((int) index);
+            }
+        };
+    }
+    
+    /**
+     * @param first the first key of the range
+     * @param count the number of keys of the range
+     * @return the space of the consecutive keys of the range
+     */
+    public static KeySpace range(final long first, final long count) {
+        if (first < 0 || count < 0 || first + count > (1L << 48)) {
+            throw new IllegalArgumentException("Invalid key range: " + first + " + " + count);
+        }
+        return new KeySpace() {
+            @Override
+            public long size() {
+                return count;
+            }
+            
+            @Override
+            public long get(long index) {
+                return first + index;
+            }
+        };
+    }
+    
+    /**
+     * Searches the key of an authentication.
+     * @param trace the captured authentication
+     * @param keys the candidate keys
+     * @return the result of the search
+     */
+    public Result recover(AuthTrace trace, KeySpace keys) {
+        long start = System.nanoTime();
+        AtomicLong foundKey = new AtomicLong(KeyStore.INVALID_KEY);
+        AtomicLong testedKeys = new AtomicLong();
+        pool.invoke(new SearchTask(trace, keys, 0, keys.size(), foundKey, testedKeys));
+        return new Result(trace, foundKey.get(), testedKeys.get(), System.nanoTime() - start);
+    }
+    
+    /**
+     * Searches the keys of several authentications.
+     * <p>
+     * The keys found for the previous traces are tried first (sectors often share their keys).
+     * @param traces the captured authentications
+     * @param keys the candidate keys
+     * @return the results of the searches (same order as the traces)
+     */
+    public List<Result> recover(List<AuthTrace> traces, KeySpace keys) {
+        List<Result> results = new ArrayList<>();
+        KeyStore foundKeys = new KeyStore();
+        Crypto1 cipher = new Crypto1();
+        for (AuthTrace trace : traces) {
+            Result result = null;
+            long start = System.nanoTime();
+            for (int i = 0; i < foundKeys.size(); i++) {
+                if (trace.matches(cipher, foundKeys.get(i))) {
+                    result = new Result(trace, foundKeys.get(i), i + 1, System.nanoTime() - start);
+                    break;
+                }
+            }
+            if (result == null) {
+                result = recover(trace, keys);
+            }
+            if (result.isFound()) {
+                foundKeys.add(result.getKey());
+            }
+            results.add(result);
+        }
+        return results;
+    }
+    
+    /**
+     * Stops the search workers.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+    
+    /**
+     * A space of candidate keys.
+     */
+    public interface KeySpace {
+        
+        /**
+         * @return the number of keys
+         */
+        long size();
+        
+        /**
+         * @param index a key index
+         * @return the packed key
+         */
+        long get(long index);
+    }
+    
+    /**
+     * The result of a key search.
+     */
+    public static class Result {
+        
+        /** The captured authentication */
+        private final AuthTrace trace;
+        
+        /** The found key ({@link KeyStore#INVALID_KEY} if not found) */
+        private final long key;
+        
+        /** Number of tested keys */
+        private final long testedKeys;
+        
+        /** Duration of the search (in nanoseconds) */
+        private final long durationNanos;
+        
+        /**
+         * Constructor.
+         * @param trace the captured authentication
+         * @param key the found key
+         * @param testedKeys the number of tested keys
+         * @param durationNanos the duration of the search
+         */
+        Result(AuthTrace trace, long key, long testedKeys, long durationNanos) {
+            this.trace = trace;
+            this.key = key;
+            this.testedKeys = testedKeys;
+            this.durationNanos = durationNanos;
+        }
+        
+        /**
+         * @return the captured authentication
+         */
+        public AuthTrace getTrace() {
+            return trace;
+        }
+        
+        /**
+         * @return true if the key has been found, false otherwise
+         */
+        public boolean isFound() {
+            return key != KeyStore.INVALID_KEY;
+        }
+        
+        /**
+         * @return the found packed key ({@link KeyStore#INVALID_KEY} if not found)
+         */
+        public long getKey() {
+            return key;
+        }
+        
+        /**
+         * @return the number of tested keys
+         */
+        public long getTestedKeys() {
+            return testedKeys;
+        }
+        
+        /**
+         * @return the duration of the search (in nanoseconds)
+         */
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+        
+        @Override
+        public String toString() {
+            long keysPerSecond = (durationNanos == 0) ? 0 : testedKeys * TimeUnit.SECONDS.toNanos(1) / durationNanos;
+            return "Sector " + trace.getSectorIndex() + " key " + trace.getKeyType() + ": "
+                    + (isFound() ? KeyStore.toHexString(key) : "not found") + " ("
+                    + testedKeys + " keys tested in " + TimeUnit.NANOSECONDS.toMillis(durationNanos) + " ms, "
+                    + keysPerSecond + " keys/s)";
+        }
+    }
+    
+    /**
+     * A search over a chunk of the keyspace.
+     */
+    private static class SearchTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        /** The captured authentication */
+        private final AuthTrace trace;
+        
+        /** The candidate keys */
+        private final KeySpace keys;
+        
+        /** The index of the first key of the chunk */
+        private final long from;
+        
+        /** The index after the last key of the chunk */
+        private final long to;
+        
+        /** The found key, shared by all the tasks of the search */
+        private final AtomicLong foundKey;
+        
+        /** The number of tested keys, shared by all the tasks of the search */
+        private final AtomicLong testedKeys;
+        
+        /**
+         * Constructor.
+         * @param trace the captured authentication
+         * @param keys the candidate keys
+         * @param from the index of the first key of the chunk
+         * @param to the index after the last key of the chunk
+         * @param foundKey the found key
+         * @param testedKeys the number of tested keys
+         */
+        SearchTask(AuthTrace trace, KeySpace keys, long from, long to, AtomicLong foundKey, AtomicLong testedKeys) {
+            this.trace = trace;
+            this.keys = keys;
+            this.from = from;
+            this.to = to;
+            this.foundKey = foundKey;
+            this.testedKeys = testedKeys;
+        }
+        
+        @Override
+        protected void compute() {
+            if (foundKey.get() != KeyStore.INVALID_KEY) {
+                // Found by another task: no need to split further
+                return;
+            }
+            if (to - from > CHUNK_SIZE) {
+                long middle = (from + to) >>> 1;
+                invokeAll(new SearchTask(trace, keys, from, middle, foundKey, testedKeys),
+                        new SearchTask(trace, keys, middle, to, foundKey, testedKeys));
+                return;
+            }
+            Crypto1 cipher = new Crypto1();
+            long index = from;
+            while (index < to) {
+                if ((index - from) % CANCELLATION_CHECK_INTERVAL == 0 && foundKey.get() != KeyStore.INVALID_KEY) {
+                    // Found by another task
+                    break;
+                }
+                long key = keys.get(index++);
+                if (trace.matches(cipher, key)) {
+                    foundKey.compareAndSet(KeyStore.INVALID_KEY, key);
+                    break;
+                }
+            }
+            testedKeys.addAndGet(index - from);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A store of Mifare Classic keys.
+ * <p>
+ * Keys are validated and de-duplicated once when added. Each key is kept three times: packed
+ * in a long (8 bytes, the 6 key bytes in the low bits) of the insertion-ordered array, as the
+ * 6-byte array handed to the reader (built once, when the key is added), and in the hash set
+ * used for the de-duplication. Once all the keys are added, a store can be shared by several readers.
+ */
+public class KeyStore {
+
+    /** Marker of an invalid key */
+    public static final long INVALID_KEY = -1L;
+    
+    /** Key length (in bytes) */
+    private static final int KEY_LENGTH = 6;
+    
+    /** The packed keys, in insertion order */
+    private long[] keys;
+    
+    /** The key bytes */
+    private byte[][] keyBytes;
+    
+    /** Number of keys */
+    private int size;
+    
+    /** The set of the stored keys */
+    private final LongHashSet index;
+    
+    /**
+     * Constructor.
+     */
+    public KeyStore() {
+        this(16);
+    }
+    
+    /**
+     * Constructor.
+     * @param expectedSize the expected number of keys
+     */
+    public KeyStore(int expectedSize) {
+        keys = new long[Math.max(expectedSize, 16)];
+        keyBytes = new byte[keys.length][];
+        index = new LongHashSet(expectedSize);
+    }
+    
+    /**
+     * Constructor.
+     * @param keys the key hex strings (invalid ones are ignored)
+     */
+    public KeyStore(List<String> keys) {
+        this(keys.size());
+        addAll(keys);
+    }
+    
+    /**
+     * @param s a key hex string
+     * @return the packed key, {@link #INVALID_KEY} if the string is not a valid key
+     */
+    public static long parseKey(CharSequence s) {
+        if (s == null || s.length() != 2 * KEY_LENGTH) {
+            return INVALID_KEY;
+        }
+        long key = 0;
+        for (int i = 0; i < 2 * KEY_LENGTH; i++) {
+            int digit = HexUtils.digit(s.charAt(i));
+            if (digit < 0) {
+                return INVALID_KEY;
+            }
+            key = (key << 4) | digit;
+        }
+        return key;
+    }
+    
+    /**
+     * @param key a packed key
+     * @return the key bytes
+     */
+    public static byte[] toBytes(long key) {
+        byte[] bytes = new byte[KEY_LENGTH];
+        for (int i = KEY_LENGTH - 1; i >= 0; i--) {
+            bytes[i] = (byte) key;
+            key >>>= 8;
+        }
+        return bytes;
+    }
+    
+    /**
+     * @param keyBytes the key bytes
+     * @return the packed key, {@link #INVALID_KEY} if the bytes are not a valid key
+     */
+    public static long toKey(byte[] keyBytes) {
+        if (keyBytes == null || keyBytes.length != KEY_LENGTH) {
+            return INVALID_KEY;
+        }
+        long key = 0;
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            key = (key << 8) | (keyBytes[i] & 0xFF);
+        }
+        return key;
+    }
+    
+    /**
+     * @param key a packed key
+     * @return the key hex string
+     */
+    public static String toHexString(long key) {
+        return HexUtils.bytesToHexString(toBytes(key));
+    }
+    
+    /**
+     * @param key a packed key
+     * @return true if the key has been added, false if it was already stored
+     */
+    public boolean add(long key) {
+        if (key < 0 || key >= (1L << (8 * KEY_LENGTH))) {
+            throw new IllegalArgumentException("Invalid key: " + key);
+        }
+        if (!index.add(key)) {
+            return false;
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            keyBytes = Arrays.copyOf(keyBytes, size * 2);
+        }
+        keys[size] = key;
+        keyBytes[size] = toBytes(key);
+        size++;
+        return true;
+    }
+    
+    /**
+     * @param key a key hex string
+     * @return true if the key has been added, false if it is invalid or already stored
+     */
+    public boolean add(String key) {
+        long k = parseKey(key);
+        return (k != INVALID_KEY) && add(k);
+    }
+    
+    /**
+     * @param keys the key hex strings (invalid ones are ignored)
+     * @return the number of added keys
+     */
+    public int addAll(List<String> keys) {
+        int added = 0;
+        for (String key : keys) {
+            if (add(key)) {
+                added++;
+            }
+        }
+        return added;
+    }
+    
+    /**
+     * Loads keys from a dictionary file.
+     * <p>
+     * The file contains one hex key per line. Empty lines and comments (starting with #) are ignored,
+     * as well as anything following the key on a line.
+     * @param file the dictionary file
+     * @return the number of added keys
+     */
+    public int load(File file) throws IOException {
+        int added = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() >= 2 * KEY_LENGTH && line.charAt(0) != '#'
+                        && (line.length() == 2 * KEY_LENGTH || !Character.isLetterOrDigit(line.charAt(2 * KEY_LENGTH)))) {
+                    long key = parseKey(line.subSequence(0, 2 * KEY_LENGTH));
+                    if (key != INVALID_KEY && add(key)) {
+                        added++;
+                    }
+                }
+            }
+        }
+        return added;
+    }
+    
+    /**
+     * @param key a packed key
+     * @return true if the key is stored, false otherwise
+     */
+    public boolean contains(long key) {
+        return index.contains(key);
+    }
+    
+    /**
+     * @return the number of keys
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * @param i a key index
+     * @return the packed key
+     */
+    public long get(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size);
+        }
+        return keys[i];
+    }
+    
+    /**
+     * @param i a key index
+     * @return the key bytes (must not be modified)
+     */
+    public byte[] getKeyBytes(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size);
+        }
+        return keyBytes[i];
+    }
+}
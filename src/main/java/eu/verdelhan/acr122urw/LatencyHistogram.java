@@ -0,0 +1,152 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram.
+ * <p>
+ * Latencies (in nanoseconds) are counted in power-of-two buckets: bucket i holds the
+ * latencies from 2^(i-1) (inclusive) to 2^i (exclusive). Percentiles are thus estimated
+ * with an error of at most a factor 2, which is enough to spot a degrading reader.
+ */
+public class LatencyHistogram {
+
+    /** Number of buckets */
+    private static final int BUCKET_COUNT = 64;
+    
+    /** The bucket counts */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    
+    /** The total of the latencies (in nanoseconds) */
+    private final AtomicLong totalNanos = new AtomicLong();
+    
+    /** The maximum latency (in nanoseconds) */
+    private final AtomicLong maxNanos = new AtomicLong();
+    
+    /**
+     * Records a latency.
+     * @param nanos the latency (in nanoseconds)
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucketIndex(nanos));
+        totalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            // Retrying
+        }
+    }
+    
+    /**
+     * @return the number of recorded latencies
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+    
+    /**
+     * @param unit the time unit
+     * @return the mean latency
+     */
+    public double getMean(TimeUnit unit) {
+        long count = getCount();
+        return (count == 0) ? 0 : (double) totalNanos.get() / count / unit.toNanos(1);
+    }
+    
+    /**
+     * @param unit the time unit
+     * @return the maximum latency
+     */
+    public long getMax(TimeUnit unit) {
+        return unit.convert(maxNanos.get(), TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * @param percentile the percentile (between 0 and 100)
+     * @param unit the time unit
+     * @return the upper bound of the bucket holding the percentile, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile, TimeUnit unit) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                long upperBound = (i == BUCKET_COUNT - 1) ? Long.MAX_VALUE : (1L << i) - 1;
+                return unit.convert(Math.min(upperBound, maxNanos.get()), TimeUnit.NANOSECONDS);
+            }
+        }
+        return getMax(unit);
+    }
+    
+    /**
+     * Resets the histogram.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1fus p50=%dus p99=%dus max=%dus", getCount(),
+                getMean(TimeUnit.MICROSECONDS),
+                getPercentile(50, TimeUnit.MICROSECONDS),
+                getPercentile(99, TimeUnit.MICROSECONDS),
+                getMax(TimeUnit.MICROSECONDS));
+    }
+    
+    /**
+     * @param nanos a latency (in nanoseconds)
+     * @return the index of the bucket of the latency
+     */
+    private static int bucketIndex(long nanos) {
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+}
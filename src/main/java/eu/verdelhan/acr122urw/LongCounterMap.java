@@ -0,0 +1,200 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A map from primitive longs to counters (open addressing, linear probing).
+ * <p>
+ * Used for the counters updated on every access, to avoid boxing the keys. The lookups and the
+ * increments are lock-free, only the insertion of a new key takes a lock. The counters of a key
+ * are kept when the table grows, so that no concurrent increment is lost.
+ */
+class LongCounterMap {
+
+    /** Maximum load factor */
+    private static final float LOAD_FACTOR = 0.5f;
+    
+    /** Number of counters per key */
+    private final int counterCount;
+    
+    /** The table (replaced when it grows) */
+    private volatile Table table = new Table(16);
+    
+    /** The counters of 0 (null if absent) */
+    private volatile AtomicLongArray zeroCounters;
+    
+    /**
+     * Constructor.
+     * @param counterCount the number of counters per key
+     */
+    LongCounterMap(int counterCount) {
+        this.counterCount = counterCount;
+    }
+    
+    /**
+     * @param key a key
+     * @return the counters of the key, null if absent
+     */
+    AtomicLongArray get(long key) {
+        if (key == 0) {
+            return zeroCounters;
+        }
+        Table t = table;
+        int mask = t.keys.length() - 1;
+        int i = LongHashSet.hash(key) & mask;
+        long slot;
+        while ((slot = t.keys.get(i)) != 0) {
+            if (slot == key) {
+                return t.counters.get(i);
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+    
+    /**
+     * @param key a key
+     * @return the counters of the key, created if absent
+     */
+    AtomicLongArray getOrCreate(long key) {
+        AtomicLongArray counters = get(key);
+        return (counters == null) ? create(key) : counters;
+    }
+    
+    /**
+     * @return the keys of the map
+     */
+    synchronized long[] keys() {
+        Table t = table;
+        long[] keys = new long[t.size + ((zeroCounters == null) ? 0 : 1)];
+        int n = 0;
+        if (zeroCounters != null) {
+            keys[n++] = 0;
+        }
+        for (int i = 0; i < t.keys.length(); i++) {
+            if (t.keys.get(i) != 0) {
+                keys[n++] = t.keys.get(i);
+            }
+        }
+        return keys;
+    }
+    
+    /**
+     * Removes all the keys.
+     */
+    synchronized void clear() {
+        table = new Table(16);
+        zeroCounters = null;
+    }
+    
+    /**
+     * @param key a key
+     * @return the counters of the key, created if absent
+     */
+    private synchronized AtomicLongArray create(long key) {
+        if (key == 0) {
+            if (zeroCounters == null) {
+                zeroCounters = new AtomicLongArray(counterCount);
+            }
+            return zeroCounters;
+        }
+        Table t = table;
+        int mask = t.keys.length() - 1;
+        int i = LongHashSet.hash(key) & mask;
+        while (t.keys.get(i) != 0) {
+            if (t.keys.get(i) == key) {
+                // Inserted by another thread
+                return t.counters.get(i);
+            }
+            i = (i + 1) & mask;
+        }
+        AtomicLongArray counters = new AtomicLongArray(counterCount);
+        if (t.size + 1 > t.keys.length() * LOAD_FACTOR) {
+            t = t.grow();
+            t.put(key, counters);
+            table = t;
+        } else {
+            // The counters are published before the key, for the lock-free lookups
+            t.counters.set(i, counters);
+            t.keys.set(i, key);
+            t.size++;
+        }
+        return counters;
+    }
+    
+    /**
+     * The slots of the map.
+     */
+    private static class Table {
+        
+        /** The keys (0 marks a free slot) */
+        final AtomicLongArray keys;
+        
+        /** The counters of the keys */
+        final AtomicReferenceArray<AtomicLongArray> counters;
+        
+        /** Number of keys (guarded by the map) */
+        int size;
+        
+        /**
+         * Constructor.
+         * @param capacity the slot count (power of 2)
+         */
+        Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            counters = new AtomicReferenceArray<>(capacity);
+        }
+        
+        /**
+         * @param key a key missing from the table
+         * @param keyCounters the counters of the key
+         */
+        void put(long key, AtomicLongArray keyCounters) {
+            int mask = keys.length() - 1;
+            int i = LongHashSet.hash(key) & mask;
+            while (keys.get(i) != 0) {
+                i = (i + 1) & mask;
+            }
+            counters.set(i, keyCounters);
+            keys.set(i, key);
+            size++;
+        }
+        
+        /**
+         * @return a table twice as large, holding the same keys and counters
+         */
+        Table grow() {
+            Table t = new Table(keys.length() * 2);
+            for (int i = 0; i < keys.length(); i++) {
+                if (keys.get(i) != 0) {
+                    t.put(keys.get(i), counters.get(i));
+                }
+            }
+            return t;
+        }
+    }
+}
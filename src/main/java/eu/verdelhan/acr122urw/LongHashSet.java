@@ -0,0 +1,166 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.util.Arrays;
+
+/**
+ * A hash set of primitive longs (open addressing, linear probing).
+ * <p>
+ * Used for large sets (keys, UIDs) to avoid boxing. This class is not thread-safe.
+ */
+public class LongHashSet {
+
+    /** Maximum load factor */
+    private static final float LOAD_FACTOR = 0.5f;
+    
+    /** The slots (0 marks a free slot) */
+    private long[] slots;
+    
+    /** True if the set contains 0 */
+    private boolean containsZero;
+    
+    /** Number of elements */
+    private int size;
+    
+    /**
+     * Constructor.
+     */
+    public LongHashSet() {
+        this(16);
+    }
+    
+    /**
+     * Constructor.
+     * @param expectedSize the expected number of elements
+     */
+    public LongHashSet(int expectedSize) {
+        slots = new long[capacityFor(expectedSize)];
+    }
+    
+    /**
+     * @param value a value
+     * @return true if the value has been added, false if it was already in the set
+     */
+    public boolean add(long value) {
+        if (value == 0) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int mask = slots.length - 1;
+        int i = hash(value) & mask;
+        while (slots[i] != 0) {
+            if (slots[i] == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        slots[i] = value;
+        size++;
+        if (size > slots.length * LOAD_FACTOR) {
+            rehash(slots.length * 2);
+        }
+        return true;
+    }
+    
+    /**
+     * @param value a value
+     * @return true if the set contains the value, false otherwise
+     */
+    public boolean contains(long value) {
+        if (value == 0) {
+            return containsZero;
+        }
+        int mask = slots.length - 1;
+        int i = hash(value) & mask;
+        while (slots[i] != 0) {
+            if (slots[i] == value) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+    
+    /**
+     * @return the number of elements
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Removes all the elements.
+     */
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(slots, 0);
+            containsZero = false;
+            size = 0;
+        }
+    }
+    
+    /**
+     * @param newCapacity the new slot count (power of 2)
+     */
+    private void rehash(int newCapacity) {
+        long[] oldSlots = slots;
+        slots = new long[newCapacity];
+        int mask = newCapacity - 1;
+        for (long value : oldSlots) {
+            if (value != 0) {
+                int i = hash(value) & mask;
+                while (slots[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = value;
+            }
+        }
+    }
+    
+    /**
+     * @param expectedSize the expected number of elements
+     * @return a slot count (power of 2) holding the elements under the load factor
+     */
+    private static int capacityFor(int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+    
+    /**
+     * @param value a value
+     * @return the mixed hash of the value
+     */
+    static int hash(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -23,13 +23,18 @@
  */
 package eu.verdelhan.acr122urw;
 
+import static eu.verdelhan.acr122urw.HexUtils.appendHexString;
 import static eu.verdelhan.acr122urw.HexUtils.bytesToHexString;
 import static eu.verdelhan.acr122urw.HexUtils.hexStringToBytes;
 import static eu.verdelhan.acr122urw.HexUtils.isHexString;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.zip.CRC32;
 import javax.smartcardio.CardException;
+import javax.smartcardio.CardNotPresentException;
 import org.nfctools.mf.MfAccess;
 import org.nfctools.mf.MfException;
 import org.nfctools.mf.MfReaderWriter;
@@ -37,7 +42,6 @@ import org.nfctools.mf.block.BlockResolver;
 import org.nfctools.mf.block.MfBlock;
 import org.nfctools.mf.card.MfCard;
 import org.nfctools.mf.classic.Key;
-import org.nfctools.mf.classic.MemoryLayout;
 
 /**
  * Mifare utility class.
@@ -45,10 +49,16 @@ import org.nfctools.mf.classic.MemoryLayout;
 public final class MifareUtils {
 
     /** Mifare Classic 1K sector count */
-    public static final int MIFARE_1K_SECTOR_COUNT = 16;
+    public static final int MIFARE_1K_SECTOR_COUNT = CardLayout.CLASSIC_1K.getSectorCount();
     
-    /** Mifare Classic 1K block count (per sector) */
-    public static final int MIFARE_1K_PER_SECTOR_BLOCK_COUNT = 4;
+    /** Mifare Classic block count (per sector) */
+    public static final int MIFARE_1K_PER_SECTOR_BLOCK_COUNT = CardLayout.SMALL_SECTOR_BLOCK_COUNT;
+    
+    /** Key types, in the order they are tried */
+    private static final Key[] KEY_TYPES = { Key.A, Key.B };
+    
+    /** Rejected keys in a row between two presence probes of a key sweep */
+    private static final int PRESENCE_PROBE_INTERVAL = 16;
     
     /** Common Mifare Classic 1K keys */
     public static final List<String> COMMON_MIFARE_CLASSIC_1K_KEYS = Arrays.asList(
@@ -88,7 +98,7 @@ public final class MifareUtils {
     
     /**
      * @param s a string
-     * @return true if the provided string is a valid Mifare Classic 1K block index, false otherwise
+     * @return true if the provided string is a valid Mifare Classic block index, false otherwise
      */
     public static boolean isValidMifareClassic1KBlockIndex(String s) {
         try {
@@ -99,21 +109,245 @@ public final class MifareUtils {
         }
     }
     
+    /**
+     * @param sector a sector index string
+     * @param block a block index string
+     * @return true if the provided strings are a valid block address on a Mifare Classic card (up to 4K), false otherwise
+     */
+    public static boolean isValidMifareClassicBlockIndex(String sector, String block) {
+        try {
+            return CardLayout.CLASSIC_4K.isValidBlockIndex(Integer.parseInt(sector), Integer.parseInt(block));
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+    }
+    
     /**
      * Dumps a Mifare Classic 1K card.
      * @param reader the reader
      * @param card the card
      * @param keys the keys to be tested for reading
+     * @deprecated the layout is now picked from the card type, use {@link #dumpMifareClassicCard(MfReaderWriter, MfCard, List)}
      */
-    public static void dumpMifareClassic1KCard(MfReaderWriter reader, MfCard card, List<String> keys)
-            throws CardException {
-        for (int sectorIndex = 0; sectorIndex < MIFARE_1K_SECTOR_COUNT; sectorIndex++) {
+    @Deprecated
+    public static void dumpMifareClassic1KCard(MfReaderWriter reader, MfCard card, List<String> keys) {
+        dumpMifareClassicCard(reader, card, keys);
+    }
+    
+    /**
+     * Dumps a Mifare Classic card.
+     * @param reader the reader
+     * @param card the card
+     * @param keys the keys to be tested for reading
+     */
+    public static void dumpMifareClassicCard(MfReaderWriter reader, MfCard card, List<String> keys) {
+        dumpMifareClassicCard(reader, card, keys, null);
+    }
+    
+    /**
+     * Dumps a Mifare Classic card.
+     * @param reader the reader
+     * @param card the card
+     * @param keys the keys to be tested for reading
+     * @param cache the cache of the sector keys of already seen cards (may be null)
+     */
+    public static void dumpMifareClassicCard(MfReaderWriter reader, MfCard card, List<String> keys, SectorKeyCache cache) {
+        dumpMifareClassicCard(reader, card, keys, cache, null);
+    }
+    
+    /**
+     * Dumps a Mifare Classic card.
+     * @param reader the reader
+     * @param card the card
+     * @param keys the keys to be tested for reading
+     * @param cache the cache of the sector keys of already seen cards (may be null)
+     * @param ranking the ranking used to order the keys (may be null)
+     */
+    public static void dumpMifareClassicCard(MfReaderWriter reader, MfCard card, List<String> keys, SectorKeyCache cache, KeyRanking ranking) {
+        dumpMifareClassicCard(reader, card, new KeyStore(keys), cache, ranking);
+    }
+    
+    /**
+     * Dumps a Mifare Classic card.
+     * @param reader the reader
+     * @param card the card
+     * @param keys the keys to be tested for reading
+     * @param cache the cache of the sector keys of already seen cards (may be null)
+     * @param ranking the ranking used to order the keys (may be null)
+     */
+    public static void dumpMifareClassicCard(MfReaderWriter reader, MfCard card, KeyStore keys, SectorKeyCache cache, KeyRanking ranking) {
+        printCardImage(readMifareClassicCard(reader, card, keys, cache, ranking));
+    }
+    
+    /**
+     * Reads a Mifare Classic card.
+     * <p>
+     * The memory layout (Mini, 1K or 4K) is picked from the card type. Sectors are read in one
+     * go with the first key which opens them. The key of a sector is searched once and then
+     * reused for all the blocks of the sector (4 or 16 blocks).
+     * <p>
+     * Rejected keys move on to the next key, but the reading stops as soon as the card leaves
+     * the field (or the transmission fails): the partial image is then returned, flagged as
+     * {@link CardImage#isCardLost() card lost}. Since some readers report a removed card as a failed
+     * authentication, the presence of the card is probed (see {@link CardPresence}) every few
+     * rejected keys in a row, and when no key opens the blocks.
+     * @param reader the reader
+     * @param card the card
+     * @param keys the keys to be tested for reading
+     * @param cache the cache of the sector keys of already seen cards (may be null)
+     * @param ranking the ranking used to order the keys (may be null)
+     * @return the image of the card
+     */
+    public static CardImage readMifareClassicCard(MfReaderWriter reader, MfCard card, KeyStore keys, SectorKeyCache cache, KeyRanking ranking) {
+        return readMifareClassicCard(reader, card, keys, cache, ranking, null, null);
+    }
+    
+    /**
+     * Reads a Mifare Classic card, reusing a previous image of the card.
+     * <p>
+     * The sectors which are not volatile, and which were completely read in the previous image,
+     * are copied from it without any exchange with the card. The other sectors are read as by
+     * {@link #readMifareClassicCard(MfReaderWriter, MfCard, KeyStore, SectorKeyCache, KeyRanking)},
+     * the key which opened them in the previous image being tried first.
+     * @param reader the reader
+     * @param card the card
+     * @param keys the keys to be tested for reading
+     * @param cache the cache of the sector keys of already seen cards (may be null)
+     * @param ranking the ranking used to order the keys (may be null)
+     * @param previous the previous image of the card (may be null)
+     * @param volatileSectors the sectors to be read even if they are in the previous image (null for all the sectors)
+     * @return the image of the card
+     */
+    public static CardImage readMifareClassicCard(MfReaderWriter reader, MfCard card, KeyStore keys, SectorKeyCache cache, KeyRanking ranking,
+            CardImage previous, BitSet volatileSectors) {
+        return readMifareClassicCard(reader, card, keys, cache, ranking, previous, volatileSectors, new CardImage(CardLayout.forCard(card)));
+    }
+    
+    /**
+     * Reads a Mifare Classic card into a provided (e.g. pooled) image.
+     * @param reader the reader
+     * @param card the card
+     * @param keys the keys to be tested for reading
+     * @param cache the cache of the sector keys of already seen cards (may be null)
+     * @param ranking the ranking used to order the keys (may be null)
+     * @param previous the previous image of the card (may be null)
+     * @param volatileSectors the sectors to be read even if they are in the previous image (null for all the sectors)
+     * @param image the empty image to be filled, with the layout of the card
+     * @return the image of the card
+     * @see #readMifareClassicCard(MfReaderWriter, MfCard, KeyStore, SectorKeyCache, KeyRanking, CardImage, BitSet)
+     */
+    public static CardImage readMifareClassicCard(MfReaderWriter reader, MfCard card, KeyStore keys, SectorKeyCache cache, KeyRanking ranking,
+            CardImage previous, BitSet volatileSectors, CardImage image) {
+        if (image.getLayout() != CardLayout.forCard(card)) {
+            throw new IllegalArgumentException("The image layout doesn't match the card type");
+        }
+        if (previous != null && previous.getLayout() != image.getLayout()) {
+            // Not the same card type
+            previous = null;
+        }
+        LongHashSet tried = new LongHashSet();
+        try {
+            readMifareClassicSectors(reader, card, keys, cache, ranking, previous, volatileSectors, tried, image);
+        } catch (CardException ce) {
+            image.setCardLost();
+        }
+        return image;
+    }
+    
+    /**
+     * Reads the sectors of a Mifare Classic card into a card image.
+     * @param reader the reader
+     * @param card the card
+     * @param keys the keys to be tested for reading
+     * @param cache the cache of the sector keys of already seen cards (may be null)
+     * @param ranking the ranking used to order the keys (may be null)
+     * @param previous the previous image of the card (may be null)
+     * @param volatileSectors the sectors to be read even if they are in the previous image (null for all the sectors)
+     * @param tried a scratch set for the already tested keys
+     * @param image the card image to be filled
+     */
+    private static void readMifareClassicSectors(MfReaderWriter reader, MfCard card, KeyStore keys, SectorKeyCache cache, KeyRanking ranking,
+            CardImage previous, BitSet volatileSectors, LongHashSet tried, CardImage image) throws CardException {
+        CardLayout layout = image.getLayout();
+        for (int sectorIndex = 0; sectorIndex < layout.getSectorCount(); sectorIndex++) {
             // For each sector...
-            for (int blockIndex = 0; blockIndex < MIFARE_1K_PER_SECTOR_BLOCK_COUNT; blockIndex++) {
-                // For each block...
-                dumpMifareClassic1KBlock(reader, card, sectorIndex, blockIndex, keys);
+            if (previous != null && volatileSectors != null && !volatileSectors.get(sectorIndex)
+                    && image.copySector(previous, sectorIndex)) {
+                // Unchanged since the previous reading
+                continue;
+            }
+            List<SectorKey> preferred = new ArrayList<>();
+            SectorKey previousKey = (previous == null) ? null : previous.getSectorKey(sectorIndex);
+            if (previousKey != null) {
+                preferred.add(previousKey);
+            }
+            SectorKey cachedKey = (cache == null) ? null : cache.get(card.getId(), sectorIndex);
+            if (cachedKey != null) {
+                preferred.add(cachedKey);
+            }
+            if (ranking != null) {
+                preferred.addAll(ranking.rank(sectorIndex, keys));
+            }
+            AccessConditions previousConditions = (previous == null) ? null : getAccessConditions(previous, sectorIndex);
+            SectorKey sectorKey = readMifareClassicSector(reader, card, sectorIndex, keys, preferred, previousConditions, tried, image);
+            if (sectorKey != null) {
+                // Sector read
+                if (cache != null && sectorKey != cachedKey) {
+                    cache.put(card.getId(), sectorIndex, sectorKey);
+                }
+                if (ranking != null) {
+                    ranking.recordSuccess(sectorIndex, sectorKey);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Prints the image of a Mifare Classic card.
+     * @param image the card image
+     */
+    public static void printCardImage(CardImage image) {
+        StringBuilder sb = new StringBuilder();
+        appendCardImage(image, sb);
+        System.out.print(sb);
+    }
+    
+    /**
+     * Appends the text representation of a Mifare Classic card image (one line per block).
+     * <p>
+     * When the trailer of a sector has been read, the permissions decoded from its access bits
+     * are appended to the lines of the sector (e.g. "[read A/B, write B]").
+     * @param image the card image
+     * @param sb the string builder
+     */
+    public static void appendCardImage(CardImage image, StringBuilder sb) {
+        byte[] data = image.getData();
+        CardLayout layout = image.getLayout();
+        for (int sectorIndex = 0; sectorIndex < layout.getSectorCount(); sectorIndex++) {
+            AccessConditions conditions = getAccessConditions(image, sectorIndex);
+            for (int blockIndex = 0; blockIndex < layout.getBlockCount(sectorIndex); blockIndex++) {
+                // "Sector %02d block %02d: ", without the formatter
+                sb.append("Sector ").append((char) ('0' + sectorIndex / 10)).append((char) ('0' + sectorIndex % 10))
+                        .append(" block ").append((char) ('0' + blockIndex / 10)).append((char) ('0' + blockIndex % 10))
+                        .append(": ");
+                if (image.isBlockRead(sectorIndex, blockIndex)) {
+                    appendHexString(data, layout.blockOffset(sectorIndex, blockIndex), CardImage.BLOCK_SIZE, sb);
+                    SectorKey key = image.getBlockKey(sectorIndex, blockIndex);
+                    sb.append(" (Key ").append(key.getType()).append(": ");
+                    appendHexString(key.getKeyBytes(), 0, key.getKeyBytes().length, sb);
+                    sb.append(image.isSectorStored(sectorIndex) ? ", stored)" : ")");
+                } else {
+                    sb.append("<Failed to read block>");
+                }
+                if (conditions != null) {
+                    sb.append(" [").append(conditions.describe(layout, sectorIndex, blockIndex)).append(']');
+                }
+                sb.append('\n');
             }
         }
+        if (image.isCardLost()) {
+            sb.append("Card removed during the dump: partial image\n");
+        }
     }
     
     /**
@@ -124,9 +358,30 @@ public final class MifareUtils {
      * @param blockId the block to be written
      * @param key the key to be used for writing
      * @param dataString the data hex string to be written
+     * @deprecated the layout is now picked from the card type, use {@link #writeToMifareClassicCard(MfReaderWriter, MfCard, int, int, String, String)}
      */
+    @Deprecated
     public static void writeToMifareClassic1KCard(MfReaderWriter reader, MfCard card, int sectorId, int blockId, String key, String dataString)
             throws CardException {
+        writeToMifareClassicCard(reader, card, sectorId, blockId, key, dataString);
+    }
+    
+    /**
+     * Write data to a Mifare Classic card.
+     * @param reader the reader
+     * @param card the card
+     * @param sectorId the sector to be written
+     * @param blockId the block to be written
+     * @param key the key to be used for writing
+     * @param dataString the data hex string to be written
+     */
+    public static void writeToMifareClassicCard(MfReaderWriter reader, MfCard card, int sectorId, int blockId, String key, String dataString)
+            throws CardException {
+        CardLayout layout = CardLayout.forCard(card);
+        if (!layout.isValidBlockIndex(sectorId, blockId)) {
+            System.out.println("Sector " + sectorId + " block " + blockId + " doesn't exist on a " + layout + " card.");
+            return;
+        }
         if (!isValidMifareClassic1KKey(key)) {
             System.out.println("The key " + key + "is not valid.");
             return;
@@ -139,11 +394,11 @@ public final class MifareUtils {
         byte[] keyBytes = hexStringToBytes(key);
         // Reading with key A
         MfAccess access = new MfAccess(card, sectorId, blockId, Key.A, keyBytes);
-        String blockData = readMifareClassic1KBlock(reader, access);
+        String blockData = readMifareClassicBlock(reader, access);
         if (blockData == null) {
             // Reading with key B
             access = new MfAccess(card, sectorId, blockId, Key.B, keyBytes);
-            blockData = readMifareClassic1KBlock(reader, access);
+            blockData = readMifareClassicBlock(reader, access);
         }
         System.out.print("Old block data: ");
         if (blockData == null) {
@@ -152,100 +407,849 @@ public final class MifareUtils {
         } else {
             // Block read
             System.out.println(blockData + " (Key " + access.getKey() + ": " + key + ")");
+            if (blockData.equalsIgnoreCase(dataString)) {
+                // Nothing to be written
+                System.out.println("Block already up to date");
+                return;
+            }
 
             // Writing with same key
             boolean written = false;
             try {
                 byte[] data = hexStringToBytes(dataString);
-                MfBlock block = BlockResolver.resolveBlock(MemoryLayout.CLASSIC_1K, sectorId, blockId, data);
-                written = writeMifareClassic1KBlock(reader, access, block);
+                MfBlock block = BlockResolver.resolveBlock(layout.getMemoryLayout(), sectorId, blockId, data);
+                written = writeMifareClassicBlock(reader, access, block);
             } catch (MfException me) {
                 System.out.println(me.getMessage());
             }
             if (written) {
-                blockData = readMifareClassic1KBlock(reader, access);
+                blockData = readMifareClassicBlock(reader, access);
                 System.out.print("New block data: ");
                 if (blockData == null) {
                     // Failed to read block
                     System.out.println("<Failed to read block>");
                 } else {
-                    // Block read
-                    System.out.println(blockData + " (Key " + access.getKey() + ": " + key + ")");
+                    // Block read, checked against the written data
+                    byte[] expected = hexStringToBytes(dataString);
+                    boolean verified = isBlockWritten(layout.isTrailer(sectorId, blockId), expected, 0, hexStringToBytes(blockData), 0);
+                    System.out.println(blockData + " (Key " + access.getKey() + ": " + key + ", "
+                            + (verified ? "verified" : "MISMATCH") + ")");
+                }
+            }
+        }
+    }
+    
+    /**
+     * Writes a template to a Mifare Classic card.
+     * @param reader the reader
+     * @param card the card
+     * @param template the blocks to be written
+     * @param verify true if the written blocks have to be read back and checked
+     * @return the statistics of the writing
+     */
+    public static WriteStats writeTemplateToMifareClassicCard(MfReaderWriter reader, MfCard card, WriteTemplate template, boolean verify)
+            throws CardException {
+        WriteOptions options = new WriteOptions();
+        options.setVerify(verify);
+        return writeTemplateToMifareClassicCard(reader, card, template, options);
+    }
+    
+    /**
+     * Writes a template to a Mifare Classic card.
+     * <p>
+     * The blocks are grouped by sector (4 or 16 blocks, depending on the layout picked from the
+     * card type; blocks of the template which don't exist on the card fail): consecutive blocks of a sector which share the same key
+     * are written in one go, with one authentication. The key type which opened a sector is
+     * tried first for the next blocks of the sector.
+     * <p>
+     * In differential mode, the blocks of each sector are read first (in one go) and only
+     * the blocks which differ from the template are written. Sector trailers are skipped unless
+     * requested; when requested they are always written, as their key A can't be read back.
+     * The access conditions of the read trailer give the key types which can write each block:
+     * only those are tried, and the blocks which can't be written at all fail without any attempt.
+     * <p>
+     * The written blocks are verified at the end, in one pass reading each written sector in one go
+     * where its blocks share the same key: the CRC32 of the written data is compared to the CRC32
+     * of the data read back, and the blocks are only compared one by one when the digests differ.
+     * The mismatched blocks can be written again (once) and verified again. Once the trailer of a
+     * sector is written, the card uses its keys: the blocks of the sector are then read back and
+     * written again with the keys of the written trailer, with the key types allowed by its access
+     * conditions.
+     * @param reader the reader
+     * @param card the card
+     * @param template the blocks to be written
+     * @param options the write options
+     * @return the statistics of the writing
+     */
+    public static WriteStats writeTemplateToMifareClassicCard(MfReaderWriter reader, MfCard card, WriteTemplate template, WriteOptions options)
+            throws CardException {
+        long start = System.nanoTime();
+        WriteStats stats = new WriteStats();
+        CardLayout layout = CardLayout.forCard(card);
+        // Key types which allowed the writing of the blocks, for the verification
+        Key[] writtenKeyTypes = new Key[layout.getBlockCount()];
+        // Access conditions of the sectors, when their trailer has been read
+        AccessConditions[] accessConditions = new AccessConditions[layout.getSectorCount()];
+        // Written trailers, holding the keys of their sector from then on
+        byte[][] writtenTrailers = new byte[layout.getSectorCount()][];
+        for (int sectorIndex = 0; sectorIndex < CardLayout.MAX_SECTOR_COUNT; sectorIndex++) {
+            // For each sector...
+            int pendingBlocks = 0;
+            for (int blockIndex = 0; blockIndex < CardLayout.CLASSIC_4K.getBlockCount(sectorIndex); blockIndex++) {
+                if (template.isBlockSet(sectorIndex, blockIndex)) {
+                    if (layout.isValidBlockIndex(sectorIndex, blockIndex)) {
+                        pendingBlocks |= 1 << blockIndex;
+                    } else {
+                        // Not on this card
+                        stats.blockFailed(sectorIndex, blockIndex);
+                    }
+                }
+            }
+            if (pendingBlocks != 0 && options.isDifferential()) {
+                pendingBlocks = removeUnchangedBlocks(reader, card, layout, sectorIndex, template, pendingBlocks, options.isIncludeTrailers(),
+                        accessConditions, stats);
+            }
+            if (pendingBlocks != 0) {
+                writeMifareClassicSector(reader, card, layout, sectorIndex, template, pendingBlocks, accessConditions, writtenTrailers,
+                        writtenKeyTypes, stats);
+            }
+        }
+        if (options.isVerify() && stats.getWrittenCount() > 0) {
+            byte[] actualData = new byte[layout.getSize()];
+            BitSet mismatchedBlocks = verifyWrittenBlocks(reader, card, layout, template, stats.getWrittenBlocks(), accessConditions,
+                    writtenTrailers, writtenKeyTypes, actualData, stats);
+            // Only the blocks of the template can be written again (same numbering for the blocks of the card)
+            mismatchedBlocks.and(template.getBlocks());
+            if (options.isRewriteMismatches() && !mismatchedBlocks.isEmpty()) {
+                // Writing the mismatched blocks again, then verifying them again
+                for (int sectorIndex = 0; sectorIndex < layout.getSectorCount(); sectorIndex++) {
+                    int pendingBlocks = getSectorBlocks(layout, sectorIndex, mismatchedBlocks);
+                    if (pendingBlocks != 0) {
+                        writeMifareClassicSector(reader, card, layout, sectorIndex, template, pendingBlocks, accessConditions, writtenTrailers,
+                                writtenKeyTypes, stats);
+                    }
+                }
+                BitSet rewrittenBlocks = stats.getWrittenBlocks();
+                rewrittenBlocks.and(mismatchedBlocks);
+                if (!rewrittenBlocks.isEmpty()) {
+                    verifyWrittenBlocks(reader, card, layout, template, rewrittenBlocks, accessConditions, writtenTrailers,
+                            writtenKeyTypes, actualData, stats);
                 }
             }
         }
+        stats.setDurationNanos(System.nanoTime() - start);
+        return stats;
     }
     
     /**
-     * Reads a Mifare Classic 1K block.
+     * Reads a Mifare Classic block.
      * @param reader the reader
      * @param access the access
      * @return a string representation of the block data, null if the block can't be read
      */
-    private static String readMifareClassic1KBlock(MfReaderWriter reader, MfAccess access)
+    private static String readMifareClassicBlock(MfReaderWriter reader, MfAccess access)
             throws CardException {
         String data = null;
         try {
             MfBlock block = reader.readBlock(access)[0];
             data = bytesToHexString(block.getData());
         } catch (IOException ioe) {
-            if (ioe.getCause() instanceof CardException) {
-                throw (CardException) ioe.getCause();
-            }
+            checkRejectedAccess(reader, ioe);
         }
         return data;
     }
     
     /**
-     * Writes a Mifare Classic 1K block.
+     * Writes consecutive Mifare Classic blocks.
      * @param reader the reader
      * @param access the access
-     * @param block the block to be written
-     * @return true if the block has been written, false otherwise
+     * @param blocks the blocks to be written
+     * @return true if the blocks have been written, false otherwise
      */
-    private static boolean writeMifareClassic1KBlock(MfReaderWriter reader, MfAccess access, MfBlock block) throws CardException {
+    private static boolean writeMifareClassicBlock(MfReaderWriter reader, MfAccess access, MfBlock... blocks) throws CardException {
         boolean written = false;
         try {
-            reader.writeBlock(access, block);
+            reader.writeBlock(access, blocks);
             written = true;
         } catch (IOException ioe) {
-            if (ioe.getCause() instanceof CardException) {
-                throw (CardException) ioe.getCause();
-            }
+            checkRejectedAccess(reader, ioe);
         }
         return written;
     }
     
     /**
-     * Dumps Mifare Classic 1K block data.
+     * Writes consecutive Mifare Classic blocks of a template, trying the provided key types.
      * @param reader the reader
      * @param card the card
+     * @param layout the card layout
+     * @param sectorId the sector to be written
+     * @param firstBlockId the first block to be written
+     * @param blockCount the number of blocks to be written
+     * @param template the template holding the block data
+     * @param keyTypes the key types to be tried, in order (none if the blocks can't be written)
+     * @param writtenTrailer the written trailer of the sector, holding its keys (null if the template keys are used)
+     * @param stats the statistics to be updated
+     * @return the key type which allowed the writing, null if the blocks can't be written
+     */
+    private static Key writeMifareClassicBlocks(MfReaderWriter reader, MfCard card, CardLayout layout, int sectorId, int firstBlockId, int blockCount,
+            WriteTemplate template, Key[] keyTypes, byte[] writtenTrailer, WriteStats stats) throws CardException {
+        MfBlock[] blocks = new MfBlock[blockCount];
+        try {
+            for (int i = 0; i < blockCount; i++) {
+                blocks[i] = BlockResolver.resolveBlock(layout.getMemoryLayout(), sectorId, firstBlockId + i,
+                        template.getBlock(sectorId, firstBlockId + i));
+            }
+        } catch (MfException me) {
+            System.out.println(me.getMessage());
+            for (int i = 0; i < blockCount; i++) {
+                stats.blockFailed(sectorId, firstBlockId + i);
+            }
+            return null;
+        }
+        
+        Key writtenKeyType = null;
+        for (Key type : keyTypes) {
+            MfAccess access = new MfAccess(card, sectorId, firstBlockId, type,
+                    KeyStore.toBytes(getSectorKey(template, writtenTrailer, sectorId, firstBlockId, type)));
+            if (writeMifareClassicBlock(reader, access, blocks)) {
+                writtenKeyType = type;
+                break;
+            }
+        }
+        if (writtenKeyType == null) {
+            if (keyTypes.length > 0) {
+                checkCardPresent(reader);
+            }
+            for (int i = 0; i < blockCount; i++) {
+                stats.blockFailed(sectorId, firstBlockId + i);
+            }
+            return null;
+        }
+        
+        for (int i = 0; i < blockCount; i++) {
+            stats.blockWritten(sectorId, firstBlockId + i);
+        }
+        return writtenKeyType;
+    }
+    
+    /**
+     * Writes the pending blocks of a sector.
+     * @param reader the reader
+     * @param card the card
+     * @param layout the card layout
+     * @param sectorId the sector to be written
+     * @param template the template holding the block data and keys
+     * @param pendingBlocks the bitmap of the blocks of the sector to be written
+     * @param accessConditions the access conditions of the sectors, null when unknown (to be updated when the trailer is written)
+     * @param writtenTrailers the written trailers of the sectors, null when not written (to be updated when the trailer is written)
+     * @param writtenKeyTypes the key types which allowed the writing, per block (to be updated)
+     * @param stats the statistics to be updated
+     */
+    private static void writeMifareClassicSector(MfReaderWriter reader, MfCard card, CardLayout layout, int sectorId, WriteTemplate template,
+            int pendingBlocks, AccessConditions[] accessConditions, byte[][] writtenTrailers, Key[] writtenKeyTypes, WriteStats stats)
+            throws CardException {
+        AccessConditions conditions = accessConditions[sectorId];
+        Key sectorKeyType = Key.A;
+        int blockCount = layout.getBlockCount(sectorId);
+        int blockIndex = 0;
+        while (blockIndex < blockCount) {
+            if ((pendingBlocks & (1 << blockIndex)) == 0) {
+                blockIndex++;
+                continue;
+            }
+            // Group of consecutive blocks sharing the same key and the same write permissions
+            int firstBlockIndex = blockIndex;
+            long key = template.getKey(sectorId, blockIndex);
+            int permissions = getWritePermissions(conditions, layout, sectorId, blockIndex);
+            while (blockIndex < blockCount
+                    && (pendingBlocks & (1 << blockIndex)) != 0
+                    && template.getKey(sectorId, blockIndex) == key
+                    && getWritePermissions(conditions, layout, sectorId, blockIndex) == permissions) {
+                blockIndex++;
+            }
+            Key keyType = writeMifareClassicBlocks(reader, card, layout, sectorId, firstBlockIndex, blockIndex - firstBlockIndex,
+                    template, AccessConditions.getKeyTypes(permissions, true, sectorKeyType), writtenTrailers[sectorId], stats);
+            if (keyType != null) {
+                sectorKeyType = keyType;
+                int firstBlockNumber = layout.blockNumber(sectorId, firstBlockIndex);
+                Arrays.fill(writtenKeyTypes, firstBlockNumber, firstBlockNumber + blockIndex - firstBlockIndex, keyType);
+                if (blockIndex == blockCount) {
+                    // Trailer written: the keys and the access conditions are now the ones of the template
+                    writtenTrailers[sectorId] = template.getBlock(sectorId, blockCount - 1);
+                    accessConditions[sectorId] = AccessConditions.decode(writtenTrailers[sectorId], 0);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @param conditions the access conditions of a sector (null if unknown)
+     * @param layout the card layout
+     * @param sectorId the sector
+     * @param blockIndex a block index (in the sector)
+     * @return the write permissions of the block (both key types when the access conditions are unknown)
+     */
+    private static int getWritePermissions(AccessConditions conditions, CardLayout layout, int sectorId, int blockIndex) {
+        int permissions = AccessConditions.WRITE_KEY_A | AccessConditions.WRITE_KEY_B;
+        if (conditions != null) {
+            permissions &= conditions.getPermissions(layout, sectorId, blockIndex);
+        }
+        return permissions;
+    }
+    
+    /**
+     * @param template the template holding the keys
+     * @param writtenTrailer the written trailer of the sector (null if not written)
+     * @param sectorId the sector
+     * @param blockIndex a block index (in the sector)
+     * @param keyType the key type
+     * @return the packed key opening the block: the key of the written trailer (bytes 0-5 for key A,
+     *         10-15 for key B) once it is written, the key of the template otherwise
+     */
+    private static long getSectorKey(WriteTemplate template, byte[] writtenTrailer, int sectorId, int blockIndex, Key keyType) {
+        if (writtenTrailer == null) {
+            return template.getKey(sectorId, blockIndex);
+        }
+        int offset = (keyType == Key.A) ? 0 : 10;
+        return KeyStore.toKey(Arrays.copyOfRange(writtenTrailer, offset, offset + 6));
+    }
+    
+    /**
+     * Removes from the pending blocks of a sector those which already hold the data of the template.
+     * <p>
+     * The blocks of the sector are read in one go, with the key of the first pending block, along with
+     * the trailer for the access conditions of the sector (readable by any key which can authenticate).
+     * If they can't be read, all the pending data blocks are kept and the trailer is read alone.
+     * @param reader the reader
+     * @param card the card
+     * @param layout the card layout
+     * @param sectorId the sector to be written
+     * @param template the template holding the block data and keys
+     * @param pendingBlocks the bitmap of the blocks of the sector to be written
+     * @param includeTrailers true if the sector trailer has to be written
+     * @param accessConditions the access conditions of the sectors (to be updated)
+     * @param stats the statistics to be updated
+     * @return the bitmap of the blocks of the sector which still have to be written
+     */
+    private static int removeUnchangedBlocks(MfReaderWriter reader, MfCard card, CardLayout layout, int sectorId, WriteTemplate template,
+            int pendingBlocks, boolean includeTrailers, AccessConditions[] accessConditions, WriteStats stats) throws CardException {
+        int trailerBlockIndex = layout.getTrailerBlockIndex(sectorId);
+        if (!includeTrailers && (pendingBlocks & (1 << trailerBlockIndex)) != 0) {
+            pendingBlocks &= ~(1 << trailerBlockIndex);
+            stats.blockSkipped(sectorId, trailerBlockIndex);
+        }
+        if ((pendingBlocks & ~(1 << trailerBlockIndex)) == 0) {
+            // No data block to be compared
+            return pendingBlocks;
+        }
+        
+        byte[] keyBytes = KeyStore.toBytes(template.getKey(sectorId, Integer.numberOfTrailingZeros(pendingBlocks)));
+        MfBlock[] currentBlocks = null;
+        for (Key keyType : KEY_TYPES) {
+            currentBlocks = readMifareClassicBlocks(reader, card, sectorId, 0, trailerBlockIndex + 1, keyType, keyBytes);
+            if (currentBlocks != null) {
+                break;
+            }
+        }
+        if (currentBlocks != null) {
+            accessConditions[sectorId] = AccessConditions.decode(currentBlocks[trailerBlockIndex].getData(), 0);
+            for (int blockIndex = 0; blockIndex < trailerBlockIndex; blockIndex++) {
+                if ((pendingBlocks & (1 << blockIndex)) != 0
+                        && Arrays.equals(currentBlocks[blockIndex].getData(), template.getBlock(sectorId, blockIndex))) {
+                    pendingBlocks &= ~(1 << blockIndex);
+                    stats.blockSkipped(sectorId, blockIndex);
+                }
+            }
+        } else {
+            // Some blocks can't be read: reading the trailer alone, for the access conditions
+            for (Key keyType : KEY_TYPES) {
+                MfBlock[] trailer = readMifareClassicBlocks(reader, card, sectorId, trailerBlockIndex, 1, keyType, keyBytes);
+                if (trailer != null) {
+                    accessConditions[sectorId] = AccessConditions.decode(trailer[0].getData(), 0);
+                    break;
+                }
+            }
+        }
+        return pendingBlocks;
+    }
+    
+    /**
+     * Verifies written blocks, reading them back in one pass.
+     * <p>
+     * The blocks which can't be read back or don't hold the written data are flagged as mismatched
+     * in the statistics. The digests of the statistics cover all the verified blocks of the card,
+     * including the ones of the previous passes.
+     * @param reader the reader
+     * @param card the card
+     * @param layout the card layout
+     * @param template the template holding the written data and keys
+     * @param blocks the bitmap of the blocks to be verified (bit i is set if block i has to be verified)
+     * @param accessConditions the access conditions of the sectors (null when unknown)
+     * @param writtenTrailers the written trailers of the sectors (null when not written)
+     * @param writtenKeyTypes the key types which allowed the writing, per block
+     * @param actualData the data read back by the previous passes (to be updated)
+     * @param stats the statistics to be updated
+     * @return the bitmap of the mismatched blocks
+     */
+    private static BitSet verifyWrittenBlocks(MfReaderWriter reader, MfCard card, CardLayout layout, WriteTemplate template,
+            BitSet blocks, AccessConditions[] accessConditions, byte[][] writtenTrailers, Key[] writtenKeyTypes, byte[] actualData,
+            WriteStats stats) throws CardException {
+        // Reading back the written sectors
+        BitSet readBlocks = new BitSet(layout.getBlockCount());
+        for (int sectorIndex = 0; sectorIndex < layout.getSectorCount(); sectorIndex++) {
+            int sectorBlocks = getSectorBlocks(layout, sectorIndex, blocks);
+            if (sectorBlocks != 0) {
+                readWrittenBlocks(reader, card, layout, sectorIndex, template, sectorBlocks, accessConditions[sectorIndex],
+                        writtenTrailers[sectorIndex], writtenKeyTypes, actualData, readBlocks);
+            }
+        }
+        
+        // Comparing the digests of the written and read back data
+        byte[] expectedData = template.getData();
+        BitSet mismatchedBlocks = new BitSet(layout.getBlockCount());
+        BitSet verifiedBlocks = stats.getWrittenBlocks();
+        verifiedBlocks.or(stats.getMismatchedBlocks());
+        CRC32 expectedDigest = new CRC32();
+        CRC32 actualDigest = new CRC32();
+        for (int sectorIndex = 0; sectorIndex < layout.getSectorCount(); sectorIndex++) {
+            for (int blockIndex = 0; blockIndex < layout.getBlockCount(sectorIndex); blockIndex++) {
+                int blockNumber = layout.blockNumber(sectorIndex, blockIndex);
+                if (blocks.get(blockNumber) && !readBlocks.get(blockNumber)) {
+                    // Can't be read back
+                    mismatchedBlocks.set(blockNumber);
+                    Arrays.fill(actualData, blockNumber * CardImage.BLOCK_SIZE, (blockNumber + 1) * CardImage.BLOCK_SIZE, (byte) 0);
+                }
+                if (!verifiedBlocks.get(blockNumber)) {
+                    continue;
+                }
+                // Sector trailer: only the access bits can be read back
+                int offset = blockNumber * CardImage.BLOCK_SIZE + (layout.isTrailer(sectorIndex, blockIndex) ? 6 : 0);
+                int length = layout.isTrailer(sectorIndex, blockIndex) ? 4 : CardImage.BLOCK_SIZE;
+                expectedDigest.update(expectedData, offset, length);
+                actualDigest.update(actualData, offset, length);
+            }
+        }
+        if (expectedDigest.getValue() != actualDigest.getValue()) {
+            // Looking for the mismatched blocks
+            for (int sectorIndex = 0; sectorIndex < layout.getSectorCount(); sectorIndex++) {
+                for (int blockIndex = 0; blockIndex < layout.getBlockCount(sectorIndex); blockIndex++) {
+                    int blockNumber = layout.blockNumber(sectorIndex, blockIndex);
+                    int offset = blockNumber * CardImage.BLOCK_SIZE;
+                    if (blocks.get(blockNumber) && readBlocks.get(blockNumber)
+                            && !isBlockWritten(layout.isTrailer(sectorIndex, blockIndex), expectedData, offset, actualData, offset)) {
+                        mismatchedBlocks.set(blockNumber);
+                    }
+                }
+            }
+        }
+        for (int sectorIndex = 0; sectorIndex < layout.getSectorCount(); sectorIndex++) {
+            for (int blockIndex = 0; blockIndex < layout.getBlockCount(sectorIndex); blockIndex++) {
+                if (mismatchedBlocks.get(layout.blockNumber(sectorIndex, blockIndex))) {
+                    stats.blockMismatched(sectorIndex, blockIndex);
+                }
+            }
+        }
+        stats.setDigests(expectedDigest.getValue(), actualDigest.getValue());
+        return mismatchedBlocks;
+    }
+    
+    /**
+     * Reads back written blocks of a sector.
+     * <p>
+     * The span of the written blocks is read in one go when they share the same key, otherwise
+     * (or if the span can't be read) each group of consecutive blocks sharing the same key is read in one go.
+     * The blocks are read with the key type which wrote them and the key of the template, unless the
+     * trailer of the sector has been written: its keys are then used, with the key types allowed by its
+     * access conditions.
+     * @param reader the reader
+     * @param card the card
+     * @param layout the card layout
      * @param sectorId the sector to be read
-     * @param blockId the block to be read
+     * @param template the template holding the written keys
+     * @param sectorBlocks the bitmap of the blocks of the sector to be read
+     * @param conditions the access conditions of the sector (null if unknown)
+     * @param writtenTrailer the written trailer of the sector (null if not written)
+     * @param writtenKeyTypes the key types which allowed the writing, per block
+     * @param actualData the data read back (to be filled)
+     * @param readBlocks the bitmap of the blocks read back (to be updated)
+     */
+    private static void readWrittenBlocks(MfReaderWriter reader, MfCard card, CardLayout layout, int sectorId, WriteTemplate template,
+            int sectorBlocks, AccessConditions conditions, byte[] writtenTrailer, Key[] writtenKeyTypes, byte[] actualData, BitSet readBlocks)
+            throws CardException {
+        int firstBlockNumber = layout.blockNumber(sectorId, 0);
+        int firstBlockIndex = Integer.numberOfTrailingZeros(sectorBlocks);
+        int lastBlockIndex = 31 - Integer.numberOfLeadingZeros(sectorBlocks);
+        // Key type and key reading back each block
+        Key[] keyTypes = new Key[lastBlockIndex + 1];
+        long[] keys = new long[lastBlockIndex + 1];
+        for (int blockIndex = firstBlockIndex; blockIndex <= lastBlockIndex; blockIndex++) {
+            if ((sectorBlocks & (1 << blockIndex)) != 0) {
+                Key writtenKeyType = writtenKeyTypes[firstBlockNumber + blockIndex];
+                keyTypes[blockIndex] = writtenKeyType;
+                if (writtenTrailer != null && conditions != null) {
+                    Key[] readKeyTypes = AccessConditions.getKeyTypes(conditions.getPermissions(layout, sectorId, blockIndex), false, writtenKeyType);
+                    if (readKeyTypes.length > 0) {
+                        keyTypes[blockIndex] = readKeyTypes[0];
+                    }
+                }
+                keys[blockIndex] = getSectorKey(template, writtenTrailer, sectorId, blockIndex, keyTypes[blockIndex]);
+            }
+        }
+        long key = keys[firstBlockIndex];
+        Key keyType = keyTypes[firstBlockIndex];
+        boolean sameKey = true;
+        for (int blockIndex = firstBlockIndex; blockIndex <= lastBlockIndex; blockIndex++) {
+            if ((sectorBlocks & (1 << blockIndex)) != 0
+                    && (keys[blockIndex] != key || keyTypes[blockIndex] != keyType)) {
+                sameKey = false;
+                break;
+            }
+        }
+        if (sameKey) {
+            MfBlock[] blocks = readMifareClassicBlocks(reader, card, sectorId, firstBlockIndex, lastBlockIndex - firstBlockIndex + 1,
+                    keyType, KeyStore.toBytes(key));
+            if (blocks != null) {
+                for (int i = 0; i < blocks.length; i++) {
+                    if ((sectorBlocks & (1 << (firstBlockIndex + i))) != 0) {
+                        // Only the written blocks of the span are kept
+                        System.arraycopy(blocks[i].getData(), 0, actualData, (firstBlockNumber + firstBlockIndex + i) * CardImage.BLOCK_SIZE, CardImage.BLOCK_SIZE);
+                        readBlocks.set(firstBlockNumber + firstBlockIndex + i);
+                    }
+                }
+                return;
+            }
+        }
+        
+        // Group by group
+        int blockIndex = firstBlockIndex;
+        while (blockIndex <= lastBlockIndex) {
+            if ((sectorBlocks & (1 << blockIndex)) == 0) {
+                blockIndex++;
+                continue;
+            }
+            int groupFirstBlockIndex = blockIndex;
+            key = keys[blockIndex];
+            keyType = keyTypes[blockIndex];
+            while (blockIndex <= lastBlockIndex
+                    && (sectorBlocks & (1 << blockIndex)) != 0
+                    && keys[blockIndex] == key
+                    && keyTypes[blockIndex] == keyType) {
+                blockIndex++;
+            }
+            MfBlock[] blocks = readMifareClassicBlocks(reader, card, sectorId, groupFirstBlockIndex, blockIndex - groupFirstBlockIndex,
+                    keyType, KeyStore.toBytes(key));
+            if (blocks != null) {
+                for (int i = 0; i < blocks.length; i++) {
+                    System.arraycopy(blocks[i].getData(), 0, actualData, (firstBlockNumber + groupFirstBlockIndex + i) * CardImage.BLOCK_SIZE, CardImage.BLOCK_SIZE);
+                    readBlocks.set(firstBlockNumber + groupFirstBlockIndex + i);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @param layout the card layout
+     * @param sectorIndex a sector index
+     * @param blocks a bitmap of blocks of the card
+     * @return the bitmap of the blocks of the sector (bit i is set if block i of the sector is set)
+     */
+    private static int getSectorBlocks(CardLayout layout, int sectorIndex, BitSet blocks) {
+        int firstBlockNumber = layout.blockNumber(sectorIndex, 0);
+        int sectorBlocks = 0;
+        for (int blockIndex = 0; blockIndex < layout.getBlockCount(sectorIndex); blockIndex++) {
+            if (blocks.get(firstBlockNumber + blockIndex)) {
+                sectorBlocks |= 1 << blockIndex;
+            }
+        }
+        return sectorBlocks;
+    }
+    
+    /**
+     * @param trailer true if the block is a sector trailer
+     * @param expected the array holding the written data
+     * @param expectedOffset the offset of the written block
+     * @param actual the array holding the data read back
+     * @param actualOffset the offset of the block read back
+     * @return true if the read data matches the written one (the keys of the sector trailers are not checked)
+     */
+    private static boolean isBlockWritten(boolean trailer, byte[] expected, int expectedOffset, byte[] actual, int actualOffset) {
+        // Sector trailer: only the access bits can be read back
+        int from = trailer ? 6 : 0;
+        int to = trailer ? 10 : CardImage.BLOCK_SIZE;
+        for (int i = from; i < to; i++) {
+            if (expected[expectedOffset + i] != actual[actualOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Reads consecutive Mifare Classic blocks.
+     * @param reader the reader
+     * @param card the card
+     * @param sectorId the sector to be read
+     * @param firstBlockId the first block to be read
+     * @param blockCount the number of blocks to be read
+     * @param keyType the type of the key to be used for reading
+     * @param keyBytes the key to be used for reading
+     * @return the read blocks, null if the blocks can't be read
+     */
+    private static MfBlock[] readMifareClassicBlocks(MfReaderWriter reader, MfCard card, int sectorId, int firstBlockId, int blockCount, Key keyType, byte[] keyBytes)
+            throws CardException {
+        MfAccess access = new MfAccess(card, sectorId, firstBlockId, blockCount, keyType, keyBytes);
+        try {
+            return reader.readBlock(access);
+        } catch (IOException ioe) {
+            checkRejectedAccess(reader, ioe);
+        }
+        return null;
+    }
+    
+    /**
+     * Reads consecutive Mifare Classic blocks into a card image, searching for the key.
+     * <p>
+     * The preferred keys are tried first, then all the keys of the store (in the order of the key types).
+     * Only the keys of the provided types are tried.
+     * @param reader the reader
+     * @param card the card
+     * @param sectorId the sector to be read
+     * @param firstBlockId the first block to be read
+     * @param blockCount the number of blocks to be read
      * @param keys the keys to be tested for reading
+     * @param keyTypes the key types which can read the blocks
+     * @param preferred the keys to be tested first
+     * @param tried a scratch set for the already tested keys
+     * @param image the card image to be filled
+     * @return the key which opened the blocks, null if the blocks can't be read
      */
-    private static void dumpMifareClassic1KBlock(MfReaderWriter reader, MfCard card, int sectorId, int blockId, List<String> keys) throws CardException {
-        System.out.printf("Sector %02d block %02d: ", sectorId, blockId);
-        for (String key : keys) {
-            // For each provided key...
-            if (isValidMifareClassic1KKey(key)) {
-                byte[] keyBytes = hexStringToBytes(key);
-                // Reading with key A
-                MfAccess access = new MfAccess(card, sectorId, blockId, Key.A, keyBytes);
-                String blockData = readMifareClassic1KBlock(reader, access);
-                if (blockData == null) {
-                    // Reading with key B
-                    access = new MfAccess(card, sectorId, blockId, Key.B, keyBytes);
-                    blockData = readMifareClassic1KBlock(reader, access);
+    private static SectorKey readMifareClassicBlocks(MfReaderWriter reader, MfCard card, int sectorId, int firstBlockId, int blockCount,
+            KeyStore keys, Key[] keyTypes, List<SectorKey> preferred, LongHashSet tried, CardImage image) throws CardException {
+        tried.clear();
+        int rejected = 0;
+        for (SectorKey key : preferred) {
+            if ((keyTypes.length == 2 || key.getType() == keyTypes[0])
+                    && tried.add(candidateId(key.getType(), key.getKey()))) {
+                MfBlock[] blocks = readMifareClassicBlocks(reader, card, sectorId, firstBlockId, blockCount, key.getType(), key.getKeyBytes());
+                if (blocks != null) {
+                    setBlocks(image, sectorId, firstBlockId, blocks, key);
+                    return key;
                 }
-                if (blockData != null) {
-                    // Block read
-                    System.out.println(blockData + " (Key " + access.getKey() + ": " + key + ")");
-                    return;
+                if (++rejected % PRESENCE_PROBE_INTERVAL == 0) {
+                    checkCardPresent(reader);
                 }
             }
         }
-        // All keys tested, failed to read block
-        System.out.println("<Failed to read block>");
+        for (int i = 0; i < keys.size(); i++) {
+            long key = keys.get(i);
+            for (Key keyType : keyTypes) {
+                if (tried.size() == 0 || !tried.contains(candidateId(keyType, key))) {
+                    MfBlock[] blocks = readMifareClassicBlocks(reader, card, sectorId, firstBlockId, blockCount, keyType, keys.getKeyBytes(i));
+                    if (blocks != null) {
+                        SectorKey sectorKey = new SectorKey(keyType, key, keys.getKeyBytes(i));
+                        setBlocks(image, sectorId, firstBlockId, blocks, sectorKey);
+                        return sectorKey;
+                    }
+                    if (++rejected % PRESENCE_PROBE_INTERVAL == 0) {
+                        checkCardPresent(reader);
+                    }
+                }
+            }
+        }
+        if (rejected % PRESENCE_PROBE_INTERVAL != 0) {
+            // No key opens the blocks: the card may have left the field since the last probe
+            checkCardPresent(reader);
+        }
+        return null;
+    }
+    
+    /**
+     * Reads a Mifare Classic sector (4 or 16 blocks) into a card image.
+     * <p>
+     * The whole sector is read in one go when possible. Otherwise the trailer is read first: the
+     * data blocks are then read only with the key types allowed by its access conditions, and the
+     * blocks which can't be read at all are skipped. The trailer can always be read with key A,
+     * and with key B whenever key B can be used at all: when no key reads it, no key reads the data
+     * blocks either, and they are not swept.
+     * @param reader the reader
+     * @param card the card
+     * @param sectorId the sector to be read
+     * @param keys the keys to be tested for reading
+     * @param preferred the keys to be tested first
+     * @param knownConditions the access conditions of the sector in a previous reading (may be null)
+     * @param tried a scratch set for the already tested keys
+     * @param image the card image to be filled
+     * @return the key which opened the sector, null if the sector can't be read
+     */
+    private static SectorKey readMifareClassicSector(MfReaderWriter reader, MfCard card, int sectorId,
+            KeyStore keys, List<SectorKey> preferred, AccessConditions knownConditions, LongHashSet tried, CardImage image) throws CardException {
+        // Reading the whole sector, with the key types which can read all its blocks
+        CardLayout layout = image.getLayout();
+        int blockCount = layout.getBlockCount(sectorId);
+        Key[] sectorKeyTypes = (knownConditions == null) ? KEY_TYPES
+                : AccessConditions.getKeyTypes(knownConditions.getSectorPermissions(layout, sectorId), false, Key.A);
+        if (sectorKeyTypes.length > 0) {
+            SectorKey sectorKey = readMifareClassicBlocks(reader, card, sectorId, 0, blockCount, keys, sectorKeyTypes, preferred, tried, image);
+            if (sectorKey != null) {
+                return sectorKey;
+            }
+        }
+        
+        // No key opens the whole sector, reading the trailer first for the access conditions
+        List<SectorKey> blockPreferred = new ArrayList<>(preferred);
+        int trailerBlockIndex = layout.getTrailerBlockIndex(sectorId);
+        SectorKey sectorKey = readMifareClassicBlocks(reader, card, sectorId, trailerBlockIndex, 1, keys, KEY_TYPES, blockPreferred, tried, image);
+        if (sectorKey == null) {
+            // No key authenticates to the sector
+            return null;
+        }
+        blockPreferred.add(0, sectorKey);
+        AccessConditions conditions = getAccessConditions(image, sectorId);
+        
+        // Then block by block
+        for (int blockIndex = 0; blockIndex < trailerBlockIndex; blockIndex++) {
+            Key[] keyTypes = KEY_TYPES;
+            if (conditions != null) {
+                keyTypes = AccessConditions.getKeyTypes(conditions.getPermissions(layout, sectorId, blockIndex), false, Key.A);
+                if (keyTypes.length == 0) {
+                    // Never readable
+                    continue;
+                }
+            }
+            SectorKey blockKey = readMifareClassicBlocks(reader, card, sectorId, blockIndex, 1, keys, keyTypes, blockPreferred, tried, image);
+            if (blockKey != null && blockKey != sectorKey) {
+                sectorKey = blockKey;
+                blockPreferred.add(0, blockKey);
+            }
+        }
+        return sectorKey;
+    }
+    
+    /**
+     * @param image a card image
+     * @param sectorIndex a sector index
+     * @return the access conditions of the sector, null if its trailer has not been read or holds invalid access bits
+     */
+    static AccessConditions getAccessConditions(CardImage image, int sectorIndex) {
+        int trailerBlockIndex = image.getLayout().getTrailerBlockIndex(sectorIndex);
+        if (!image.isBlockRead(sectorIndex, trailerBlockIndex)) {
+            return null;
+        }
+        return AccessConditions.decode(image.getData(), image.blockOffset(sectorIndex, trailerBlockIndex));
+    }
+    
+    /**
+     * Stores read blocks into a card image.
+     * @param image the card image
+     * @param sectorId the sector of the blocks
+     * @param firstBlockId the first block
+     * @param blocks the read blocks
+     * @param key the key which opened the blocks
+     */
+    private static void setBlocks(CardImage image, int sectorId, int firstBlockId, MfBlock[] blocks, SectorKey key) {
+        for (int i = 0; i < blocks.length; i++) {
+            image.setBlock(sectorId, firstBlockId + i, blocks[i].getData(), key);
+        }
+    }
+    
+    /**
+     * Tells a lost card apart from a rejected access.
+     * <p>
+     * Readers report a card which left the field (or a failed transmission) with an exception
+     * caused, possibly indirectly, by a {@link CardException}.
+     * @param t a failure of the reader
+     * @return the {@link CardException} which caused the failure, null if the card rejected the access
+     */
+    static CardException getCardException(Throwable t) {
+        for (int depth = 0; t != null && depth < 16; depth++) {
+            if (t instanceof CardException) {
+                return (CardException) t;
+            }
+            t = t.getCause();
+        }
+        return null;
+    }
+    
+    /**
+     * Tells whether a failure reports a card which is not in the field.
+     * <p>
+     * That is a {@link CardNotPresentException}, or a PC/SC "card removed" or "no card" status.
+     * @param t a failure of the reader
+     * @return true if the failure reports the absence of the card
+     */
+    static boolean isCardAbsent(Throwable t) {
+        for (int depth = 0; t != null && depth < 16; depth++) {
+            if (t instanceof CardNotPresentException) {
+                return true;
+            }
+            String message = t.getMessage();
+            if (message != null && (message.contains("SCARD_W_REMOVED_CARD") || message.contains("SCARD_E_NO_SMARTCARD"))) {
+                return true;
+            }
+            t = t.getCause();
+        }
+        return false;
+    }
+    
+    /**
+     * Probes the presence of the card, for the readers which can tell it.
+     * @param reader the reader
+     * @return false if the reader tells the card is not in the field, true otherwise
+     */
+    static boolean isCardPresent(MfReaderWriter reader) throws CardException {
+        if (!(reader instanceof CardPresence)) {
+            return true;
+        }
+        try {
+            return ((CardPresence) reader).isCardPresent();
+        } catch (IOException ioe) {
+            CardException ce = getCardException(ioe);
+            if (ce != null) {
+                throw ce;
+            }
+            // Unknown: the access is taken as rejected
+            return true;
+        }
+    }
+    
+    /**
+     * Handles a failed access.
+     * <p>
+     * A failure caused by a {@link CardException} is rethrown. Any other failure is a rejected
+     * access, unless the reader reports the absence of the card with it: a
+     * {@link CardNotPresentException} is then thrown, so that the key loops stop instead of trying
+     * the remaining keys on an empty field. The card is not probed here (see {@link #checkCardPresent}):
+     * that would double the exchanges of the key sweeps.
+     * @param reader the reader
+     * @param ioe the failure of the access
+     */
+    private static void checkRejectedAccess(MfReaderWriter reader, IOException ioe) throws CardException {
+        CardException ce = getCardException(ioe);
+        if (ce != null) {
+            throw ce;
+        }
+        if (isCardAbsent(ioe)) {
+            throw new CardNotPresentException("Card removed: " + ioe.getMessage());
+        }
+    }
+    
+    /**
+     * Probes the presence of the card after rejected accesses.
+     * @param reader the reader
+     * @throws CardNotPresentException if the card left the field
+     */
+    private static void checkCardPresent(MfReaderWriter reader) throws CardException {
+        if (!isCardPresent(reader)) {
+            throw new CardNotPresentException("Card removed");
+        }
+    }
+    
+    /**
+     * @param keyType a key type
+     * @param key a packed key
+     * @return the identifier of the (key type, key) candidate
+     */
+    private static long candidateId(Key keyType, long key) {
+        return (keyType == Key.B) ? key | (1L << 48) : key;
     }
 }
\ No newline at end of file
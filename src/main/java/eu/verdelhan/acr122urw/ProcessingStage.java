@@ -0,0 +1,173 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The processing stage of the card pipeline.
+ * <p>
+ * The reader threads only exchange with the cards (detection and RF), then hand the results
+ * over to this stage (storing, formatting, printing), so that a slow consumer doesn't delay the
+ * detection of the next card. Tasks run on virtual threads when the JDK provides them (Java 21+),
+ * on a fixed pool of daemon threads otherwise. At most {@code capacity} tasks are pending or
+ * running: beyond, {@link #submit(Runnable)} waits for a free slot (backpressure on the readers).
+ */
+public class ProcessingStage implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProcessingStage.class);
+    
+    /** Default maximum number of pending tasks */
+    public static final int DEFAULT_CAPACITY = 1024;
+    
+    /** The executor running the tasks */
+    private final ExecutorService executor;
+    
+    /** True if the tasks run on virtual threads */
+    private final boolean virtualThreads;
+    
+    /** The free task slots */
+    private final Semaphore slots;
+    
+    /** True once the stage is closed */
+    private volatile boolean closed;
+    
+    /**
+     * Constructor.
+     * <p>
+     * Virtual threads are used if available, one platform thread per processor otherwise.
+     */
+    public ProcessingStage() {
+        this(DEFAULT_CAPACITY, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Constructor.
+     * @param capacity the maximum number of pending (or running) tasks
+     * @param threadCount the number of platform threads, when virtual threads are not available
+     */
+    public ProcessingStage(int capacity, int threadCount) {
+        if (capacity <= 0 || threadCount <= 0) {
+            throw new IllegalArgumentException("Capacity and thread count must be positive");
+        }
+        ExecutorService virtualThreadExecutor = newVirtualThreadExecutor();
+        virtualThreads = (virtualThreadExecutor != null);
+        executor = virtualThreads ? virtualThreadExecutor : Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            
+            private final AtomicInteger threadNumber = new AtomicInteger();
+            
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Card processing " + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        slots = new Semaphore(capacity);
+    }
+    
+    /**
+     * @return true if the tasks run on virtual threads, false if they run on platform threads
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+    
+    /**
+     * Submits a task, waiting for a free slot if needed.
+     * <p>
+     * Failures of the task are logged.
+     * @param task the task
+     */
+    public void submit(final Runnable task) throws IOException {
+        if (closed) {
+            throw new IOException("Processing stage closed");
+        }
+        try {
+            slots.acquire();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the processing stage", ie);
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (RuntimeException re) {
+                        LOGGER.error("Card processing failed", re);
+                    } finally {
+                        slots.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            slots.release();
+            throw new IOException("Processing stage closed", ree);
+        }
+    }
+    
+    /**
+     * Runs the pending tasks and stops the stage.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                LOGGER.info("Waiting for the card processing to end");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * @return an executor starting a virtual thread per task, null if the JDK has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException roe) {
+            return null;
+        }
+    }
+}
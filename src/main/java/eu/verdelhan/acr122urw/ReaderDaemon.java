@@ -0,0 +1,708 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.smartcardio.CardException;
+import org.nfctools.mf.MfCardListener;
+import org.nfctools.mf.MfReaderWriter;
+import org.nfctools.mf.card.MfCard;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A resident service keeping the readers open and taking jobs over a local TCP socket.
+ * <p>
+ * The readers are started once, with listeners forwarding the cards to the current job.
+ * Clients connect to the loopback interface and send one command per line:
+ * <ul>
+ * <li>{@code AUTH TOKEN}: authenticates the connection (required before any other command)</li>
+ * <li>{@code DUMP [KEY...]}: dumps the cards using KEY, the keys of the daemon and the common keys</li>
+ * <li>{@code WRITE S B KEY DATA}: writes DATA to sector S, block B of the cards using KEY</li>
+ * <li>{@code BATCH FILE [--image KEY] [--no-verify] [--rewrite] [--diff] [--include-trailers]}: writes the template FILE
+ * (relative to the template directory of the daemon) to the cards</li>
+ * <li>{@code STOP}: stops the current job (the readers stay open)</li>
+ * <li>{@code STATUS}: describes the current job</li>
+ * <li>{@code QUIT}: closes the connection</li>
+ * <li>{@code SHUTDOWN}: stops the daemon</li>
+ * </ul>
+ * Each command gets an {@code OK ...} or {@code ERR ...} line. A job replaces the current one
+ * and streams its results to the connection which started it, one JSON object per card, until
+ * the job is stopped or replaced ({@code END job cards} line) or the connection is closed.
+ * <p>
+ * Trust model: the socket only listens on the loopback interface, but any local user can connect to it.
+ * A connection is only trusted once it sends the token of the daemon, which is written to a file only
+ * readable by the user running the daemon (see {@link #createToken(File)}): the clients must run as
+ * that user (or be given the token). The BATCH templates are only read from the template directory,
+ * and the BATCH command is refused when the daemon has none. The commands, keys included, go over the
+ * loopback interface in clear.
+ */
+public class ReaderDaemon implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReaderDaemon.class);
+    
+    /** Default TCP port */
+    public static final int DEFAULT_PORT = 7122;
+    
+    /** Number of random bytes of a token */
+    private static final int TOKEN_SIZE = 16;
+    
+    /** The server socket */
+    private final ServerSocket serverSocket;
+    
+    /** The token the clients must send before any other command */
+    private final byte[] token;
+    
+    /** The directory of the BATCH templates (null to refuse the BATCH commands) */
+    private final File templateDir;
+    
+    /** The keys of the daemon (tried after the keys of the jobs) */
+    private final KeyStore keys;
+    
+    /** The ranking used to order the keys */
+    private final KeyRanking ranking;
+    
+    /** The keys which opened the sectors of the already dumped cards */
+    private final SectorKeyCache cache = new SectorKeyCache();
+    
+    /** The processing stage of the results */
+    private final ProcessingStage processing = new ProcessingStage();
+    
+    /** The open sessions */
+    private final Set<Session> sessions = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+    
+    /** Number of readers forwarding their cards */
+    private final AtomicInteger readerCount = new AtomicInteger();
+    
+    /** Start time (milliseconds since the epoch) */
+    private final long startTime = System.currentTimeMillis();
+    
+    /** The current job (null if idle) */
+    private volatile Job currentJob;
+    
+    /** True once the daemon is closed */
+    private volatile boolean closed;
+    
+    /**
+     * Constructor.
+     * @param port the TCP port (on the loopback interface, 0 for any free port)
+     * @param token the token the clients must send before any other command
+     * @param templateDir the directory of the BATCH templates (null to refuse the BATCH commands)
+     * @param keys the keys of the daemon
+     * @param ranking the ranking used to order the keys
+     */
+    public ReaderDaemon(int port, String token, File templateDir, KeyStore keys, KeyRanking ranking) throws IOException {
+        if (token == null || token.isEmpty()) {
+            throw new IllegalArgumentException("A token is required");
+        }
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        this.templateDir = (templateDir == null) ? null : templateDir.getCanonicalFile();
+        this.keys = keys;
+        this.ranking = ranking;
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+    
+    /**
+     * Creates a random token and writes it to a file only readable by the current user.
+     * <p>
+     * An existing file is replaced.
+     * @param tokenFile the token file
+     * @return the token
+     */
+    public static String createToken(File tokenFile) throws IOException {
+        byte[] bytes = new byte[TOKEN_SIZE];
+        new SecureRandom().nextBytes(bytes);
+        String newToken = HexUtils.bytesToHexString(bytes);
+        Path path = tokenFile.toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException uoe) {
+            // Not a POSIX file system
+            Files.createFile(path);
+            if (!tokenFile.setReadable(false, false) || !tokenFile.setReadable(true, true)) {
+                throw new IOException("Unable to restrict the access to " + tokenFile);
+            }
+        }
+        Files.write(path, newToken.getBytes(StandardCharsets.US_ASCII));
+        return newToken;
+    }
+    
+    /**
+     * @return the TCP port of the daemon
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+    
+    /**
+     * @return the factory of the listeners forwarding the cards of each device to the current job
+     */
+    public CardListenerFactory getListenerFactory() {
+        return new CardListenerFactory() {
+            @Override
+            public MfCardListener createListener(final ReaderDevice device) {
+                readerCount.incrementAndGet();
+                return new MfCardListener() {
+                    @Override
+                    public void cardDetected(MfCard mfCard, MfReaderWriter mfReaderWriter) throws IOException {
+                        Job job = currentJob;
+                        if (job != null && job.begin()) {
+                            job.cardDetected(device, mfCard, mfReaderWriter);
+                        }
+                    }
+                };
+            }
+        };
+    }
+    
+    /**
+     * Accepts the connections until the daemon is shut down.
+     */
+    public void serve() throws IOException {
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException ioe) {
+                if (closed) {
+                    break;
+                }
+                throw ioe;
+            }
+            Session session;
+            try {
+                session = new Session(socket);
+            } catch (IOException ioe) {
+                LOGGER.warn("Unable to open a session: {}", ioe.getMessage());
+                socket.close();
+                continue;
+            }
+            sessions.add(session);
+            Thread thread = new Thread(session, "Session " + socket.getRemoteSocketAddress());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+    
+    /**
+     * Stops the current job, closes the sessions and stops accepting connections.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        serverSocket.close();
+        stopJob(null);
+        processing.close();
+        for (Session session : sessions) {
+            session.close();
+        }
+    }
+    
+    /**
+     * Replaces the current job.
+     * <p>
+     * The previous job is stopped first, so that its end line is sent before the reply to the new job.
+     * @param job the new job
+     */
+    private synchronized void startJob(Job job) throws IOException {
+        stopJob(null);
+        job.session.send("OK " + job.name);
+        currentJob = job;
+    }
+    
+    /**
+     * Stops the current job.
+     * @param session the session whose job has to be stopped (null for any session)
+     * @return true if a job has been stopped, false otherwise
+     */
+    private boolean stopJob(Session session) {
+        Job job;
+        synchronized (this) {
+            job = currentJob;
+            if (job == null || (session != null && job.session != session)) {
+                return false;
+            }
+            currentJob = null;
+        }
+        job.end();
+        return true;
+    }
+    
+    /**
+     * @return a description of the state of the daemon
+     */
+    private String getStatus() {
+        Job job = currentJob;
+        return "job=" + ((job == null) ? "idle" : job.name)
+                + " cards=" + ((job == null) ? 0 : job.cardCount.get())
+                + " readers=" + readerCount.get()
+                + " uptime=" + TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - startTime) + "s";
+    }
+    
+    /**
+     * @param words the words of a DUMP command
+     * @param session the session
+     * @return the dump job
+     */
+    private Job createDumpJob(String[] words, Session session) {
+        final KeyStore jobKeys = new KeyStore();
+        for (int i = 1; i < words.length; i++) {
+            String key = words[i].toUpperCase(Locale.ROOT);
+            if (!MifareUtils.isValidMifareClassic1KKey(key)) {
+                return null;
+            }
+            jobKeys.add(key);
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            jobKeys.add(keys.get(i));
+        }
+        jobKeys.addAll(MifareUtils.COMMON_MIFARE_CLASSIC_1K_KEYS);
+        final JsonLinesResultSink sink = session.sink;
+        return new Job("dump", session) {
+            @Override
+            void process(final ReaderDevice device, MfCard mfCard, MfReaderWriter mfReaderWriter) throws IOException {
+                long detectionTime = System.currentTimeMillis();
+                long start = System.nanoTime();
+                CardImage image = MifareUtils.readMifareClassicCard(mfReaderWriter, mfCard, jobKeys, cache, ranking);
+                final CardRecord record = new CardRecord(device.getName(), mfCard.getId(), mfCard.getTagType().toString(),
+                        image, detectionTime, System.nanoTime() - start);
+                processing.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            synchronized (session) {
+                                sink.write(record);
+                                sink.flush();
+                            }
+                        } catch (IOException ioe) {
+                            LOGGER.debug("Unable to send the result: {}", ioe.getMessage());
+                        } finally {
+                            done();
+                        }
+                    }
+                });
+            }
+        };
+    }
+    
+    /**
+     * @param words the words of a WRITE command
+     * @param session the session
+     * @return the write job, null if the command is invalid
+     */
+    private Job createWriteJob(String[] words, Session session) {
+        if (words.length != 5
+                || !MifareUtils.isValidMifareClassicBlockIndex(words[1], words[2])
+                || !MifareUtils.isValidMifareClassic1KKey(words[3])
+                || !HexUtils.isHexString(words[4])
+                || words[4].length() != 2 * CardImage.BLOCK_SIZE) {
+            return null;
+        }
+        WriteTemplate template = new WriteTemplate();
+        template.setBlock(Integer.parseInt(words[1]), Integer.parseInt(words[2]),
+                KeyStore.parseKey(words[3]), HexUtils.hexStringToBytes(words[4]));
+        return createTemplateJob("write", template, new WriteOptions(), session);
+    }
+    
+    /**
+     * @param words the words of a BATCH command
+     * @param session the session
+     * @return the batch write job, null if the command is invalid
+     */
+    private Job createBatchJob(String[] words, Session session) throws IOException {
+        if (words.length < 2) {
+            return null;
+        }
+        String imageKey = null;
+        WriteOptions options = new WriteOptions();
+        for (int i = 2; i < words.length; i++) {
+            if ("--image".equals(words[i]) && i + 1 < words.length) {
+                imageKey = words[++i].toUpperCase(Locale.ROOT);
+                if (!MifareUtils.isValidMifareClassic1KKey(imageKey)) {
+                    return null;
+                }
+            } else if ("--no-verify".equals(words[i])) {
+                options.setVerify(false);
+            } else if ("--rewrite".equals(words[i])) {
+                options.setRewriteMismatches(true);
+            } else if ("--diff".equals(words[i])) {
+                options.setDifferential(true);
+            } else if ("--include-trailers".equals(words[i])) {
+                options.setIncludeTrailers(true);
+            } else {
+                return null;
+            }
+        }
+        File templateFile = resolveTemplate(words[1]);
+        WriteTemplate template = (imageKey == null)
+                ? WriteTemplate.load(templateFile)
+                : WriteTemplate.loadImage(templateFile, KeyStore.parseKey(imageKey), options.isIncludeTrailers());
+        return createTemplateJob("batch", template, options, session);
+    }
+    
+    /**
+     * @param name the name of a template, relative to the template directory
+     * @return the template file
+     * @throws IOException if there is no template directory or if the file is outside of it
+     */
+    private File resolveTemplate(String name) throws IOException {
+        if (templateDir == null) {
+            throw new IOException("no template directory");
+        }
+        File file = new File(templateDir, name).getCanonicalFile();
+        if (!file.toPath().startsWith(templateDir.toPath())) {
+            throw new IOException("outside of the template directory: " + name);
+        }
+        return file;
+    }
+    
+    /**
+     * @param name the job name
+     * @param template the template to be written
+     * @param options the write options
+     * @param session the session
+     * @return a job writing the template to the cards
+     */
+    private Job createTemplateJob(String name, final WriteTemplate template, final WriteOptions options, Session session) {
+        return new Job(name, session) {
+            @Override
+            void process(ReaderDevice device, MfCard mfCard, MfReaderWriter mfReaderWriter) throws IOException {
+                WriteStats stats = null;
+                try {
+                    stats = MifareUtils.writeTemplateToMifareClassicCard(mfReaderWriter, mfCard, template, options);
+                } catch (CardException ce) {
+                    // Card removed
+                }
+                StringBuilder sb = new StringBuilder("{\"reader\":\"").append(device.getName().replace("\"", "\\\""))
+                        .append("\",\"uid\":\"");
+                HexUtils.appendHexString(mfCard.getId(), 0, mfCard.getId().length, sb);
+                sb.append("\",\"type\":\"").append(mfCard.getTagType()).append("\",\"cardLost\":").append(stats == null);
+                if (stats != null) {
+                    sb.append(",\"written\":").append(stats.getWrittenCount())
+                            .append(",\"skipped\":").append(stats.getSkippedCount())
+                            .append(",\"failed\":").append(stats.getFailedCount())
+                            .append(",\"durationMicros\":").append(TimeUnit.NANOSECONDS.toMicros(stats.getDurationNanos()));
+                    if (stats.isVerified()) {
+                        sb.append(",\"crc32\":\"").append(String.format("%08X", stats.getExpectedDigest()))
+                                .append("\",\"rewritten\":").append(stats.getRewrittenCount())
+                                .append(",\"mismatched\":[");
+                        // Mismatched blocks as [sector, block] pairs
+                        boolean first = true;
+                        CardLayout layout = CardLayout.forCard(mfCard);
+                        for (int sectorIndex = 0; sectorIndex < layout.getSectorCount(); sectorIndex++) {
+                            for (int blockIndex = 0; blockIndex < layout.getBlockCount(sectorIndex); blockIndex++) {
+                                if (stats.isBlockMismatched(sectorIndex, blockIndex)) {
+                                    sb.append(first ? "" : ",").append('[').append(sectorIndex).append(',').append(blockIndex).append(']');
+                                    first = false;
+                                }
+                            }
+                        }
+                        sb.append(']');
+                    }
+                }
+                sb.append('}');
+                try {
+                    session.send(sb.toString());
+                } finally {
+                    done();
+                }
+            }
+        };
+    }
+    
+    /**
+     * A job, forwarded the cards of all the readers.
+     */
+    private abstract static class Job {
+        
+        /** The job name */
+        final String name;
+        
+        /** The session which started the job (receiving its results) */
+        final Session session;
+        
+        /** Number of processed cards */
+        final AtomicInteger cardCount = new AtomicInteger();
+        
+        /** Number of cards being processed */
+        private int pendingCards;
+        
+        /** True once the job is stopped */
+        private boolean ended;
+        
+        /**
+         * Constructor.
+         * @param name the job name
+         * @param session the session which started the job
+         */
+        Job(String name, Session session) {
+            this.name = name;
+            this.session = session;
+        }
+        
+        /**
+         * @return true if the card can be processed, false if the job is stopped
+         */
+        synchronized boolean begin() {
+            if (ended) {
+                return false;
+            }
+            pendingCards++;
+            return true;
+        }
+        
+        /**
+         * Processes a card (the job must have been begun for the card).
+         * @param device the device
+         * @param mfCard the card
+         * @param mfReaderWriter the reader/writer
+         */
+        void cardDetected(ReaderDevice device, MfCard mfCard, MfReaderWriter mfReaderWriter) throws IOException {
+            cardCount.incrementAndGet();
+            boolean processed = false;
+            try {
+                process(device, mfCard, mfReaderWriter);
+                processed = true;
+            } finally {
+                if (!processed) {
+                    done();
+                }
+            }
+        }
+        
+        /**
+         * Processes a card, calling {@link #done()} once its result is sent.
+         * @param device the device
+         * @param mfCard the card
+         * @param mfReaderWriter the reader/writer
+         */
+        abstract void process(ReaderDevice device, MfCard mfCard, MfReaderWriter mfReaderWriter) throws IOException;
+        
+        /**
+         * Marks the end of the processing of a card.
+         */
+        synchronized void done() {
+            pendingCards--;
+            if (ended && pendingCards == 0) {
+                sendEnd();
+            }
+        }
+        
+        /**
+         * Stops the job: the end line is sent after the results of the cards being processed.
+         */
+        synchronized void end() {
+            ended = true;
+            if (pendingCards == 0) {
+                sendEnd();
+            }
+        }
+        
+        /**
+         * Sends the end line of the job.
+         */
+        private void sendEnd() {
+            try {
+                session.send("END " + name + " " + cardCount.get());
+            } catch (IOException ioe) {
+                LOGGER.debug("Unable to send the end of the job: {}", ioe.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * A client connection.
+     */
+    private class Session implements Runnable {
+        
+        /** The socket */
+        private final Socket socket;
+        
+        /** The writer of the replies */
+        private final Writer out;
+        
+        /** The sink of the dump results */
+        private final JsonLinesResultSink sink;
+        
+        /** True once the client has sent the token */
+        private boolean authenticated;
+        
+        /**
+         * Constructor.
+         * @param socket the socket
+         */
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            sink = new JsonLinesResultSink(socket.getOutputStream());
+        }
+        
+        @Override
+        public void run() {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] words = line.trim().split("\\s+");
+                    String command = words[0].toUpperCase(Locale.ROOT);
+                    if (command.isEmpty()) {
+                        continue;
+                    }
+                    if ("QUIT".equals(command)) {
+                        send("OK bye");
+                        break;
+                    }
+                    if ("AUTH".equals(command)) {
+                        authenticated = words.length == 2 && MessageDigest.isEqual(token, words[1].getBytes(StandardCharsets.UTF_8));
+                        if (!authenticated) {
+                            send("ERR invalid token");
+                            LOGGER.warn("Invalid token from {}", socket.getRemoteSocketAddress());
+                            break;
+                        }
+                        send("OK authenticated");
+                        continue;
+                    }
+                    if (!authenticated) {
+                        send("ERR authentication required: AUTH TOKEN");
+                        continue;
+                    }
+                    execute(command, words);
+                    if ("SHUTDOWN".equals(command)) {
+                        break;
+                    }
+                }
+            } catch (IOException ioe) {
+                LOGGER.debug("Session closed: {}", ioe.getMessage());
+            } finally {
+                stopJob(this);
+                sessions.remove(this);
+                close();
+            }
+        }
+        
+        /**
+         * Executes a command.
+         * @param command the command (upper case)
+         * @param words the words of the command line
+         */
+        private void execute(String command, String[] words) throws IOException {
+            Job job;
+            switch (command) {
+                case "DUMP":
+                    job = createDumpJob(words, this);
+                    break;
+                case "WRITE":
+                    job = createWriteJob(words, this);
+                    break;
+                case "BATCH":
+                    try {
+                        job = createBatchJob(words, this);
+                    } catch (IOException ioe) {
+                        send("ERR unable to load the template: " + ioe.getMessage());
+                        return;
+                    }
+                    break;
+                case "STOP":
+                    send(stopJob(null) ? "OK stopped" : "OK idle");
+                    return;
+                case "STATUS":
+                    send("OK " + getStatus());
+                    return;
+                case "SHUTDOWN":
+                    send("OK shutting down");
+                    ReaderDaemon.this.close();
+                    return;
+                default:
+                    send("ERR unknown command: " + command);
+                    return;
+            }
+            if (job == null) {
+                send("ERR invalid arguments: " + command + " " + usage(command));
+                return;
+            }
+            startJob(job);
+        }
+        
+        /**
+         * Sends a line to the client.
+         * @param line the line
+         */
+        synchronized void send(String line) throws IOException {
+            out.write(line);
+            out.write('\n');
+            out.flush();
+        }
+        
+        /**
+         * Closes the connection.
+         */
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                // Already closed
+            }
+        }
+    }
+    
+    /**
+     * @param command a job command
+     * @return the arguments of the command
+     */
+    private static String usage(String command) {
+        switch (command) {
+            case "DUMP":
+                return "[KEY...]";
+            case "WRITE":
+                return "S B KEY DATA";
+            default:
+                return "FILE [--image KEY] [--no-verify] [--rewrite] [--diff] [--include-trailers]";
+        }
+    }
+}
@@ -0,0 +1,470 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.lang.management.ManagementFactory;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.nfctools.mf.MfAccess;
+import org.nfctools.mf.classic.Key;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Metrics of the exchanges with the cards.
+ * <p>
+ * Records the latencies of the reads and writes (an authentication is part of each of them),
+ * successful, rejected by the card or failed in the transmission, the successes and rejections
+ * per sector and per key, the processing time of each card and the decisions of the retry policy.
+ * All the counters are lock-free: the metrics can be shared by several readers.
+ */
+public class ReaderMetrics implements ReaderMetricsMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReaderMetrics.class);
+    
+    /** Number of keys shown in the summary */
+    private static final int SUMMARY_KEY_COUNT = 10;
+    
+    /** Latencies of the successful reads */
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+    
+    /** Latencies of the successful writes */
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    
+    /** Latencies of the rejected reads and writes */
+    private final LatencyHistogram rejectedLatency = new LatencyHistogram();
+    
+    /** Latencies of the reads and writes whose transmission failed (card in the field) */
+    private final LatencyHistogram transportFailureLatency = new LatencyHistogram();
+    
+    /** Processing times of the cards */
+    private final LatencyHistogram cardLatency = new LatencyHistogram();
+    
+    /** Number of accesses aborted because the card left the field */
+    private final AtomicLong cardLostCount = new AtomicLong();
+    
+    /** Number of retried exchanges */
+    private final AtomicLong retryCount = new AtomicLong();
+    
+    /** Number of exchanges abandoned after their timeout */
+    private final AtomicLong timeoutCount = new AtomicLong();
+    
+    /** Number of exchanges which succeeded after a retry */
+    private final AtomicLong recoveredCount = new AtomicLong();
+    
+    /** Number of exchanges which failed after all their retries */
+    private final AtomicLong retriesExhaustedCount = new AtomicLong();
+    
+    /** Successes (even indexes) and rejections (odd indexes) per sector */
+    private final AtomicLongArray sectorCounters = new AtomicLongArray(2 * CardLayout.MAX_SECTOR_COUNT);
+    
+    /** Successes (index 0) and rejections (index 1) per key (packed key, with bit 48 set for key B) */
+    private final LongCounterMap keyCounters = new LongCounterMap(2);
+    
+    /**
+     * Records a read.
+     * @param access the access
+     * @param nanos the latency (in nanoseconds)
+     * @param failure the failure (null if the read succeeded)
+     */
+    public void recordRead(MfAccess access, long nanos, Exception failure) {
+        record(access, nanos, failure, readLatency);
+    }
+    
+    /**
+     * Records a write.
+     * @param access the access
+     * @param nanos the latency (in nanoseconds)
+     * @param failure the failure (null if the write succeeded)
+     */
+    public void recordWrite(MfAccess access, long nanos, Exception failure) {
+        record(access, nanos, failure, writeLatency);
+    }
+    
+    /**
+     * Records the processing of a card.
+     * @param nanos the processing time (in nanoseconds)
+     */
+    public void recordCard(long nanos) {
+        cardLatency.record(nanos);
+    }
+    
+    /**
+     * Records the retry of an exchange after a transient failure.
+     */
+    public void recordRetry() {
+        retryCount.incrementAndGet();
+    }
+    
+    /**
+     * Records an exchange abandoned after its timeout.
+     */
+    public void recordTimeout() {
+        timeoutCount.incrementAndGet();
+    }
+    
+    /**
+     * Records an exchange which succeeded after a retry.
+     */
+    public void recordRecovery() {
+        recoveredCount.incrementAndGet();
+    }
+    
+    /**
+     * Records an exchange which failed after all its retries.
+     */
+    public void recordRetriesExhausted() {
+        retriesExhaustedCount.incrementAndGet();
+    }
+    
+    /**
+     * @return the histogram of the successful reads
+     */
+    public LatencyHistogram getReadLatency() {
+        return readLatency;
+    }
+    
+    /**
+     * @return the histogram of the successful writes
+     */
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+    
+    /**
+     * @return the histogram of the rejected reads and writes
+     */
+    public LatencyHistogram getRejectedLatency() {
+        return rejectedLatency;
+    }
+    
+    /**
+     * @return the histogram of the reads and writes whose transmission failed
+     */
+    public LatencyHistogram getTransportFailureLatency() {
+        return transportFailureLatency;
+    }
+    
+    /**
+     * @return the histogram of the card processing times
+     */
+    public LatencyHistogram getCardLatency() {
+        return cardLatency;
+    }
+    
+    /**
+     * @param key a sector key
+     * @return the number of successful accesses with the key
+     */
+    public long getSuccessCount(SectorKey key) {
+        AtomicLongArray counters = keyCounters.get(keyId(key.getType(), key.getKey()));
+        return (counters == null) ? 0 : counters.get(0);
+    }
+    
+    /**
+     * @param key a sector key
+     * @return the number of rejected accesses with the key
+     */
+    public long getFailureCount(SectorKey key) {
+        AtomicLongArray counters = keyCounters.get(keyId(key.getType(), key.getKey()));
+        return (counters == null) ? 0 : counters.get(1);
+    }
+    
+    @Override
+    public long getCardCount() {
+        return cardLatency.getCount();
+    }
+    
+    @Override
+    public double getCardMeanMillis() {
+        return cardLatency.getMean(TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public long getCardP99Millis() {
+        return cardLatency.getPercentile(99, TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public long getReadCount() {
+        return readLatency.getCount();
+    }
+    
+    @Override
+    public double getReadMeanMicros() {
+        return readLatency.getMean(TimeUnit.MICROSECONDS);
+    }
+    
+    @Override
+    public long getReadP99Micros() {
+        return readLatency.getPercentile(99, TimeUnit.MICROSECONDS);
+    }
+    
+    @Override
+    public long getWriteCount() {
+        return writeLatency.getCount();
+    }
+    
+    @Override
+    public double getWriteMeanMicros() {
+        return writeLatency.getMean(TimeUnit.MICROSECONDS);
+    }
+    
+    @Override
+    public long getWriteP99Micros() {
+        return writeLatency.getPercentile(99, TimeUnit.MICROSECONDS);
+    }
+    
+    @Override
+    public long getRejectedCount() {
+        return rejectedLatency.getCount();
+    }
+    
+    @Override
+    public double getRejectedMeanMicros() {
+        return rejectedLatency.getMean(TimeUnit.MICROSECONDS);
+    }
+    
+    @Override
+    public long getTransportFailureCount() {
+        return transportFailureLatency.getCount();
+    }
+    
+    @Override
+    public double getTransportFailureMeanMicros() {
+        return transportFailureLatency.getMean(TimeUnit.MICROSECONDS);
+    }
+    
+    @Override
+    public long getCardLostCount() {
+        return cardLostCount.get();
+    }
+    
+    @Override
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+    
+    @Override
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+    
+    @Override
+    public long getRecoveredCount() {
+        return recoveredCount.get();
+    }
+    
+    @Override
+    public long getRetriesExhaustedCount() {
+        return retriesExhaustedCount.get();
+    }
+    
+    @Override
+    public long[] getSectorSuccessCounts() {
+        return getSectorCounts(0);
+    }
+    
+    @Override
+    public long[] getSectorFailureCounts() {
+        return getSectorCounts(1);
+    }
+    
+    @Override
+    public Map<String, Long> getKeySuccessCounts() {
+        Map<String, Long> counts = new HashMap<>();
+        for (long keyId : keyCounters.keys()) {
+            long successes = keyCounters.get(keyId).get(0);
+            if (successes > 0) {
+                counts.put(keyName(keyId), successes);
+            }
+        }
+        return counts;
+    }
+    
+    @Override
+    public void reset() {
+        readLatency.reset();
+        writeLatency.reset();
+        rejectedLatency.reset();
+        transportFailureLatency.reset();
+        cardLatency.reset();
+        cardLostCount.set(0);
+        retryCount.set(0);
+        timeoutCount.set(0);
+        recoveredCount.set(0);
+        retriesExhaustedCount.set(0);
+        for (int i = 0; i < sectorCounters.length(); i++) {
+            sectorCounters.set(i, 0);
+        }
+        keyCounters.clear();
+    }
+    
+    /**
+     * Registers the metrics to the platform MBean server.
+     * @param name the name of the metrics (e.g. the command)
+     * @return true if the metrics have been registered, false otherwise
+     */
+    public boolean register(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("eu.verdelhan.acr122urw:type=ReaderMetrics,name=" + ObjectName.quote(name)));
+            return true;
+        } catch (JMException jme) {
+            LOGGER.warn("Unable to register the metrics: {}", jme.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * @return a multi-line summary of the metrics
+     */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Cards:    ").append(cardLatency).append('\n');
+        sb.append("Reads:    ").append(readLatency).append('\n');
+        sb.append("Writes:   ").append(writeLatency).append('\n');
+        sb.append("Rejected: ").append(rejectedLatency).append('\n');
+        sb.append("Failed:   ").append(transportFailureLatency).append('\n');
+        sb.append("Card lost: ").append(cardLostCount.get()).append('\n');
+        sb.append("Retries:  count=").append(retryCount.get())
+                .append(" timeouts=").append(timeoutCount.get())
+                .append(" recovered=").append(recoveredCount.get())
+                .append(" exhausted=").append(retriesExhaustedCount.get()).append('\n');
+        sb.append("Sectors (successes/rejections):");
+        for (int sectorIndex = 0; sectorIndex < CardLayout.MAX_SECTOR_COUNT; sectorIndex++) {
+            if (sectorIndex >= CardLayout.CLASSIC_1K.getSectorCount()
+                    && sectorCounters.get(2 * sectorIndex) == 0 && sectorCounters.get(2 * sectorIndex + 1) == 0) {
+                // Unused 4K sector
+                continue;
+            }
+            sb.append(' ').append(sectorIndex).append('=')
+                    .append(sectorCounters.get(2 * sectorIndex)).append('/')
+                    .append(sectorCounters.get(2 * sectorIndex + 1));
+        }
+        sb.append('\n');
+        
+        // Most successful keys first
+        List<Map.Entry<Long, long[]>> keys = new ArrayList<>();
+        for (long keyId : keyCounters.keys()) {
+            AtomicLongArray counters = keyCounters.get(keyId);
+            long[] counts = { counters.get(0), counters.get(1) };
+            keys.add(new AbstractMap.SimpleEntry<>(keyId, counts));
+        }
+        Collections.sort(keys, new Comparator<Map.Entry<Long, long[]>>() {
+            @Override
+            public int compare(Map.Entry<Long, long[]> e1, Map.Entry<Long, long[]> e2) {
+                return Long.compare(e2.getValue()[0], e1.getValue()[0]);
+            }
+        });
+        sb.append("Keys (successes/rejections):");
+        for (int i = 0; i < keys.size() && i < SUMMARY_KEY_COUNT; i++) {
+            Map.Entry<Long, long[]> entry = keys.get(i);
+            sb.append(' ').append(keyName(entry.getKey())).append('=')
+                    .append(entry.getValue()[0]).append('/').append(entry.getValue()[1]);
+        }
+        if (keys.size() > SUMMARY_KEY_COUNT) {
+            sb.append(" (").append(keys.size() - SUMMARY_KEY_COUNT).append(" more)");
+        }
+        return sb.toString();
+    }
+    
+    @Override
+    public String toString() {
+        return getSummary();
+    }
+    
+    /**
+     * Records an access.
+     * @param access the access
+     * @param nanos the latency (in nanoseconds)
+     * @param failure the failure (null if the access succeeded)
+     * @param successLatency the histogram of the successful accesses
+     */
+    private void record(MfAccess access, long nanos, Exception failure, LatencyHistogram successLatency) {
+        // Not the fault of the key
+        if (failure != null && MifareUtils.isCardAbsent(failure)) {
+            cardLostCount.incrementAndGet();
+            return;
+        }
+        if (failure != null && MifareUtils.getCardException(failure) != null) {
+            // Failed transmission or timeout, even if retried
+            transportFailureLatency.record(nanos);
+            return;
+        }
+        int outcome = (failure == null) ? 0 : 1;
+        if (failure == null) {
+            successLatency.record(nanos);
+        } else {
+            rejectedLatency.record(nanos);
+        }
+        int sectorIndex = access.getSector();
+        if (sectorIndex >= 0 && sectorIndex < CardLayout.MAX_SECTOR_COUNT) {
+            sectorCounters.incrementAndGet(2 * sectorIndex + outcome);
+        }
+        long key = KeyStore.toKey(access.getKeyValue());
+        if (key != KeyStore.INVALID_KEY) {
+            keyCounters.getOrCreate(keyId(access.getKey(), key)).incrementAndGet(outcome);
+        }
+    }
+    
+    /**
+     * @param sectorCounterIndex 0 for the successes, 1 for the rejections
+     * @return the counts per sector
+     */
+    private long[] getSectorCounts(int sectorCounterIndex) {
+        long[] counts = new long[CardLayout.MAX_SECTOR_COUNT];
+        for (int sectorIndex = 0; sectorIndex < CardLayout.MAX_SECTOR_COUNT; sectorIndex++) {
+            counts[sectorIndex] = sectorCounters.get(2 * sectorIndex + sectorCounterIndex);
+        }
+        return counts;
+    }
+    
+    /**
+     * @param keyType the key type
+     * @param key the packed key
+     * @return the identifier of the key in the counters
+     */
+    private static long keyId(Key keyType, long key) {
+        return (keyType == Key.B) ? key | (1L << 48) : key;
+    }
+    
+    /**
+     * @param keyId the identifier of a key in the counters
+     * @return the key name (e.g. "FFFFFFFFFFFF/A")
+     */
+    private static String keyName(long keyId) {
+        return KeyStore.toHexString(keyId & ((1L << 48) - 1)) + (((keyId & (1L << 48)) == 0) ? "/A" : "/B");
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link ReaderMetrics}.
+ * <p>
+ * Latencies are in microseconds, except the card ones (in milliseconds).
+ */
+public interface ReaderMetricsMXBean {
+
+    /**
+     * @return the number of processed cards
+     */
+    long getCardCount();
+    
+    /**
+     * @return the mean processing time of a card
+     */
+    double getCardMeanMillis();
+    
+    /**
+     * @return the 99th percentile of the processing time of a card
+     */
+    long getCardP99Millis();
+    
+    /**
+     * @return the number of successful reads
+     */
+    long getReadCount();
+    
+    /**
+     * @return the mean latency of the successful reads
+     */
+    double getReadMeanMicros();
+    
+    /**
+     * @return the 99th percentile of the latency of the successful reads
+     */
+    long getReadP99Micros();
+    
+    /**
+     * @return the number of successful writes
+     */
+    long getWriteCount();
+    
+    /**
+     * @return the mean latency of the successful writes
+     */
+    double getWriteMeanMicros();
+    
+    /**
+     * @return the 99th percentile of the latency of the successful writes
+     */
+    long getWriteP99Micros();
+    
+    /**
+     * @return the number of reads and writes rejected by the card (authentication failures or denied accesses)
+     */
+    long getRejectedCount();
+    
+    /**
+     * @return the mean latency of the rejected reads and writes
+     */
+    double getRejectedMeanMicros();
+    
+    /**
+     * @return the number of reads and writes whose transmission failed or timed out, the card being in the field (retried or not)
+     */
+    long getTransportFailureCount();
+    
+    /**
+     * @return the mean latency of the reads and writes whose transmission failed
+     */
+    double getTransportFailureMeanMicros();
+    
+    /**
+     * @return the number of reads and writes aborted because the card left the field
+     */
+    long getCardLostCount();
+    
+    /**
+     * @return the number of exchanges retried after a transient failure
+     */
+    long getRetryCount();
+    
+    /**
+     * @return the number of exchanges abandoned after their timeout
+     */
+    long getTimeoutCount();
+    
+    /**
+     * @return the number of exchanges which succeeded after a retry
+     */
+    long getRecoveredCount();
+    
+    /**
+     * @return the number of exchanges which failed after all their retries
+     */
+    long getRetriesExhaustedCount();
+    
+    /**
+     * @return the number of successful accesses per sector
+     */
+    long[] getSectorSuccessCounts();
+    
+    /**
+     * @return the number of rejected accesses per sector
+     */
+    long[] getSectorFailureCounts();
+    
+    /**
+     * @return the number of successful accesses per key (e.g. "FFFFFFFFFFFF/A")
+     */
+    Map<String, Long> getKeySuccessCounts();
+    
+    /**
+     * Resets all the metrics.
+     */
+    void reset();
+}
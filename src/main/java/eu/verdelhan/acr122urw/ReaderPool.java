@@ -0,0 +1,151 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.TerminalFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of devices listening for cards concurrently.
+ * <p>
+ * Each device is opened and started by its own worker, and then notifies its own
+ * listener from its own polling thread: a slow card on one reader doesn't hold back
+ * the other readers. The listeners should write their results to a shared,
+ * thread-safe {@link ResultSink}.
+ */
+public class ReaderPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReaderPool.class);
+
+    /** The devices */
+    private final List<ReaderDevice> devices;
+    
+    /** The started devices */
+    private final List<ReaderDevice> startedDevices = new ArrayList<>();
+    
+    /**
+     * Constructor.
+     * @param devices the devices
+     */
+    public ReaderPool(List<? extends ReaderDevice> devices) {
+        this.devices = new ArrayList<>(devices);
+    }
+    
+    /**
+     * @param namePart a part of the terminal names (e.g. "ACR122")
+     * @return the attached terminals whose name contains the provided part
+     */
+    public static List<CardTerminal> findTerminals(String namePart) throws CardException {
+        List<CardTerminal> terminals = new ArrayList<>();
+        for (CardTerminal terminal : TerminalFactory.getDefault().terminals().list()) {
+            if (terminal.getName().contains(namePart)) {
+                terminals.add(terminal);
+            }
+        }
+        return terminals;
+    }
+    
+    /**
+     * @return a pool of all the attached ACR122 devices (may be empty)
+     */
+    public static ReaderPool createAcr122Pool() throws CardException {
+        List<ReaderDevice> acr122Devices = new ArrayList<>();
+        for (CardTerminal terminal : findTerminals("ACR122")) {
+            acr122Devices.add(new Acr122Device(terminal));
+        }
+        return new ReaderPool(acr122Devices);
+    }
+    
+    /**
+     * @return the devices of the pool
+     */
+    public List<ReaderDevice> getDevices() {
+        return Collections.unmodifiableList(devices);
+    }
+    
+    /**
+     * Opens all the devices and starts listening for cards.
+     * <p>
+     * Devices which fail to start are reported and left closed.
+     * @param listenerFactory the factory of the listener of each device
+     * @return the number of started devices
+     */
+    public synchronized int start(final CardListenerFactory listenerFactory) {
+        if (devices.isEmpty()) {
+            return 0;
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(devices.size());
+        try {
+            List<Future<ReaderDevice>> starts = new ArrayList<>();
+            for (final ReaderDevice device : devices) {
+                starts.add(workers.submit(new Callable<ReaderDevice>() {
+                    @Override
+                    public ReaderDevice call() throws IOException {
+                        device.open();
+                        device.listen(listenerFactory.createListener(device));
+                        return device;
+                    }
+                }));
+            }
+            for (int i = 0; i < starts.size(); i++) {
+                try {
+                    startedDevices.add(starts.get(i).get());
+                } catch (ExecutionException ee) {
+                    LOGGER.warn("Unable to start {}: {}", devices.get(i).getName(), ee.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            workers.shutdown();
+        }
+        return startedDevices.size();
+    }
+    
+    /**
+     * Closes all the started devices.
+     */
+    public synchronized void stop() {
+        for (ReaderDevice device : startedDevices) {
+            try {
+                device.close();
+            } catch (IOException ioe) {
+                LOGGER.warn("Unable to close {}: {}", device.getName(), ioe.getMessage());
+            }
+        }
+        startedDevices.clear();
+    }
+}
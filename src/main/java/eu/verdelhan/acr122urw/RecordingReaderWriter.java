@@ -0,0 +1,123 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.IOException;
+import org.nfctools.mf.MfAccess;
+import org.nfctools.mf.MfCardListener;
+import org.nfctools.mf.MfReaderWriter;
+import org.nfctools.mf.block.MfBlock;
+import org.nfctools.mf.card.MfCard;
+
+/**
+ * A reader/writer recording each exchange (request, response and duration) into a {@link TraceRecorder}.
+ * <p>
+ * The trace can be replayed later through a {@link ReplayReaderWriter}, to run the dump and write
+ * flows again without the cards and the readers.
+ */
+public class RecordingReaderWriter implements MfReaderWriter, CardPresence {
+
+    /** The actual reader/writer */
+    private final MfReaderWriter delegate;
+    
+    /** The recorder */
+    private final TraceRecorder recorder;
+    
+    /** The session number of the card */
+    private final int session;
+    
+    /**
+     * Constructor.
+     * @param delegate the actual reader/writer
+     * @param recorder the recorder
+     * @param session the session number of the card in the field
+     */
+    public RecordingReaderWriter(MfReaderWriter delegate, TraceRecorder recorder, int session) {
+        this.delegate = delegate;
+        this.recorder = recorder;
+        this.session = session;
+    }
+    
+    /**
+     * @param listener a card listener
+     * @param readerName the name of the reader
+     * @param recorder the recorder
+     * @return a listener recording each detected card and the exchanges made by the listener
+     */
+    public static MfCardListener record(final MfCardListener listener, final String readerName, final TraceRecorder recorder) {
+        return new MfCardListener() {
+            @Override
+            public void cardDetected(MfCard mfCard, MfReaderWriter mfReaderWriter) throws IOException {
+                int session = recorder.recordCard(readerName, mfCard);
+                listener.cardDetected(mfCard, new RecordingReaderWriter(mfReaderWriter, recorder, session));
+            }
+        };
+    }
+    
+    @Override
+    public MfBlock[] readBlock(MfAccess access) throws IOException {
+        long start = System.nanoTime();
+        MfBlock[] blocks;
+        try {
+            blocks = delegate.readBlock(access);
+        } catch (IOException ioe) {
+            recorder.recordRead(session, access, System.nanoTime() - start, null, ioe);
+            throw ioe;
+        }
+        recorder.recordRead(session, access, System.nanoTime() - start, blocks, null);
+        return blocks;
+    }
+    
+    @Override
+    public void writeBlock(MfAccess access, MfBlock... mfBlock) throws IOException {
+        long start = System.nanoTime();
+        try {
+            delegate.writeBlock(access, mfBlock);
+        } catch (IOException ioe) {
+            recorder.recordWrite(session, access, mfBlock.length, System.nanoTime() - start, ioe);
+            throw ioe;
+        }
+        recorder.recordWrite(session, access, mfBlock.length, System.nanoTime() - start, null);
+    }
+    
+    @Override
+    public boolean isCardPresent() throws IOException {
+        if (!(delegate instanceof CardPresence)) {
+            return true;
+        }
+        boolean present = ((CardPresence) delegate).isCardPresent();
+        recorder.recordPresence(session, present);
+        return present;
+    }
+    
+    @Override
+    public void setCardListener(MfCardListener mfCardListener) throws IOException {
+        delegate.setCardListener(mfCardListener);
+    }
+    
+    @Override
+    public void removeCardListener() {
+        delegate.removeCardListener();
+    }
+}
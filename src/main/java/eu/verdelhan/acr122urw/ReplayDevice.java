@@ -0,0 +1,164 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.nfctools.mf.MfCardListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A device replaying the cards of a recorded trace on a {@link ReplayReaderWriter}.
+ * <p>
+ * Once listening, the device taps its cards with the recorded delays between their detections
+ * (multiplied by the time scale), then stays idle.
+ */
+public class ReplayDevice implements ReaderDevice {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplayDevice.class);
+
+    /** The device name */
+    private final String name;
+    
+    /** The replaying reader/writer */
+    private final ReplayReaderWriter readerWriter;
+    
+    /** The cards to be tapped */
+    private final List<ReplayReaderWriter.RecordedCard> cards;
+    
+    /** The detection time of the first card of the trace (milliseconds since the epoch) */
+    private final long traceStart;
+    
+    /** Multiplier of the recorded durations */
+    private final double timeScale;
+    
+    /** The thread tapping the cards */
+    private Thread tapper;
+    
+    /**
+     * Constructor.
+     * @param name the device name
+     * @param cards the cards to be tapped
+     * @param traceStart the detection time of the first card of the trace (milliseconds since the epoch)
+     * @param timeScale the multiplier of the recorded durations (1 for the recorded timing, 0 for no waiting)
+     */
+    public ReplayDevice(String name, List<ReplayReaderWriter.RecordedCard> cards, long traceStart, double timeScale) {
+        this.name = name;
+        this.readerWriter = new ReplayReaderWriter();
+        this.readerWriter.setTimeScale(timeScale);
+        this.cards = new ArrayList<>(cards);
+        this.traceStart = traceStart;
+        this.timeScale = timeScale;
+    }
+    
+    /**
+     * Loads the devices of a trace: one device per recorded reader.
+     * @param file the trace file
+     * @param timeScale the multiplier of the recorded durations (1 for the recorded timing, 0 for no waiting)
+     * @return the devices
+     */
+    public static List<ReplayDevice> load(File file, double timeScale) throws IOException {
+        List<ReplayReaderWriter.RecordedCard> cards = ReplayReaderWriter.load(file);
+        Map<String, List<ReplayReaderWriter.RecordedCard>> readerCards = new LinkedHashMap<>();
+        for (ReplayReaderWriter.RecordedCard card : cards) {
+            List<ReplayReaderWriter.RecordedCard> list = readerCards.get(card.getReaderName());
+            if (list == null) {
+                list = new ArrayList<>();
+                readerCards.put(card.getReaderName(), list);
+            }
+            list.add(card);
+        }
+        long traceStart = cards.isEmpty() ? 0 : cards.get(0).getDetectionTime();
+        List<ReplayDevice> devices = new ArrayList<>();
+        for (Map.Entry<String, List<ReplayReaderWriter.RecordedCard>> entry : readerCards.entrySet()) {
+            devices.add(new ReplayDevice(entry.getKey() + " (replay)", entry.getValue(), traceStart, timeScale));
+        }
+        return devices;
+    }
+    
+    /**
+     * @return the replaying reader/writer
+     */
+    public ReplayReaderWriter getReaderWriter() {
+        return readerWriter;
+    }
+    
+    @Override
+    public String getName() {
+        return name;
+    }
+    
+    @Override
+    public void open() throws IOException {
+        LOGGER.info("Opening device {} ({} recorded cards)", name, cards.size());
+    }
+    
+    @Override
+    public synchronized void listen(MfCardListener listener) throws IOException {
+        LOGGER.info("Listening for cards on {}", name);
+        readerWriter.setCardListener(listener);
+        tapper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    for (ReplayReaderWriter.RecordedCard card : cards) {
+                        long tapNanos = (long) (TimeUnit.MILLISECONDS.toNanos(card.getDetectionTime() - traceStart) * timeScale);
+                        long delayNanos = tapNanos - (System.nanoTime() - start);
+                        if (delayNanos > 0) {
+                            TimeUnit.NANOSECONDS.sleep(delayNanos);
+                        }
+                        readerWriter.tap(card);
+                    }
+                    LOGGER.info("Replay done on {}: {} exchanges replayed", name, readerWriter.getReplayedCount());
+                    if (readerWriter.getMissedCount() > 0) {
+                        LOGGER.warn("Replay on {}: {} requests not in the trace", name, readerWriter.getMissedCount());
+                    }
+                } catch (InterruptedException ie) {
+                    // Device closed
+                } catch (IOException ioe) {
+                    LOGGER.warn("Replayed tap failed: {}", ioe.getMessage());
+                }
+            }
+        }, name);
+        tapper.setDaemon(true);
+        tapper.start();
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        LOGGER.info("Closing device {}", name);
+        if (tapper != null) {
+            tapper.interrupt();
+            tapper = null;
+        }
+        readerWriter.removeCardListener();
+    }
+}
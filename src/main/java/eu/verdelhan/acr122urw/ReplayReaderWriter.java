@@ -0,0 +1,518 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardNotPresentException;
+import org.nfctools.api.TagType;
+import org.nfctools.mf.MfAccess;
+import org.nfctools.mf.MfCardListener;
+import org.nfctools.mf.MfException;
+import org.nfctools.mf.MfReaderWriter;
+import org.nfctools.mf.block.BlockResolver;
+import org.nfctools.mf.block.MfBlock;
+import org.nfctools.mf.card.MfCard;
+import org.nfctools.mf.card.MfCard1k;
+import org.nfctools.mf.card.MfCard4k;
+import org.nfctools.mf.classic.Key;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A reader/writer answering with the responses of a trace recorded by a {@link RecordingReaderWriter}.
+ * <p>
+ * The exchanges of a replayed card are matched on their request (reading or writing, sector, first block,
+ * block count, key type and key), not on their order: a changed dump or write flow can be run against the
+ * trace, as long as it only makes recorded requests. A request recorded several times gets its responses in
+ * the recorded order, then the last one again. A request which is not in the trace is rejected as a denied
+ * access, and counted as missed.
+ * <p>
+ * Each response is returned after the recorded duration of the exchange, multiplied by the time scale
+ * (1 for the recorded timing, 0 for no waiting).
+ * <p>
+ * The presence probes get the recorded results in order, then the last one again (present if none was recorded).
+ */
+public class ReplayReaderWriter implements MfReaderWriter, CardPresence {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplayReaderWriter.class);
+
+    /** The card in the field (null if there is none) */
+    private volatile RecordedCard card;
+    
+    /** The card listener */
+    private volatile MfCardListener listener;
+    
+    /** Multiplier of the recorded durations */
+    private volatile double timeScale = 1;
+    
+    /** Number of replayed exchanges */
+    private long replayedCount;
+    
+    /** Number of requests which are not in the trace */
+    private long missedCount;
+    
+    /**
+     * Loads a trace.
+     * <p>
+     * A truncated trace (e.g. an interrupted recording) is loaded up to its last complete record.
+     * @param file the trace file
+     * @return the recorded cards, in the order of their detection
+     */
+    public static List<RecordedCard> load(File file) throws IOException {
+        List<RecordedCard> cards = new ArrayList<>();
+        Map<Integer, RecordedCard> sessions = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            if (in.readInt() != TraceRecorder.MAGIC) {
+                throw new IOException("Not a trace file: " + file);
+            }
+            int version = in.readUnsignedByte();
+            if (version != TraceRecorder.VERSION) {
+                throw new IOException("Unsupported trace version: " + version);
+            }
+            int recordType;
+            while ((recordType = in.read()) >= 0) {
+                int session = in.readInt();
+                if (recordType == TraceRecorder.CARD_RECORD) {
+                    String readerName = in.readUTF();
+                    TagType tagType = TagType.valueOf(in.readUTF());
+                    byte[] uid = new byte[in.readUnsignedByte()];
+                    in.readFully(uid);
+                    RecordedCard recordedCard = new RecordedCard(readerName, createCard(uid, tagType), in.readLong());
+                    cards.add(recordedCard);
+                    sessions.put(session, recordedCard);
+                } else if (recordType == TraceRecorder.READ_RECORD || recordType == TraceRecorder.WRITE_RECORD) {
+                    RecordedCard recordedCard = sessions.get(session);
+                    if (recordedCard == null) {
+                        throw new IOException("Invalid trace: exchange of unknown session " + session);
+                    }
+                    int sectorIndex = in.readUnsignedByte();
+                    int blockIndex = in.readUnsignedByte();
+                    int blockCount = in.readUnsignedByte();
+                    Key keyType = (in.readUnsignedByte() == 1) ? Key.A : Key.B;
+                    byte[] keyBytes = new byte[6];
+                    in.readFully(keyBytes);
+                    Request request = new Request(recordType, sectorIndex, blockIndex, blockCount, keyType, KeyStore.toKey(keyBytes));
+                    long durationNanos = TimeUnit.MICROSECONDS.toNanos(in.readInt() & 0xFFFFFFFFL);
+                    int outcome = in.readUnsignedByte();
+                    byte[] data = null;
+                    String message = null;
+                    if (outcome != TraceRecorder.OUTCOME_OK) {
+                        message = in.readUTF();
+                    } else if (recordType == TraceRecorder.READ_RECORD) {
+                        data = new byte[blockCount * CardImage.BLOCK_SIZE];
+                        in.readFully(data);
+                    }
+                    recordedCard.addExchange(request, new Response(durationNanos, outcome, data, message));
+                } else if (recordType == TraceRecorder.PRESENCE_RECORD) {
+                    RecordedCard recordedCard = sessions.get(session);
+                    if (recordedCard == null) {
+                        throw new IOException("Invalid trace: presence probe of unknown session " + session);
+                    }
+                    recordedCard.presences.add(in.readBoolean());
+                } else {
+                    throw new IOException("Invalid trace: unknown record type " + recordType);
+                }
+            }
+        } catch (EOFException eofe) {
+            // Recording interrupted: the complete records are kept
+            LOGGER.warn("Truncated trace: {}", file);
+        } catch (IllegalArgumentException iae) {
+            throw new IOException("Invalid trace: " + file, iae);
+        }
+        return cards;
+    }
+    
+    /**
+     * @param timeScale the multiplier of the recorded durations (1 for the recorded timing, 0 for no waiting)
+     */
+    public void setTimeScale(double timeScale) {
+        if (timeScale < 0) {
+            throw new IllegalArgumentException("Time scale must not be negative");
+        }
+        this.timeScale = timeScale;
+    }
+    
+    /**
+     * @return the number of replayed exchanges
+     */
+    public synchronized long getReplayedCount() {
+        return replayedCount;
+    }
+    
+    /**
+     * @return the number of requests which are not in the trace
+     */
+    public synchronized long getMissedCount() {
+        return missedCount;
+    }
+    
+    /**
+     * Taps a recorded card: puts it in the field, notifies the listener and removes it.
+     * <p>
+     * The responses of the card are replayed from the first ones.
+     * @param recordedCard the recorded card
+     */
+    public void tap(RecordedCard recordedCard) throws IOException {
+        recordedCard.rewind();
+        card = recordedCard;
+        try {
+            MfCardListener l = listener;
+            if (l != null) {
+                l.cardDetected(recordedCard.getMfCard(), this);
+            }
+        } finally {
+            card = null;
+        }
+    }
+    
+    @Override
+    public MfBlock[] readBlock(MfAccess access) throws IOException {
+        RecordedCard c = card;
+        Response response = replay(c, TraceRecorder.READ_RECORD, access, access.getBlocksToRead());
+        MfBlock[] blocks = new MfBlock[access.getBlocksToRead()];
+        for (int i = 0; i < blocks.length; i++) {
+            byte[] data = new byte[CardImage.BLOCK_SIZE];
+            System.arraycopy(response.data, i * CardImage.BLOCK_SIZE, data, 0, CardImage.BLOCK_SIZE);
+            try {
+                blocks[i] = BlockResolver.resolveBlock(c.layout.getMemoryLayout(), access.getSector(), access.getBlock() + i, data);
+            } catch (MfException me) {
+                throw new IOException(me.getMessage(), me);
+            }
+        }
+        return blocks;
+    }
+    
+    @Override
+    public void writeBlock(MfAccess access, MfBlock... mfBlock) throws IOException {
+        replay(card, TraceRecorder.WRITE_RECORD, access, mfBlock.length);
+    }
+    
+    @Override
+    public boolean isCardPresent() {
+        RecordedCard c = card;
+        return c != null && c.nextPresence();
+    }
+    
+    @Override
+    public void setCardListener(MfCardListener mfCardListener) throws IOException {
+        listener = mfCardListener;
+    }
+    
+    @Override
+    public void removeCardListener() {
+        listener = null;
+    }
+    
+    /**
+     * Replays an exchange.
+     * @param c the card in the field (null if there is none)
+     * @param recordType the type of the exchange (reading or writing)
+     * @param access the access
+     * @param blockCount the number of exchanged blocks
+     * @return the recorded response (successful)
+     */
+    private Response replay(RecordedCard c, int recordType, MfAccess access, int blockCount) throws IOException {
+        if (c == null) {
+            throw new IOException(new CardNotPresentException("Card not present"));
+        }
+        Request request = new Request(recordType, access.getSector(), access.getBlock(), blockCount, access.getKey(),
+                KeyStore.toKey(access.getKeyValue()));
+        Response response = c.nextResponse(request);
+        synchronized (this) {
+            if (response == null) {
+                missedCount++;
+            } else {
+                replayedCount++;
+            }
+        }
+        if (response == null) {
+            throw new IOException("Exchange not in the trace: " + request);
+        }
+        long delayNanos = (long) (response.durationNanos * timeScale);
+        if (delayNanos > 0) {
+            LockSupport.parkNanos(delayNanos);
+        }
+        if (response.outcome == TraceRecorder.OUTCOME_ABSENT) {
+            throw new IOException(new CardNotPresentException(response.message));
+        } else if (response.outcome == TraceRecorder.OUTCOME_FAILED) {
+            throw new IOException(new CardException(response.message));
+        } else if (response.outcome != TraceRecorder.OUTCOME_OK) {
+            throw new IOException(response.message);
+        }
+        return response;
+    }
+    
+    /**
+     * @param uid the card UID
+     * @param tagType the tag type
+     * @return the card, as seen by the nfctools listeners
+     */
+    private static MfCard createCard(byte[] uid, TagType tagType) {
+        if (tagType == TagType.MIFARE_CLASSIC_4K) {
+            return new MfCard4k(uid, null);
+        } else if (tagType == TagType.MIFARE_MINI) {
+            return new MfCard(uid, TagType.MIFARE_MINI, null) {
+            };
+        }
+        return new MfCard1k(uid, null);
+    }
+    
+    /**
+     * A card of a trace, with its recorded exchanges.
+     */
+    public static final class RecordedCard {
+        
+        /** The name of the reader which detected the card */
+        private final String readerName;
+        
+        /** The card */
+        private final MfCard mfCard;
+        
+        /** The card layout */
+        private final CardLayout layout;
+        
+        /** The detection time (milliseconds since the epoch) */
+        private final long detectionTime;
+        
+        /** The recorded responses, per request */
+        private final Map<Request, Responses> exchanges = new HashMap<>();
+        
+        /** Number of recorded exchanges */
+        private int exchangeCount;
+        
+        /** The recorded results of the presence probes */
+        private final List<Boolean> presences = new ArrayList<>();
+        
+        /** The index of the next presence probe to be replayed */
+        private int nextPresence;
+        
+        /**
+         * Constructor.
+         * @param readerName the name of the reader which detected the card
+         * @param mfCard the card
+         * @param detectionTime the detection time (milliseconds since the epoch)
+         */
+        private RecordedCard(String readerName, MfCard mfCard, long detectionTime) {
+            this.readerName = readerName;
+            this.mfCard = mfCard;
+            this.layout = CardLayout.forCard(mfCard);
+            this.detectionTime = detectionTime;
+        }
+        
+        /**
+         * @return the name of the reader which detected the card
+         */
+        public String getReaderName() {
+            return readerName;
+        }
+        
+        /**
+         * @return the card, as seen by the nfctools listeners
+         */
+        public MfCard getMfCard() {
+            return mfCard;
+        }
+        
+        /**
+         * @return the detection time (milliseconds since the epoch)
+         */
+        public long getDetectionTime() {
+            return detectionTime;
+        }
+        
+        /**
+         * @return the number of recorded exchanges
+         */
+        public int getExchangeCount() {
+            return exchangeCount;
+        }
+        
+        /**
+         * @param request a request
+         * @param response its recorded response
+         */
+        private void addExchange(Request request, Response response) {
+            Responses responses = exchanges.get(request);
+            if (responses == null) {
+                responses = new Responses();
+                exchanges.put(request, responses);
+            }
+            responses.list.add(response);
+            exchangeCount++;
+        }
+        
+        /**
+         * @param request a request
+         * @return the next recorded response to the request, null if the request is not in the trace
+         */
+        private synchronized Response nextResponse(Request request) {
+            Responses responses = exchanges.get(request);
+            if (responses == null) {
+                return null;
+            }
+            int index = Math.min(responses.next++, responses.list.size() - 1);
+            return responses.list.get(index);
+        }
+        
+        /**
+         * @return the next recorded result of the presence probe (true if none was recorded)
+         */
+        private synchronized boolean nextPresence() {
+            if (presences.isEmpty()) {
+                return true;
+            }
+            return presences.get(Math.min(nextPresence++, presences.size() - 1));
+        }
+        
+        /**
+         * Replays the responses from the first ones.
+         */
+        private synchronized void rewind() {
+            for (Responses responses : exchanges.values()) {
+                responses.next = 0;
+            }
+            nextPresence = 0;
+        }
+    }
+    
+    /**
+     * A recorded request.
+     */
+    private static final class Request {
+        
+        /** The record type (reading or writing) */
+        private final int recordType;
+        
+        /** The sector */
+        private final int sectorIndex;
+        
+        /** The first block */
+        private final int blockIndex;
+        
+        /** The number of blocks */
+        private final int blockCount;
+        
+        /** The key type */
+        private final Key keyType;
+        
+        /** The packed key */
+        private final long key;
+        
+        /**
+         * Constructor.
+         * @param recordType the record type (reading or writing)
+         * @param sectorIndex the sector
+         * @param blockIndex the first block
+         * @param blockCount the number of blocks
+         * @param keyType the key type
+         * @param key the packed key
+         */
+        private Request(int recordType, int sectorIndex, int blockIndex, int blockCount, Key keyType, long key) {
+            this.recordType = recordType;
+            this.sectorIndex = sectorIndex;
+            this.blockIndex = blockIndex;
+            this.blockCount = blockCount;
+            this.keyType = keyType;
+            this.key = key;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Request)) {
+                return false;
+            }
+            Request r = (Request) o;
+            return r.recordType == recordType && r.sectorIndex == sectorIndex && r.blockIndex == blockIndex
+                    && r.blockCount == blockCount && r.keyType == keyType && r.key == key;
+        }
+        
+        @Override
+        public int hashCode() {
+            int h = (recordType << 24) | (sectorIndex << 16) | (blockIndex << 8) | blockCount;
+            return 31 * h + (int) (key ^ (key >>> 32)) + keyType.ordinal();
+        }
+        
+        @Override
+        public String toString() {
+            return ((recordType == TraceRecorder.READ_RECORD) ? "read" : "write") + " sector " + sectorIndex + " block " + blockIndex
+                    + " (" + blockCount + " block(s)) with key " + keyType + " " + KeyStore.toHexString(key);
+        }
+    }
+    
+    /**
+     * A recorded response.
+     */
+    private static final class Response {
+        
+        /** The duration of the exchange (in nanoseconds) */
+        private final long durationNanos;
+        
+        /** The outcome of the exchange */
+        private final int outcome;
+        
+        /** The read data (null if none) */
+        private final byte[] data;
+        
+        /** The failure message (null if the exchange succeeded) */
+        private final String message;
+        
+        /**
+         * Constructor.
+         * @param durationNanos the duration of the exchange (in nanoseconds)
+         * @param outcome the outcome of the exchange
+         * @param data the read data (null if none)
+         * @param message the failure message (null if the exchange succeeded)
+         */
+        private Response(long durationNanos, int outcome, byte[] data, String message) {
+            this.durationNanos = durationNanos;
+            this.outcome = outcome;
+            this.data = data;
+            this.message = message;
+        }
+    }
+    
+    /**
+     * The recorded responses to a request.
+     */
+    private static final class Responses {
+        
+        /** The responses, in the recorded order */
+        private final List<Response> list = new ArrayList<>(1);
+        
+        /** The index of the next response to be replayed */
+        private int next;
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Options for retrying the exchanges with the cards.
+ * <p>
+ * Only the transient failures (failed transmissions and timeouts) are retried: a rejected access
+ * (wrong key, denied access) and a card out of the field are final. The timeout of an exchange is
+ * learnt from the response times of the reader, per block: it is the 99th percentile of the recent
+ * responses times a factor, kept between a minimum and a maximum, times the number of blocks. The
+ * timeouts are opt-in: by default, the exchanges wait for the reader.
+ */
+public class RetryPolicy {
+
+    /** Number of retries of a failed exchange */
+    private int maxRetries = 2;
+    
+    /** Delay before the first retry (doubled for each next retry, in milliseconds) */
+    private long backoffMillis = 5;
+    
+    /** Factor applied to the 99th percentile of the response times (0 to disable the timeouts) */
+    private double timeoutFactor = 0;
+    
+    /** Minimum timeout per block (in milliseconds) */
+    private long minTimeoutMillis = 20;
+    
+    /** Maximum timeout per block, also used until enough responses have been seen (in milliseconds) */
+    private long maxTimeoutMillis = 1000;
+    
+    /** Number of responses needed to compute the timeout */
+    private int minSamples = 32;
+    
+    /** Number of responses after which the response times are forgotten, to follow the reader conditions */
+    private int windowSize = 1024;
+
+    /**
+     * @return the number of retries of a failed exchange
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param maxRetries the number of retries of a failed exchange (default: 2, 0 to disable the retries)
+     */
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("Invalid retry count: " + maxRetries);
+        }
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @param unit the time unit
+     * @return the delay before the first retry
+     */
+    public long getBackoff(TimeUnit unit) {
+        return unit.convert(backoffMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param backoffMillis the delay before the first retry, doubled for each next retry (default: 5 ms)
+     */
+    public void setBackoffMillis(long backoffMillis) {
+        if (backoffMillis < 0) {
+            throw new IllegalArgumentException("Invalid backoff: " + backoffMillis);
+        }
+        this.backoffMillis = backoffMillis;
+    }
+
+    /**
+     * @return the factor applied to the 99th percentile of the response times (0 if the timeouts are disabled)
+     */
+    public double getTimeoutFactor() {
+        return timeoutFactor;
+    }
+
+    /**
+     * @param timeoutFactor the factor applied to the 99th percentile of the response times (default: 0, the timeouts are disabled)
+     */
+    public void setTimeoutFactor(double timeoutFactor) {
+        if (timeoutFactor < 0 || Double.isNaN(timeoutFactor)) {
+            throw new IllegalArgumentException("Invalid timeout factor: " + timeoutFactor);
+        }
+        this.timeoutFactor = timeoutFactor;
+    }
+
+    /**
+     * @return true if the exchanges are given a timeout, false otherwise
+     */
+    public boolean isTimeoutEnabled() {
+        return timeoutFactor > 0;
+    }
+
+    /**
+     * @param unit the time unit
+     * @return the minimum timeout
+     */
+    public long getMinTimeout(TimeUnit unit) {
+        return unit.convert(minTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param minTimeoutMillis the minimum timeout (default: 20 ms)
+     */
+    public void setMinTimeoutMillis(long minTimeoutMillis) {
+        if (minTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Invalid timeout: " + minTimeoutMillis);
+        }
+        this.minTimeoutMillis = minTimeoutMillis;
+    }
+
+    /**
+     * @param unit the time unit
+     * @return the maximum timeout
+     */
+    public long getMaxTimeout(TimeUnit unit) {
+        return unit.convert(maxTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maxTimeoutMillis the maximum timeout, also used until enough responses have been seen (default: 1000 ms)
+     */
+    public void setMaxTimeoutMillis(long maxTimeoutMillis) {
+        if (maxTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Invalid timeout: " + maxTimeoutMillis);
+        }
+        this.maxTimeoutMillis = maxTimeoutMillis;
+    }
+
+    /**
+     * @return the number of responses needed to compute the timeout
+     */
+    public int getMinSamples() {
+        return minSamples;
+    }
+
+    /**
+     * @param minSamples the number of responses needed to compute the timeout (default: 32)
+     */
+    public void setMinSamples(int minSamples) {
+        if (minSamples <= 0) {
+            throw new IllegalArgumentException("Invalid sample count: " + minSamples);
+        }
+        this.minSamples = minSamples;
+    }
+
+    /**
+     * @return the number of responses after which the response times are forgotten
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * @param windowSize the number of responses after which the response times are forgotten (default: 1024)
+     */
+    public void setWindowSize(int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Invalid window size: " + windowSize);
+        }
+        this.windowSize = windowSize;
+    }
+}
@@ -0,0 +1,481 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.smartcardio.CardException;
+import org.nfctools.mf.MfAccess;
+import org.nfctools.mf.MfCardListener;
+import org.nfctools.mf.MfReaderWriter;
+import org.nfctools.mf.block.MfBlock;
+import org.nfctools.mf.card.MfCard;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A reader/writer retrying the transient failures and giving each exchange a timeout learnt from the reader.
+ * <p>
+ * Transient failures are the ones caused by a {@link CardException} (e.g. a failed transmission) and the
+ * timeouts. A rejected access is never retried, nor is a card out of the field: the failures reporting the
+ * absence of the card are final, and the presence of the card is probed (see {@link CardPresence}) before
+ * each retry.
+ * <p>
+ * With timeouts (disabled by default, see {@link RetryPolicy#setTimeoutFactor(double)}), the exchanges run
+ * on a thread of the reader. The timeout grows with the number of exchanged blocks: it is learnt from the
+ * response times per block, and it runs from the start of the exchange on that thread. An exchange which
+ * times out can't be aborted: it is abandoned, and the next exchanges (including its retry) only start once
+ * it has ended (within the maximum timeout, otherwise they fail). A write which times out is never retried,
+ * since it may still have reached the card. Timeouts are reported as failed transmissions.
+ * <p>
+ * The response times are learnt per reader: the wrappers made by {@link #wrap(MfCardListener, RetryPolicy, ReaderMetrics)}
+ * share them over all the cards of the listener.
+ */
+public class RetryingReaderWriter implements MfReaderWriter, CardPresence {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RetryingReaderWriter.class);
+    
+    /** Number of responses between two updates of the timeout */
+    private static final int TIMEOUT_UPDATE_INTERVAL = 16;
+    
+    /** The actual reader/writer */
+    private final MfReaderWriter delegate;
+    
+    /** The retry policy */
+    private final RetryPolicy policy;
+    
+    /** The response times of the reader */
+    private final ResponseTimes responseTimes;
+    
+    /** The metrics (null if disabled) */
+    private final ReaderMetrics metrics;
+    
+    /**
+     * Constructor.
+     * @param delegate the actual reader/writer
+     * @param policy the retry policy
+     * @param metrics the metrics (null if disabled)
+     */
+    public RetryingReaderWriter(MfReaderWriter delegate, RetryPolicy policy, ReaderMetrics metrics) {
+        this(delegate, policy, new ResponseTimes(policy), metrics);
+    }
+    
+    /**
+     * Constructor.
+     * @param delegate the actual reader/writer
+     * @param policy the retry policy
+     * @param responseTimes the response times of the reader
+     * @param metrics the metrics (null if disabled)
+     */
+    private RetryingReaderWriter(MfReaderWriter delegate, RetryPolicy policy, ResponseTimes responseTimes, ReaderMetrics metrics) {
+        this.delegate = delegate;
+        this.policy = policy;
+        this.responseTimes = responseTimes;
+        this.metrics = metrics;
+    }
+    
+    /**
+     * @param listener the card listener of a reader
+     * @param policy the retry policy
+     * @param metrics the metrics (null if disabled)
+     * @return a listener retrying the accesses made by the listener, with the timeouts learnt over all the cards
+     */
+    public static MfCardListener wrap(final MfCardListener listener, final RetryPolicy policy, final ReaderMetrics metrics) {
+        final ResponseTimes responseTimes = new ResponseTimes(policy);
+        return new MfCardListener() {
+            @Override
+            public void cardDetected(MfCard mfCard, MfReaderWriter mfReaderWriter) throws IOException {
+                listener.cardDetected(mfCard, new RetryingReaderWriter(mfReaderWriter, policy, responseTimes, metrics));
+            }
+        };
+    }
+    
+    /**
+     * @param unit the time unit
+     * @return the current timeout of an exchange, per block (0 if the timeouts are disabled)
+     */
+    public long getTimeout(TimeUnit unit) {
+        return policy.isTimeoutEnabled() ? unit.convert(responseTimes.timeoutNanos, TimeUnit.NANOSECONDS) : 0;
+    }
+    
+    @Override
+    public MfBlock[] readBlock(final MfAccess access) throws IOException {
+        return execute(new Callable<MfBlock[]>() {
+            @Override
+            public MfBlock[] call() throws IOException {
+                return delegate.readBlock(access);
+            }
+        }, access.getBlocksToRead(), false);
+    }
+    
+    @Override
+    public void writeBlock(final MfAccess access, final MfBlock... mfBlock) throws IOException {
+        execute(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                delegate.writeBlock(access, mfBlock);
+                return null;
+            }
+        }, mfBlock.length, true);
+    }
+    
+    @Override
+    public boolean isCardPresent() throws IOException {
+        return !(delegate instanceof CardPresence) || ((CardPresence) delegate).isCardPresent();
+    }
+    
+    @Override
+    public void setCardListener(MfCardListener mfCardListener) throws IOException {
+        delegate.setCardListener(mfCardListener);
+    }
+    
+    @Override
+    public void removeCardListener() {
+        delegate.removeCardListener();
+    }
+    
+    /**
+     * Runs an exchange, retrying the transient failures.
+     * @param exchange the exchange
+     * @param blockCount the number of exchanged blocks
+     * @param write true for a writing, false for a reading
+     * @return the result of the exchange
+     */
+    private <T> T execute(Callable<T> exchange, int blockCount, boolean write) throws IOException {
+        long backoffNanos = policy.getBackoff(TimeUnit.NANOSECONDS);
+        for (int attempt = 0; ; attempt++) {
+            try {
+                T result = attempt(exchange, blockCount);
+                if (attempt > 0 && metrics != null) {
+                    metrics.recordRecovery();
+                }
+                return result;
+            } catch (IOException ioe) {
+                CardException ce = MifareUtils.getCardException(ioe);
+                if (ce == null) {
+                    // Rejected by the card
+                    throw ioe;
+                }
+                if (!isRetryable(ioe, ce, write)) {
+                    throw ioe;
+                }
+                if (attempt >= policy.getMaxRetries()) {
+                    if (metrics != null && policy.getMaxRetries() > 0) {
+                        metrics.recordRetriesExhausted();
+                    }
+                    throw ioe;
+                }
+                LOGGER.debug("Retrying after a transient failure: {}", ioe.getMessage());
+                if (metrics != null) {
+                    metrics.recordRetry();
+                }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(backoffNanos << attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw ioe;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Tells whether a transient failure can be retried.
+     * @param ioe the failure
+     * @param ce the {@link CardException} which caused the failure
+     * @param write true for a writing, false for a reading
+     * @return true if the exchange can be retried
+     */
+    private boolean isRetryable(IOException ioe, CardException ce, boolean write) {
+        if (MifareUtils.isCardAbsent(ioe)) {
+            return false;
+        }
+        if (ce instanceof ExchangeTimeoutException) {
+            if (write) {
+                // The abandoned writing may still reach the card
+                LOGGER.debug("Not retrying a timed out writing: {}", ce.getMessage());
+                return false;
+            }
+            if (!responseTimes.awaitAbandoned(policy.getMaxTimeout(TimeUnit.NANOSECONDS))) {
+                LOGGER.debug("Not retrying: the abandoned exchange is still running");
+                return false;
+            }
+        }
+        try {
+            return MifareUtils.isCardPresent(delegate);
+        } catch (CardException probeFailure) {
+            return false;
+        }
+    }
+    
+    /**
+     * Runs one attempt of an exchange, within the timeout.
+     * @param exchange the exchange
+     * @param blockCount the number of exchanged blocks
+     * @return the result of the exchange
+     */
+    private <T> T attempt(Callable<T> exchange, int blockCount) throws IOException {
+        if (!policy.isTimeoutEnabled()) {
+            return call(exchange, blockCount);
+        }
+        long maxTimeoutNanos = policy.getMaxTimeout(TimeUnit.NANOSECONDS);
+        if (!responseTimes.awaitAbandoned(maxTimeoutNanos)) {
+            // Not queued behind the abandoned exchange: its timeout would run out in the queue
+            throw new IOException(new ExchangeTimeoutException("The reader is still busy with an abandoned exchange"));
+        }
+        long timeoutNanos = responseTimes.timeoutNanos * blockCount;
+        TimedExchange<T> timed = new TimedExchange<T>(exchange, blockCount);
+        Future<T> future = responseTimes.getExecutor().submit(timed);
+        try {
+            // The timeout runs from the start of the exchange on the exchange thread
+            if (!timed.started.await(maxTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                throw new TimeoutException();
+            }
+            return future.get(timed.startNanos + timeoutNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException te) {
+            // The exchange can't be aborted: abandoning it
+            future.cancel(false);
+            responseTimes.markAbandoned();
+            if (metrics != null) {
+                metrics.recordTimeout();
+            }
+            throw new IOException(new ExchangeTimeoutException("No response within " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms"));
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException ie) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IOException(new CardException("Interrupted exchange"));
+        }
+    }
+    
+    /**
+     * Runs an exchange on the current thread, recording its response time.
+     * @param exchange the exchange
+     * @param blockCount the number of exchanged blocks
+     * @return the result of the exchange
+     */
+    private <T> T call(Callable<T> exchange, int blockCount) throws IOException {
+        long start = System.nanoTime();
+        try {
+            T result = exchange.call();
+            responseTimes.record(System.nanoTime() - start, blockCount);
+            return result;
+        } catch (IOException ioe) {
+            if (MifareUtils.getCardException(ioe) == null) {
+                // The card answered
+                responseTimes.record(System.nanoTime() - start, blockCount);
+            }
+            throw ioe;
+        } catch (RuntimeException re) {
+            throw re;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+    
+    /**
+     * An exchange run on the exchange thread, recording its response time and telling when it starts.
+     */
+    private class TimedExchange<T> implements Callable<T> {
+        
+        /** The exchange */
+        private final Callable<T> exchange;
+        
+        /** The number of exchanged blocks */
+        private final int blockCount;
+        
+        /** Released once the exchange has started */
+        final CountDownLatch started = new CountDownLatch(1);
+        
+        /** The start time of the exchange (set before {@link #started} is released) */
+        volatile long startNanos;
+        
+        /**
+         * Constructor.
+         * @param exchange the exchange
+         * @param blockCount the number of exchanged blocks
+         */
+        TimedExchange(Callable<T> exchange, int blockCount) {
+            this.exchange = exchange;
+            this.blockCount = blockCount;
+        }
+        
+        @Override
+        public T call() throws IOException {
+            startNanos = System.nanoTime();
+            started.countDown();
+            return RetryingReaderWriter.this.call(exchange, blockCount);
+        }
+    }
+    
+    /**
+     * A timed out exchange.
+     */
+    private static class ExchangeTimeoutException extends CardException {
+        
+        private static final long serialVersionUID = 1L;
+        
+        /**
+         * Constructor.
+         * @param message the message
+         */
+        ExchangeTimeoutException(String message) {
+            super(message);
+        }
+    }
+    
+    /**
+     * The response times of a reader, and the resulting timeout.
+     */
+    private static class ResponseTimes {
+        
+        /** Counter for the names of the exchange threads */
+        private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+        
+        /** The retry policy */
+        private final RetryPolicy policy;
+        
+        /** The recent response times */
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        
+        /** Number of the recent response times */
+        private long sampleCount;
+        
+        /** The current timeout per block (in nanoseconds) */
+        private volatile long timeoutNanos;
+        
+        /** Completes once the last abandoned exchange has ended (null if none) */
+        private volatile Future<?> abandoned;
+        
+        /** The thread of the exchanges (created on the first exchange) */
+        private ExecutorService executor;
+        
+        /**
+         * Constructor.
+         * @param policy the retry policy
+         */
+        ResponseTimes(RetryPolicy policy) {
+            this.policy = policy;
+            timeoutNanos = policy.getMaxTimeout(TimeUnit.NANOSECONDS);
+        }
+        
+        /**
+         * @return the thread of the exchanges
+         */
+        synchronized ExecutorService getExecutor() {
+            if (executor == null) {
+                executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "acr122urw-exchange-" + THREAD_COUNT.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return executor;
+        }
+        
+        /**
+         * Marks the running exchange as abandoned.
+         */
+        void markAbandoned() {
+            // Queued behind the abandoned exchange on the single exchange thread
+            abandoned = getExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+        }
+        
+        /**
+         * Waits for the end of the last abandoned exchange.
+         * @param timeoutNanos the maximum time to wait (in nanoseconds)
+         * @return true if no abandoned exchange is running anymore, false otherwise
+         */
+        boolean awaitAbandoned(long timeoutNanos) {
+            Future<?> future = abandoned;
+            if (future == null) {
+                return true;
+            }
+            try {
+                future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException te) {
+                return false;
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException ee) {
+                // Ended
+            }
+            abandoned = null;
+            return true;
+        }
+        
+        /**
+         * Records a response time, updating the timeout.
+         * @param nanos the response time (in nanoseconds)
+         * @param blockCount the number of exchanged blocks
+         */
+        synchronized void record(long nanos, int blockCount) {
+            histogram.record(nanos / Math.max(1, blockCount));
+            long count = ++sampleCount;
+            if (count % TIMEOUT_UPDATE_INTERVAL == 0 || count == policy.getMinSamples()) {
+                if (count >= policy.getMinSamples()) {
+                    long p99Nanos = histogram.getPercentile(99, TimeUnit.NANOSECONDS);
+                    long timeout = Math.max(policy.getMinTimeout(TimeUnit.NANOSECONDS),
+                            Math.min(policy.getMaxTimeout(TimeUnit.NANOSECONDS), (long) (p99Nanos * policy.getTimeoutFactor())));
+                    if (timeout != timeoutNanos) {
+                        LOGGER.debug("Exchange timeout set to {} us per block (p99 {} us)", TimeUnit.NANOSECONDS.toMicros(timeout),
+                                TimeUnit.NANOSECONDS.toMicros(p99Nanos));
+                        timeoutNanos = timeout;
+                    }
+                }
+                if (count >= Math.max(policy.getWindowSize(), policy.getMinSamples())) {
+                    // Forgetting the old response times, the current timeout is kept until enough new ones
+                    histogram.reset();
+                    sampleCount = 0;
+                }
+            }
+        }
+    }
+}
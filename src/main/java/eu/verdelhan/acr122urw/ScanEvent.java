@@ -0,0 +1,120 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+/**
+ * The detection of a card by a scan (UID only, no sector is read).
+ */
+public class ScanEvent {
+
+    /**
+     * The decision of the allow-list.
+     */
+    public enum Decision {
+        /** The card is in the allow-list */
+        ALLOW,
+        /** The card is not in the allow-list */
+        DENY,
+        /** There is no allow-list */
+        NONE
+    }
+    
+    /** The name of the reader */
+    private final String readerName;
+    
+    /** The card UID */
+    private final byte[] cardId;
+    
+    /** The tag type */
+    private final String tagType;
+    
+    /** The detection time (in milliseconds since the epoch) */
+    private final long detectionTime;
+    
+    /** The decision of the allow-list */
+    private final Decision decision;
+    
+    /** The time taken by the decision (in nanoseconds) */
+    private final long decisionNanos;
+    
+    /**
+     * Constructor.
+     * @param readerName the name of the reader
+     * @param cardId the card UID
+     * @param tagType the tag type
+     * @param detectionTime the detection time (in milliseconds since the epoch)
+     * @param decision the decision of the allow-list
+     * @param decisionNanos the time taken by the decision (in nanoseconds)
+     */
+    public ScanEvent(String readerName, byte[] cardId, String tagType, long detectionTime, Decision decision, long decisionNanos) {
+        this.readerName = readerName;
+        this.cardId = cardId;
+        this.tagType = tagType;
+        this.detectionTime = detectionTime;
+        this.decision = decision;
+        this.decisionNanos = decisionNanos;
+    }
+    
+    /**
+     * @return the name of the reader
+     */
+    public String getReaderName() {
+        return readerName;
+    }
+    
+    /**
+     * @return the card UID
+     */
+    public byte[] getCardId() {
+        return cardId;
+    }
+    
+    /**
+     * @return the tag type
+     */
+    public String getTagType() {
+        return tagType;
+    }
+    
+    /**
+     * @return the detection time (in milliseconds since the epoch)
+     */
+    public long getDetectionTime() {
+        return detectionTime;
+    }
+    
+    /**
+     * @return the decision of the allow-list
+     */
+    public Decision getDecision() {
+        return decision;
+    }
+    
+    /**
+     * @return the time taken by the decision, from the detection of the card (in nanoseconds)
+     */
+    public long getDecisionNanos() {
+        return decisionNanos;
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import org.nfctools.mf.classic.Key;
+
+/**
+ * A key which has been successfully used to read a sector.
+ */
+public final class SectorKey {
+
+    /** The key type (A or B) */
+    private final Key type;
+    
+    /** The packed key */
+    private final long key;
+    
+    /** The key bytes */
+    private final byte[] keyBytes;
+    
+    /**
+     * Constructor.
+     * @param type the key type
+     * @param key the packed key
+     * @param keyBytes the key bytes
+     */
+    public SectorKey(Key type, long key, byte[] keyBytes) {
+        this.type = type;
+        this.key = key;
+        this.keyBytes = keyBytes;
+    }
+    
+    /**
+     * Constructor.
+     * @param type the key type
+     * @param key the packed key
+     */
+    public SectorKey(Key type, long key) {
+        this(type, key, KeyStore.toBytes(key));
+    }
+
+    /**
+     * @return the key type (A or B)
+     */
+    public Key getType() {
+        return type;
+    }
+
+    /**
+     * @return the packed key
+     */
+    public long getKey() {
+        return key;
+    }
+
+    /**
+     * @return the key hex string
+     */
+    public String getKeyHexString() {
+        return HexUtils.bytesToHexString(keyBytes);
+    }
+
+    /**
+     * @return the key bytes
+     */
+    public byte[] getKeyBytes() {
+        return keyBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "Key " + type + ": " + getKeyHexString();
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of the keys which opened the sectors of already seen cards.
+ * <p>
+ * Entries are indexed by card UID and sector index. This class is thread-safe.
+ */
+public class SectorKeyCache {
+
+    /** Default maximum number of cached sectors */
+    public static final int DEFAULT_CAPACITY = 16 * 1024;
+    
+    /** The cached keys */
+    private final Map<String, SectorKey> entries;
+    
+    /**
+     * Constructor.
+     */
+    public SectorKeyCache() {
+        this(DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * Constructor.
+     * @param capacity the maximum number of cached sectors
+     */
+    public SectorKeyCache(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        entries = new LinkedHashMap<String, SectorKey>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SectorKey> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+    
+    /**
+     * @param cardId the card UID
+     * @param sectorIndex the sector index
+     * @return the cached key for the sector, null if there is none
+     */
+    public synchronized SectorKey get(byte[] cardId, int sectorIndex) {
+        return entries.get(cacheKey(cardId, sectorIndex));
+    }
+    
+    /**
+     * @param cardId the card UID
+     * @param sectorIndex the sector index
+     * @param key the key which opened the sector
+     */
+    public synchronized void put(byte[] cardId, int sectorIndex, SectorKey key) {
+        entries.put(cacheKey(cardId, sectorIndex), key);
+    }
+    
+    /**
+     * @param cardId the card UID
+     * @param sectorIndex the sector index
+     */
+    public synchronized void remove(byte[] cardId, int sectorIndex) {
+        entries.remove(cacheKey(cardId, sectorIndex));
+    }
+    
+    /**
+     * @return the number of cached sectors
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+    
+    /**
+     * Clears the cache.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+    
+    /**
+     * @param cardId the card UID
+     * @param sectorIndex the sector index
+     * @return the key of the cache entry
+     */
+    private static String cacheKey(byte[] cardId, int sectorIndex) {
+        return HexUtils.bytesToHexString(cardId) + '/' + sectorIndex;
+    }
+}
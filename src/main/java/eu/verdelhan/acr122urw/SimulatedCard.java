@@ -0,0 +1,280 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.nfctools.api.TagType;
+import org.nfctools.mf.card.MfCard;
+import org.nfctools.mf.card.MfCard1k;
+import org.nfctools.mf.card.MfCard4k;
+import org.nfctools.mf.classic.Key;
+
+/**
+ * A virtual Mifare Classic card (Mini, 1K or 4K).
+ * <p>
+ * Keys and access bits are held in the sector trailers, as on a real card.
+ * Access conditions are checked for reading and writing (see {@link AccessConditions}).
+ * The conditions for writing a sector trailer are simplified: the whole trailer
+ * can be written when its keys are writable.
+ */
+public class SimulatedCard {
+
+    /** Transport configuration access bits (key A reads and writes everything) */
+    public static final byte[] TRANSPORT_ACCESS_BITS = { (byte) 0xFF, (byte) 0x07, (byte) 0x80, (byte) 0x69 };
+    
+    /** Default key */
+    public static final byte[] DEFAULT_KEY = HexUtils.hexStringToBytes("FFFFFFFFFFFF");
+    
+    /** The card layout */
+    private final CardLayout layout;
+    
+    /** The card memory */
+    private final byte[] memory;
+    
+    /** The card UID */
+    private final byte[] uid;
+    
+    /** The nfctools card */
+    private final MfCard mfCard;
+    
+    /**
+     * Constructor (Mifare Classic 1K card).
+     * <p>
+     * The card is in transport configuration: all the sectors use the default key and transport access bits.
+     * @param uid the card UID
+     */
+    public SimulatedCard(byte[] uid) {
+        this(uid, CardLayout.CLASSIC_1K);
+    }
+    
+    /**
+     * Constructor.
+     * <p>
+     * The card is in transport configuration: all the sectors use the default key and transport access bits.
+     * @param uid the card UID
+     * @param layout the card layout
+     */
+    public SimulatedCard(byte[] uid, CardLayout layout) {
+        this.uid = uid.clone();
+        this.layout = layout;
+        memory = new byte[layout.getSize()];
+        switch (layout) {
+            case MINI:
+                mfCard = new MfCard(this.uid, TagType.MIFARE_MINI, null) {
+                };
+                break;
+            case CLASSIC_4K:
+                mfCard = new MfCard4k(this.uid, null);
+                break;
+            default:
+                mfCard = new MfCard1k(this.uid, null);
+                break;
+        }
+        System.arraycopy(uid, 0, memory, 0, Math.min(uid.length, CardImage.BLOCK_SIZE));
+        for (int sectorIndex = 0; sectorIndex < layout.getSectorCount(); sectorIndex++) {
+            setSectorKeys(sectorIndex, DEFAULT_KEY, DEFAULT_KEY);
+            setAccessBits(sectorIndex, TRANSPORT_ACCESS_BITS);
+        }
+    }
+    
+    /**
+     * @return the card UID
+     */
+    public byte[] getUid() {
+        return uid.clone();
+    }
+    
+    /**
+     * @return the card layout
+     */
+    public CardLayout getLayout() {
+        return layout;
+    }
+    
+    /**
+     * @return the card, as seen by the nfctools listeners
+     */
+    public MfCard getMfCard() {
+        return mfCard;
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param keyA the key A of the sector
+     * @param keyB the key B of the sector
+     */
+    public synchronized void setSectorKeys(int sectorIndex, byte[] keyA, byte[] keyB) {
+        int offset = trailerOffset(sectorIndex);
+        System.arraycopy(keyA, 0, memory, offset, 6);
+        System.arraycopy(keyB, 0, memory, offset + 10, 6);
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param accessBits the access bits of the sector (bytes 6 to 9 of the trailer)
+     */
+    public synchronized void setAccessBits(int sectorIndex, byte[] accessBits) {
+        System.arraycopy(accessBits, 0, memory, trailerOffset(sectorIndex) + 6, 4);
+    }
+    
+    /**
+     * Sets the data of a block, regardless of the access conditions.
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @param data the block data
+     */
+    public synchronized void setBlock(int sectorIndex, int blockIndex, byte[] data) {
+        System.arraycopy(data, 0, memory, layout.blockOffset(sectorIndex, blockIndex), CardImage.BLOCK_SIZE);
+    }
+    
+    /**
+     * Gets the data of a block, regardless of the access conditions.
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @return the block data
+     */
+    public synchronized byte[] getBlock(int sectorIndex, int blockIndex) {
+        int offset = layout.blockOffset(sectorIndex, blockIndex);
+        return Arrays.copyOfRange(memory, offset, offset + CardImage.BLOCK_SIZE);
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param keyType a key type
+     * @param key a key
+     * @return true if the key opens the sector, false otherwise (or if the sector doesn't exist)
+     */
+    public synchronized boolean authenticate(int sectorIndex, Key keyType, byte[] key) {
+        if (!layout.isValidSectorIndex(sectorIndex)) {
+            return false;
+        }
+        int offset = trailerOffset(sectorIndex) + ((keyType == Key.A) ? 0 : 10);
+        if (keyType == Key.B) {
+            AccessConditions conditions = accessConditions(sectorIndex);
+            if (conditions == null || conditions.isKeyBReadable()) {
+                // A readable key B is data, it can't be used for authentication
+                return false;
+            }
+        }
+        for (int i = 0; i < 6; i++) {
+            if (memory[offset + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Runs an authentication to a sector with the key stored on the card, as a reader holding the key would do.
+     * <p>
+     * The exchanged nonces and answers can be fed to the offline key search ({@link KeyRecovery}).
+     * @param sectorIndex a sector index
+     * @param keyType a key type
+     * @param random the source of the nonces
+     * @return the trace of the authentication
+     */
+    public synchronized AuthTrace captureAuthentication(int sectorIndex, Key keyType, Random random) {
+        if (!layout.isValidSectorIndex(sectorIndex)) {
+            throw new IllegalArgumentException("Invalid sector: " + sectorIndex);
+        }
+        int offset = trailerOffset(sectorIndex) + ((keyType == Key.A) ? 0 : 10);
+        long key = KeyStore.toKey(Arrays.copyOfRange(memory, offset, offset + 6));
+        // The last 4 bytes of the UID are used by the cipher
+        int cipherUid = 0;
+        for (int i = Math.max(0, uid.length - 4); i < uid.length; i++) {
+            cipherUid = (cipherUid << 8) | (uid[i] & 0xFF);
+        }
+        return AuthTrace.authenticate(sectorIndex, keyType, cipherUid, key, random.nextInt(), random.nextInt());
+    }
+    
+    /**
+     * Reads a block, as seen by a reader authenticated to the sector.
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @param keyType the type of the authenticated key
+     * @return the block data, null if the access conditions deny the reading (or if the block doesn't exist)
+     */
+    public synchronized byte[] read(int sectorIndex, int blockIndex, Key keyType) {
+        if (!layout.isValidBlockIndex(sectorIndex, blockIndex)) {
+            return null;
+        }
+        AccessConditions conditions = accessConditions(sectorIndex);
+        if (conditions == null || !conditions.canRead(layout, sectorIndex, blockIndex, keyType)) {
+            return null;
+        }
+        if (layout.isTrailer(sectorIndex, blockIndex)) {
+            byte[] trailer = getBlock(sectorIndex, blockIndex);
+            // Key A is never readable
+            Arrays.fill(trailer, 0, 6, (byte) 0);
+            if (!conditions.isKeyBReadable()) {
+                Arrays.fill(trailer, 10, 16, (byte) 0);
+            }
+            return trailer;
+        }
+        return getBlock(sectorIndex, blockIndex);
+    }
+    
+    /**
+     * Writes a block, as done by a reader authenticated to the sector.
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @param keyType the type of the authenticated key
+     * @param data the block data
+     * @return true if the block has been written, false if the access conditions deny the writing (or if the block doesn't exist)
+     */
+    public synchronized boolean write(int sectorIndex, int blockIndex, Key keyType, byte[] data) {
+        if (!layout.isValidBlockIndex(sectorIndex, blockIndex)) {
+            return false;
+        }
+        AccessConditions conditions = accessConditions(sectorIndex);
+        boolean writable;
+        if (conditions == null || (sectorIndex == 0 && blockIndex == 0)) {
+            // Invalid access bits or manufacturer block
+            writable = false;
+        } else {
+            writable = conditions.canWrite(layout, sectorIndex, blockIndex, keyType);
+        }
+        if (writable) {
+            setBlock(sectorIndex, blockIndex, data);
+        }
+        return writable;
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @return the access conditions of the sector, null if the access bits are invalid
+     */
+    private AccessConditions accessConditions(int sectorIndex) {
+        return AccessConditions.decode(memory, trailerOffset(sectorIndex));
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @return the offset of the sector trailer in the card memory
+     */
+    private int trailerOffset(int sectorIndex) {
+        return layout.blockOffset(sectorIndex, layout.getTrailerBlockIndex(sectorIndex));
+    }
+}
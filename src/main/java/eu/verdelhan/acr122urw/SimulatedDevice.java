@@ -0,0 +1,153 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.nfctools.mf.MfCardListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A simulated device, tapping virtual cards on a {@link SimulatedReaderWriter}.
+ * <p>
+ * Once listening, the device taps each of its cards in turn, then stays idle.
+ */
+public class SimulatedDevice implements ReaderDevice {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SimulatedDevice.class);
+
+    /** System property for the latency per APDU (in microseconds) of the demo device */
+    public static final String APDU_LATENCY_PROPERTY = "acr122urw.simulator.apduLatencyMicros";
+    
+    /** System property for the failure rate per APDU of the demo device */
+    public static final String FAILURE_RATE_PROPERTY = "acr122urw.simulator.failureRate";
+    
+    /** The device name */
+    private final String name;
+    
+    /** The simulated reader/writer */
+    private final SimulatedReaderWriter readerWriter;
+    
+    /** The cards to be tapped */
+    private final List<SimulatedCard> cards;
+    
+    /** Delay between two taps (in milliseconds) */
+    private final long tapIntervalMillis;
+    
+    /** The thread tapping the cards */
+    private Thread tapper;
+    
+    /**
+     * Constructor.
+     * @param name the device name
+     * @param readerWriter the simulated reader/writer
+     * @param cards the cards to be tapped
+     * @param tapIntervalMillis the delay between two taps (in milliseconds)
+     */
+    public SimulatedDevice(String name, SimulatedReaderWriter readerWriter, List<SimulatedCard> cards, long tapIntervalMillis) {
+        this.name = name;
+        this.readerWriter = readerWriter;
+        this.cards = new ArrayList<>(cards);
+        this.tapIntervalMillis = tapIntervalMillis;
+    }
+    
+    /**
+     * Creates a demo device with one card.
+     * <p>
+     * The sectors 0 to 7 of the card use the default key, the sectors 8 to 14 use common keys
+     * and the sector 15 uses an unknown key. The APDU latency and failure rate can be set through
+     * the {@value #APDU_LATENCY_PROPERTY} and {@value #FAILURE_RATE_PROPERTY} system properties.
+     * @return the demo device
+     */
+    public static SimulatedDevice createDemo() {
+        SimulatedCard card = new SimulatedCard(HexUtils.hexStringToBytes("04A1B2C3"));
+        List<String> commonKeys = MifareUtils.COMMON_MIFARE_CLASSIC_1K_KEYS;
+        for (int sectorIndex = 8; sectorIndex < MifareUtils.MIFARE_1K_SECTOR_COUNT; sectorIndex++) {
+            byte[] key = HexUtils.hexStringToBytes((sectorIndex == MifareUtils.MIFARE_1K_SECTOR_COUNT - 1)
+                    ? "123456789ABC"
+                    : commonKeys.get(sectorIndex % commonKeys.size()));
+            card.setSectorKeys(sectorIndex, key, key);
+        }
+        
+        SimulatedReaderWriter readerWriter = new SimulatedReaderWriter();
+        readerWriter.setApduLatency(Long.getLong(APDU_LATENCY_PROPERTY, 0L), TimeUnit.MICROSECONDS);
+        readerWriter.setFailureRate(Double.parseDouble(System.getProperty(FAILURE_RATE_PROPERTY, "0")));
+        List<SimulatedCard> cards = new ArrayList<>();
+        cards.add(card);
+        return new SimulatedDevice("Simulated ACR122", readerWriter, cards, 1000);
+    }
+    
+    /**
+     * @return the simulated reader/writer
+     */
+    public SimulatedReaderWriter getReaderWriter() {
+        return readerWriter;
+    }
+    
+    @Override
+    public String getName() {
+        return name;
+    }
+    
+    @Override
+    public void open() throws IOException {
+        LOGGER.info("Opening device {}", name);
+    }
+    
+    @Override
+    public synchronized void listen(MfCardListener listener) throws IOException {
+        LOGGER.info("Listening for cards on {}", name);
+        readerWriter.setCardListener(listener);
+        tapper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (SimulatedCard card : cards) {
+                        Thread.sleep(tapIntervalMillis);
+                        readerWriter.tap(card);
+                    }
+                } catch (InterruptedException ie) {
+                    // Device closed
+                } catch (IOException ioe) {
+                    LOGGER.warn("Simulated tap failed: {}", ioe.getMessage());
+                }
+            }
+        }, name);
+        tapper.setDaemon(true);
+        tapper.start();
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        LOGGER.info("Closing device {}", name);
+        if (tapper != null) {
+            tapper.interrupt();
+            tapper = null;
+        }
+        readerWriter.removeCardListener();
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardNotPresentException;
+import org.nfctools.mf.MfAccess;
+import org.nfctools.mf.MfCardListener;
+import org.nfctools.mf.MfException;
+import org.nfctools.mf.MfReaderWriter;
+import org.nfctools.mf.block.BlockResolver;
+import org.nfctools.mf.block.MfBlock;
+
+/**
+ * An in-memory reader/writer for simulated cards.
+ * <p>
+ * Each exchange with the card (authentication, block read, block write) counts as one APDU
+ * and can be given a latency and a failure rate. Failures and removed cards are reported
+ * like the ACR122 reader does: as an {@link IOException} caused by a {@link CardException}
+ * ({@link CardNotPresentException} for a removed card). Rejected authentications and denied accesses
+ * are reported as plain {@link IOException}s.
+ */
+public class SimulatedReaderWriter implements MfReaderWriter, CardPresence {
+
+    /** The card in the field (null if there is none) */
+    private volatile SimulatedCard card;
+    
+    /** The card listener */
+    private volatile MfCardListener listener;
+    
+    /** Latency per APDU (in nanoseconds) */
+    private volatile long apduLatencyNanos;
+    
+    /** Failure rate per APDU (between 0 and 1) */
+    private volatile double failureRate;
+    
+    /** Number of APDUs before the card leaves the field (negative for never) */
+    private volatile long removalCountdown = -1;
+    
+    /** Number of exchanged APDUs */
+    private long apduCount;
+    
+    /** Random generator for the failures */
+    private final Random random;
+    
+    /**
+     * Constructor.
+     */
+    public SimulatedReaderWriter() {
+        this(new Random());
+    }
+    
+    /**
+     * Constructor.
+     * @param random the random generator for the failures
+     */
+    public SimulatedReaderWriter(Random random) {
+        this.random = random;
+    }
+    
+    /**
+     * @param latency the latency per APDU
+     * @param unit the unit of the latency
+     */
+    public void setApduLatency(long latency, TimeUnit unit) {
+        apduLatencyNanos = unit.toNanos(latency);
+    }
+    
+    /**
+     * @param failureRate the failure rate per APDU (between 0 and 1)
+     */
+    public void setFailureRate(double failureRate) {
+        if (failureRate < 0 || failureRate > 1) {
+            throw new IllegalArgumentException("Failure rate must be between 0 and 1");
+        }
+        this.failureRate = failureRate;
+    }
+    
+    /**
+     * Makes the card leave the field after a number of APDUs.
+     * @param apduCount the number of APDUs before the card leaves the field (negative for never)
+     */
+    public void setRemovalAfter(long apduCount) {
+        removalCountdown = apduCount;
+    }
+    
+    /**
+     * @return the number of exchanged APDUs
+     */
+    public synchronized long getApduCount() {
+        return apduCount;
+    }
+    
+    /**
+     * Resets the APDU counter.
+     */
+    public synchronized void resetApduCount() {
+        apduCount = 0;
+    }
+    
+    /**
+     * Puts a card in the field.
+     * @param card the card
+     */
+    public void insertCard(SimulatedCard card) {
+        this.card = card;
+    }
+    
+    /**
+     * Removes the card from the field.
+     */
+    public void removeCard() {
+        card = null;
+    }
+    
+    /**
+     * Taps a card: puts it in the field, notifies the listener and removes it.
+     * @param card the card
+     */
+    public void tap(SimulatedCard card) throws IOException {
+        insertCard(card);
+        try {
+            MfCardListener l = listener;
+            if (l != null) {
+                l.cardDetected(card.getMfCard(), this);
+            }
+        } finally {
+            removeCard();
+        }
+    }
+    
+    @Override
+    public MfBlock[] readBlock(MfAccess access) throws IOException {
+        SimulatedCard c = authenticate(access);
+        MfBlock[] blocks = new MfBlock[access.getBlocksToRead()];
+        for (int i = 0; i < blocks.length; i++) {
+            exchangeApdu();
+            int blockIndex = access.getBlock() + i;
+            byte[] data = c.read(access.getSector(), blockIndex, access.getKey());
+            if (data == null) {
+                throw new IOException("Read denied on sector " + access.getSector() + " block " + blockIndex);
+            }
+            blocks[i] = resolveBlock(c.getLayout(), access.getSector(), blockIndex, data);
+        }
+        return blocks;
+    }
+
+    @Override
+    public void writeBlock(MfAccess access, MfBlock... mfBlock) throws IOException {
+        SimulatedCard c = authenticate(access);
+        for (int i = 0; i < mfBlock.length; i++) {
+            exchangeApdu();
+            int blockIndex = access.getBlock() + i;
+            if (!c.write(access.getSector(), blockIndex, access.getKey(), mfBlock[i].getData())) {
+                throw new IOException("Write denied on sector " + access.getSector() + " block " + blockIndex);
+            }
+        }
+    }
+
+    @Override
+    public boolean isCardPresent() {
+        return card != null;
+    }
+    
+    @Override
+    public void setCardListener(MfCardListener mfCardListener) throws IOException {
+        listener = mfCardListener;
+    }
+
+    @Override
+    public void removeCardListener() {
+        listener = null;
+    }
+    
+    /**
+     * Authenticates to the sector of an access.
+     * @param access the access
+     * @return the card in the field
+     */
+    private SimulatedCard authenticate(MfAccess access) throws IOException {
+        SimulatedCard c = exchangeApdu();
+        if (!c.authenticate(access.getSector(), access.getKey(), access.getKeyValue())) {
+            throw new IOException("Authentication failed on sector " + access.getSector() + " with key " + access.getKey());
+        }
+        return c;
+    }
+    
+    /**
+     * Simulates the exchange of an APDU.
+     * @return the card in the field
+     */
+    private SimulatedCard exchangeApdu() throws IOException {
+        synchronized (this) {
+            apduCount++;
+        }
+        if (apduLatencyNanos > 0) {
+            LockSupport.parkNanos(apduLatencyNanos);
+        }
+        long countdown = removalCountdown;
+        if (countdown == 0) {
+            card = null;
+        } else if (countdown > 0) {
+            removalCountdown = countdown - 1;
+        }
+        SimulatedCard c = card;
+        if (c == null) {
+            throw new IOException(new CardNotPresentException("Card not present"));
+        }
+        if (failureRate > 0 && random.nextDouble() < failureRate) {
+            throw new IOException(new CardException("Transmission failed"));
+        }
+        return c;
+    }
+    
+    /**
+     * @param layout the card layout
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @param data the block data
+     * @return the block
+     */
+    private static MfBlock resolveBlock(CardLayout layout, int sectorIndex, int blockIndex, byte[] data) throws IOException {
+        try {
+            return BlockResolver.resolveBlock(layout.getMemoryLayout(), sectorIndex, blockIndex, data);
+        } catch (MfException me) {
+            throw new IOException(me.getMessage(), me);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.nfctools.mf.MfAccess;
+import org.nfctools.mf.block.MfBlock;
+import org.nfctools.mf.card.MfCard;
+import org.nfctools.mf.classic.Key;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A recorder of the exchanges with the cards, into a compact binary trace.
+ * <p>
+ * The stream starts with the {@link #MAGIC} int and the {@link #VERSION} byte. Then each record starts
+ * with its type (byte):
+ * <ul>
+ * <li>{@link #CARD_RECORD}: the session number (int), the reader name and the tag type (modified UTF-8
+ * strings), the UID length (byte) and the UID, and the detection time (milliseconds since the epoch, long)</li>
+ * <li>{@link #READ_RECORD} and {@link #WRITE_RECORD}: the session number of the card (int), the sector, the
+ * first block and the block count (bytes), the key type (byte: 1 for A, 2 for B) and the 6 bytes of the key,
+ * the duration of the exchange (microseconds, int) and its outcome (byte, see {@link #OUTCOME_OK}). Then the
+ * read data (16 bytes per block) for a successful reading, or the failure message (modified UTF-8 string,
+ * the message of the {@link javax.smartcardio.CardException} for a failed transmission) for a failed
+ * exchange. The written data is not recorded.</li>
+ * <li>{@link #PRESENCE_RECORD}: the session number of the card (int) and the result of the presence probe
+ * (boolean byte)</li>
+ * </ul>
+ * All numbers are big-endian. Records are buffered: they are flushed when the recorder is flushed or closed.
+ * The trace holds the keys used during the exchanges, it has to be handled like the keys files.
+ * <p>
+ * Recording never fails the exchanges: once the trace can't be written, the following records are dropped.
+ */
+public class TraceRecorder implements Closeable, Flushable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TraceRecorder.class);
+
+    /** Magic number of the stream ("MFRT") */
+    public static final int MAGIC = 0x4D465254;
+    
+    /** Format version */
+    public static final int VERSION = 1;
+    
+    /** Record type: a detected card */
+    public static final int CARD_RECORD = 1;
+    
+    /** Record type: a reading */
+    public static final int READ_RECORD = 2;
+    
+    /** Record type: a writing */
+    public static final int WRITE_RECORD = 3;
+    
+    /** Record type: a probe of the card presence */
+    public static final int PRESENCE_RECORD = 4;
+    
+    /** Outcome: the exchange succeeded */
+    public static final int OUTCOME_OK = 0;
+    
+    /** Outcome: the card rejected the access (failed authentication or denied access) */
+    public static final int OUTCOME_DENIED = 1;
+    
+    /** Outcome: the transmission failed (or the card left the field) */
+    public static final int OUTCOME_FAILED = 2;
+    
+    /** Outcome: the card was not in the field */
+    public static final int OUTCOME_ABSENT = 3;
+    
+    /** The output stream */
+    private final DataOutputStream out;
+    
+    /** Number of recorded card sessions */
+    private int sessionCount;
+    
+    /** True once the trace can't be written anymore */
+    private boolean broken;
+    
+    /**
+     * Constructor.
+     * @param out the output stream
+     */
+    public TraceRecorder(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+    }
+    
+    /**
+     * Records a detected card, starting its session.
+     * @param readerName the name of the reader
+     * @param card the card
+     * @return the session number of the card, for its exchanges
+     */
+    public synchronized int recordCard(String readerName, MfCard card) {
+        int session = sessionCount++;
+        if (broken) {
+            return session;
+        }
+        try {
+            out.writeByte(CARD_RECORD);
+            out.writeInt(session);
+            out.writeUTF(readerName);
+            out.writeUTF(card.getTagType().name());
+            out.writeByte(card.getId().length);
+            out.write(card.getId());
+            out.writeLong(System.currentTimeMillis());
+        } catch (IOException ioe) {
+            fail(ioe);
+        }
+        return session;
+    }
+    
+    /**
+     * Records a reading.
+     * @param session the session number of the card
+     * @param access the access
+     * @param durationNanos the duration of the exchange (in nanoseconds)
+     * @param blocks the read blocks (null if the reading failed)
+     * @param failure the failure of the reading (null if it succeeded)
+     */
+    public synchronized void recordRead(int session, MfAccess access, long durationNanos, MfBlock[] blocks, IOException failure) {
+        if (broken) {
+            return;
+        }
+        try {
+            writeExchange(READ_RECORD, session, access, access.getBlocksToRead(), durationNanos, failure);
+            if (failure == null) {
+                for (MfBlock block : blocks) {
+                    out.write(block.getData(), 0, CardImage.BLOCK_SIZE);
+                }
+            }
+        } catch (IOException ioe) {
+            fail(ioe);
+        }
+    }
+    
+    /**
+     * Records a writing.
+     * @param session the session number of the card
+     * @param access the access
+     * @param blockCount the number of written blocks
+     * @param durationNanos the duration of the exchange (in nanoseconds)
+     * @param failure the failure of the writing (null if it succeeded)
+     */
+    public synchronized void recordWrite(int session, MfAccess access, int blockCount, long durationNanos, IOException failure) {
+        if (broken) {
+            return;
+        }
+        try {
+            writeExchange(WRITE_RECORD, session, access, blockCount, durationNanos, failure);
+        } catch (IOException ioe) {
+            fail(ioe);
+        }
+    }
+    
+    /**
+     * Records a probe of the card presence.
+     * @param session the session number of the card
+     * @param present true if the card was in the field
+     */
+    public synchronized void recordPresence(int session, boolean present) {
+        if (broken) {
+            return;
+        }
+        try {
+            out.writeByte(PRESENCE_RECORD);
+            out.writeInt(session);
+            out.writeBoolean(present);
+        } catch (IOException ioe) {
+            fail(ioe);
+        }
+    }
+    
+    @Override
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+    
+    /**
+     * Writes the common part of an exchange record.
+     * @param recordType the record type
+     * @param session the session number of the card
+     * @param access the access
+     * @param blockCount the number of exchanged blocks
+     * @param durationNanos the duration of the exchange (in nanoseconds)
+     * @param failure the failure of the exchange (null if it succeeded)
+     */
+    private void writeExchange(int recordType, int session, MfAccess access, int blockCount, long durationNanos, IOException failure)
+            throws IOException {
+        out.writeByte(recordType);
+        out.writeInt(session);
+        out.writeByte(access.getSector());
+        out.writeByte(access.getBlock());
+        out.writeByte(blockCount);
+        out.writeByte((access.getKey() == Key.A) ? 1 : 2);
+        out.write(access.getKeyValue(), 0, 6);
+        out.writeInt((int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMicros(durationNanos)));
+        if (failure == null) {
+            out.writeByte(OUTCOME_OK);
+        } else {
+            Exception cause = MifareUtils.getCardException(failure);
+            if (MifareUtils.isCardAbsent(failure)) {
+                out.writeByte(OUTCOME_ABSENT);
+            } else {
+                out.writeByte((cause != null) ? OUTCOME_FAILED : OUTCOME_DENIED);
+            }
+            String message = ((cause != null) ? cause : failure).getMessage();
+            out.writeUTF((message == null) ? "" : message);
+        }
+    }
+    
+    /**
+     * Stops the recording after a failure of the trace.
+     * @param ioe the failure
+     */
+    private void fail(IOException ioe) {
+        broken = true;
+        LOGGER.warn("Unable to write the trace, recording stopped: {}", ioe.getMessage());
+    }
+}
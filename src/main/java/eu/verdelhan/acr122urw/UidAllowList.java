@@ -0,0 +1,130 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An in-memory allow-list of card UIDs (4 or 7 bytes), held in a primitive hash set.
+ * <p>
+ * The list is built before the scan: lookups are thread-safe as long as no UID is added concurrently.
+ */
+public class UidAllowList implements AllowList {
+
+    /** Maximum length of a UID (in bytes) */
+    public static final int MAX_UID_LENGTH = 7;
+    
+    /** The packed UIDs */
+    private final LongHashSet uids;
+    
+    /**
+     * Constructor.
+     */
+    public UidAllowList() {
+        this(16);
+    }
+    
+    /**
+     * Constructor.
+     * @param expectedSize the expected number of UIDs
+     */
+    public UidAllowList(int expectedSize) {
+        uids = new LongHashSet(expectedSize);
+    }
+    
+    /**
+     * Packs a UID into a long (the length in the highest byte, then the UID bytes).
+     * @param uid a card UID
+     * @return the packed UID, 0 if the UID is empty or longer than {@link #MAX_UID_LENGTH} bytes
+     */
+    public static long pack(byte[] uid) {
+        if (uid == null || uid.length == 0 || uid.length > MAX_UID_LENGTH) {
+            return 0;
+        }
+        long packed = 0;
+        for (byte b : uid) {
+            packed = (packed << 8) | (b & 0xFF);
+        }
+        return ((long) uid.length << 56) | packed;
+    }
+    
+    /**
+     * @param uid a card UID (4 or 7 bytes)
+     * @return true if the UID has been added, false if it was already in the list
+     */
+    public boolean add(byte[] uid) {
+        long packed = pack(uid);
+        if (packed == 0) {
+            throw new IllegalArgumentException("Invalid UID length: " + ((uid == null) ? 0 : uid.length));
+        }
+        return uids.add(packed);
+    }
+    
+    /**
+     * Adds the UIDs of a text file.
+     * <p>
+     * Each line holds a UID as a hex string (e.g. "04A1B2C3"). Empty lines and comments (starting with #) are ignored.
+     * @param file the file
+     * @return the number of added UIDs
+     */
+    public int load(File file) throws IOException {
+        int added = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+                if (!HexUtils.isHexString(line) || line.length() > 2 * MAX_UID_LENGTH) {
+                    throw new IOException("Invalid UID line " + lineNumber + ": " + line);
+                }
+                if (uids.add(pack(HexUtils.hexStringToBytes(line)))) {
+                    added++;
+                }
+            }
+        }
+        return added;
+    }
+    
+    @Override
+    public boolean isAllowed(byte[] uid) {
+        long packed = pack(uid);
+        return packed != 0 && uids.contains(packed);
+    }
+    
+    /**
+     * @return the number of UIDs
+     */
+    public int size() {
+        return uids.size();
+    }
+}
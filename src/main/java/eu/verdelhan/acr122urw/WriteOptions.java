@@ -0,0 +1,98 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+/**
+ * Options for writing a template to cards.
+ */
+public class WriteOptions {
+
+    /** True if the written blocks have to be read back and checked */
+    private boolean verify = true;
+    
+    /** True if the blocks which don't hold the written data have to be written again */
+    private boolean rewriteMismatches = false;
+    
+    /** True if only the blocks which differ from the card contents have to be written */
+    private boolean differential = false;
+    
+    /** True if the sector trailers have to be written in differential mode */
+    private boolean includeTrailers = false;
+
+    /**
+     * @return true if the written blocks have to be read back and checked
+     */
+    public boolean isVerify() {
+        return verify;
+    }
+
+    /**
+     * @param verify true if the written blocks have to be read back and checked (default: true)
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * @return true if the blocks which don't hold the written data have to be written again
+     */
+    public boolean isRewriteMismatches() {
+        return rewriteMismatches;
+    }
+
+    /**
+     * @param rewriteMismatches true if the blocks which don't hold the written data have to be written again, once (default: false)
+     */
+    public void setRewriteMismatches(boolean rewriteMismatches) {
+        this.rewriteMismatches = rewriteMismatches;
+    }
+
+    /**
+     * @return true if only the blocks which differ from the card contents have to be written
+     */
+    public boolean isDifferential() {
+        return differential;
+    }
+
+    /**
+     * @param differential true if only the blocks which differ from the card contents have to be written (default: false)
+     */
+    public void setDifferential(boolean differential) {
+        this.differential = differential;
+    }
+
+    /**
+     * @return true if the sector trailers have to be written in differential mode
+     */
+    public boolean isIncludeTrailers() {
+        return includeTrailers;
+    }
+
+    /**
+     * @param includeTrailers true if the sector trailers have to be written in differential mode (default: false)
+     */
+    public void setIncludeTrailers(boolean includeTrailers) {
+        this.includeTrailers = includeTrailers;
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics about the writing of a card.
+ * <p>
+ * Blocks are numbered as on a Mifare Classic 4K card, whose first sectors share the geometry of the smaller cards.
+ */
+public class WriteStats {
+
+    /** Layout used to number the blocks */
+    private static final CardLayout LAYOUT = CardLayout.CLASSIC_4K;
+    
+    /** Bitmap of the written blocks */
+    private final BitSet writtenBlocks = new BitSet(LAYOUT.getBlockCount());
+    
+    /** Bitmap of the blocks which failed to be written (or verified) */
+    private final BitSet failedBlocks = new BitSet(LAYOUT.getBlockCount());
+    
+    /** Bitmap of the blocks which already held the data to be written */
+    private final BitSet skippedBlocks = new BitSet(LAYOUT.getBlockCount());
+    
+    /** Bitmap of the written blocks which don't hold the data read back (or can't be read back) */
+    private final BitSet mismatchedBlocks = new BitSet(LAYOUT.getBlockCount());
+    
+    /** Bitmap of the mismatched blocks which have been written again */
+    private final BitSet rewrittenBlocks = new BitSet(LAYOUT.getBlockCount());
+    
+    /** True if the written blocks have been verified */
+    private boolean verified;
+    
+    /** The CRC32 of the written data */
+    private long expectedDigest;
+    
+    /** The CRC32 of the data read back */
+    private long actualDigest;
+    
+    /** The writing duration (in nanoseconds) */
+    private long durationNanos;
+    
+    /**
+     * @return the number of written blocks
+     */
+    public int getWrittenCount() {
+        return writtenBlocks.cardinality();
+    }
+    
+    /**
+     * @return the number of blocks which failed to be written (or verified)
+     */
+    public int getFailedCount() {
+        return failedBlocks.cardinality();
+    }
+    
+    /**
+     * @return the number of blocks which already held the data to be written
+     */
+    public int getSkippedCount() {
+        return skippedBlocks.cardinality();
+    }
+    
+    /**
+     * @return the number of blocks which don't hold the written data (or can't be read back)
+     */
+    public int getMismatchedCount() {
+        return mismatchedBlocks.cardinality();
+    }
+    
+    /**
+     * @return the number of mismatched blocks which have been written again
+     */
+    public int getRewrittenCount() {
+        return rewrittenBlocks.cardinality();
+    }
+    
+    /**
+     * @return the bitmap of the written blocks (bit i is set if block i has been written)
+     */
+    public BitSet getWrittenBlocks() {
+        return (BitSet) writtenBlocks.clone();
+    }
+    
+    /**
+     * @return the bitmap of the failed blocks (bit i is set if block i failed to be written or verified)
+     */
+    public BitSet getFailedBlocks() {
+        return (BitSet) failedBlocks.clone();
+    }
+    
+    /**
+     * @return the bitmap of the skipped blocks (bit i is set if block i already held the data to be written)
+     */
+    public BitSet getSkippedBlocks() {
+        return (BitSet) skippedBlocks.clone();
+    }
+    
+    /**
+     * @return the bitmap of the mismatched blocks (bit i is set if block i doesn't hold the written data or can't be read back)
+     */
+    public BitSet getMismatchedBlocks() {
+        return (BitSet) mismatchedBlocks.clone();
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @return true if the block doesn't hold the written data (or can't be read back), false otherwise
+     */
+    public boolean isBlockMismatched(int sectorIndex, int blockIndex) {
+        return mismatchedBlocks.get(LAYOUT.blockNumber(sectorIndex, blockIndex));
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @return true if the block failed to be written (or verified), false otherwise
+     */
+    public boolean isBlockFailed(int sectorIndex, int blockIndex) {
+        return failedBlocks.get(LAYOUT.blockNumber(sectorIndex, blockIndex));
+    }
+    
+    /**
+     * @return true if the written blocks have been verified, false otherwise
+     */
+    public boolean isVerified() {
+        return verified;
+    }
+    
+    /**
+     * @return the CRC32 of the written data (sector trailers: access bits only)
+     */
+    public long getExpectedDigest() {
+        return expectedDigest;
+    }
+    
+    /**
+     * @return the CRC32 of the data read back (equal to the expected one if all the written blocks have been verified)
+     */
+    public long getActualDigest() {
+        return actualDigest;
+    }
+    
+    /**
+     * @return the writing duration (in nanoseconds)
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     */
+    void blockWritten(int sectorIndex, int blockIndex) {
+        int blockNumber = LAYOUT.blockNumber(sectorIndex, blockIndex);
+        writtenBlocks.set(blockNumber);
+        failedBlocks.clear(blockNumber);
+        if (mismatchedBlocks.get(blockNumber)) {
+            mismatchedBlocks.clear(blockNumber);
+            rewrittenBlocks.set(blockNumber);
+        }
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     */
+    void blockFailed(int sectorIndex, int blockIndex) {
+        int blockNumber = LAYOUT.blockNumber(sectorIndex, blockIndex);
+        failedBlocks.set(blockNumber);
+        writtenBlocks.clear(blockNumber);
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     */
+    void blockSkipped(int sectorIndex, int blockIndex) {
+        skippedBlocks.set(LAYOUT.blockNumber(sectorIndex, blockIndex));
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     */
+    void blockMismatched(int sectorIndex, int blockIndex) {
+        blockFailed(sectorIndex, blockIndex);
+        mismatchedBlocks.set(LAYOUT.blockNumber(sectorIndex, blockIndex));
+    }
+    
+    /**
+     * @param expectedDigest the CRC32 of the written data
+     * @param actualDigest the CRC32 of the data read back
+     */
+    void setDigests(long expectedDigest, long actualDigest) {
+        verified = true;
+        this.expectedDigest = expectedDigest;
+        this.actualDigest = actualDigest;
+    }
+    
+    /**
+     * @param durationNanos the writing duration (in nanoseconds)
+     */
+    void setDurationNanos(long durationNanos) {
+        this.durationNanos = durationNanos;
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(getWrittenCount()).append(" block(s) written, ").append(getSkippedCount()).append(" skipped, ")
+                .append(getFailedCount()).append(" failed");
+        if (verified) {
+            sb.append(" (").append(getMismatchedCount()).append(" mismatched, ").append(getRewrittenCount()).append(" rewritten)");
+        }
+        sb.append(" in ").append(TimeUnit.NANOSECONDS.toMillis(durationNanos)).append(" ms");
+        if (verified) {
+            sb.append(String.format(", CRC32 %08X", expectedDigest));
+            if (actualDigest != expectedDigest) {
+                sb.append(String.format(" (read back %08X)", actualDigest));
+            }
+        }
+        return sb.toString();
+    }
+}
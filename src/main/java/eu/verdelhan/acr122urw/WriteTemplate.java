@@ -0,0 +1,190 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A set of blocks to be written to Mifare Classic cards.
+ * <p>
+ * Each block of the template holds its data and the key to be used for writing it.
+ * Blocks are addressed as on a Mifare Classic 4K card, whose first sectors share the
+ * geometry of the smaller cards: the same template can be written to any card.
+ */
+public class WriteTemplate {
+
+    /** Layout used to address the blocks */
+    private static final CardLayout LAYOUT = CardLayout.CLASSIC_4K;
+    
+    /** The data of the blocks */
+    private final byte[] data = new byte[LAYOUT.getSize()];
+    
+    /** The keys of the blocks */
+    private final long[] keys = new long[LAYOUT.getBlockCount()];
+    
+    /** Bitmap of the blocks to be written (bit i is set if block i has to be written) */
+    private final BitSet blocks = new BitSet(LAYOUT.getBlockCount());
+    
+    /**
+     * Loads a template from a text file.
+     * <p>
+     * Each line holds a sector index, a block index, a key and the data to be written
+     * (e.g. "13 2 FF00A1A0B001 FFFFFFFFFFFF00000000060504030201"). Empty lines and comments
+     * (starting with #) are ignored.
+     * @param file the template file
+     * @return the template
+     */
+    public static WriteTemplate load(File file) throws IOException {
+        WriteTemplate template = new WriteTemplate();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length != 4
+                        || !MifareUtils.isValidMifareClassicBlockIndex(fields[0], fields[1])
+                        || !MifareUtils.isValidMifareClassic1KKey(fields[2])
+                        || !HexUtils.isHexString(fields[3])
+                        || fields[3].length() != 2 * CardImage.BLOCK_SIZE) {
+                    throw new IOException("Invalid template line " + lineNumber + ": " + line);
+                }
+                template.setBlock(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+                        KeyStore.parseKey(fields[2]), HexUtils.hexStringToBytes(fields[3]));
+            }
+        }
+        return template;
+    }
+    
+    /**
+     * Loads a template from a binary card image file (320, 1024 or 4096 bytes for a Mini, 1K or 4K card).
+     * <p>
+     * All the data blocks are to be written with the provided key. The manufacturer block
+     * is never written, and the sector trailers only if requested.
+     * @param file the image file
+     * @param key the key to be used for writing
+     * @param includeTrailers true if the sector trailers have to be written
+     * @return the template
+     */
+    public static WriteTemplate loadImage(File file, long key, boolean includeTrailers) throws IOException {
+        byte[] image = Files.readAllBytes(file.toPath());
+        CardLayout imageLayout = CardLayout.forSize(image.length);
+        if (imageLayout == null) {
+            throw new IOException("Invalid image size: " + image.length + " bytes");
+        }
+        WriteTemplate template = new WriteTemplate();
+        for (int sectorIndex = 0; sectorIndex < imageLayout.getSectorCount(); sectorIndex++) {
+            for (int blockIndex = 0; blockIndex < imageLayout.getBlockCount(sectorIndex); blockIndex++) {
+                boolean manufacturerBlock = (sectorIndex == 0 && blockIndex == 0);
+                boolean trailer = imageLayout.isTrailer(sectorIndex, blockIndex);
+                if (!manufacturerBlock && (includeTrailers || !trailer)) {
+                    int offset = imageLayout.blockOffset(sectorIndex, blockIndex);
+                    template.setBlock(sectorIndex, blockIndex, key,
+                            Arrays.copyOfRange(image, offset, offset + CardImage.BLOCK_SIZE));
+                }
+            }
+        }
+        return template;
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @param key the packed key to be used for writing the block
+     * @param blockData the block data (16 bytes)
+     */
+    public void setBlock(int sectorIndex, int blockIndex, long key, byte[] blockData) {
+        if (blockData.length != CardImage.BLOCK_SIZE) {
+            throw new IllegalArgumentException("Invalid block size: " + blockData.length + " bytes");
+        }
+        if (!LAYOUT.isValidBlockIndex(sectorIndex, blockIndex)) {
+            throw new IllegalArgumentException("Invalid block: sector " + sectorIndex + " block " + blockIndex);
+        }
+        int blockNumber = LAYOUT.blockNumber(sectorIndex, blockIndex);
+        System.arraycopy(blockData, 0, data, blockNumber * CardImage.BLOCK_SIZE, CardImage.BLOCK_SIZE);
+        keys[blockNumber] = key;
+        blocks.set(blockNumber);
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @return true if the block has to be written, false otherwise
+     */
+    public boolean isBlockSet(int sectorIndex, int blockIndex) {
+        return LAYOUT.isValidBlockIndex(sectorIndex, blockIndex) && blocks.get(LAYOUT.blockNumber(sectorIndex, blockIndex));
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @return the packed key to be used for writing the block
+     */
+    public long getKey(int sectorIndex, int blockIndex) {
+        return keys[LAYOUT.blockNumber(sectorIndex, blockIndex)];
+    }
+    
+    /**
+     * @param sectorIndex a sector index
+     * @param blockIndex a block index (in the sector)
+     * @return the data of the block
+     */
+    public byte[] getBlock(int sectorIndex, int blockIndex) {
+        int offset = LAYOUT.blockOffset(sectorIndex, blockIndex);
+        return Arrays.copyOfRange(data, offset, offset + CardImage.BLOCK_SIZE);
+    }
+    
+    /**
+     * @return the data of all the blocks (4096 bytes, addressed as on a 4K card; blocks which are not to be written are zeroed)
+     */
+    public byte[] getData() {
+        return data;
+    }
+    
+    /**
+     * @return the bitmap of the blocks to be written (bit i is set if block i has to be written)
+     */
+    public BitSet getBlocks() {
+        return (BitSet) blocks.clone();
+    }
+    
+    /**
+     * @return the number of blocks to be written
+     */
+    public int getBlockCount() {
+        return blocks.cardinality();
+    }
+}
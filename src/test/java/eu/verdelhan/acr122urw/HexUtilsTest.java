@@ -0,0 +1,208 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Round-trip tests of {@link HexUtils}, over random byte arrays.
+ */
+public class HexUtilsTest {
+
+    /** Number of random arrays per test */
+    private static final int ITERATIONS = 1000;
+    
+    /** Fixed seed, for reproducible failures */
+    private final Random random = new Random(0x4143523132324CL);
+    
+    @Test
+    public void roundTrip() {
+        for (int i = 0; i < ITERATIONS; i++) {
+            byte[] bytes = randomBytes();
+            String hex = HexUtils.bytesToHexString(bytes);
+            assertEquals(2 * bytes.length, hex.length());
+            assertEquals(bytes.length > 0, HexUtils.isHexString(hex));
+            assertArrayEquals(bytes, HexUtils.hexStringToBytes(hex));
+            assertArrayEquals(bytes, HexUtils.hexStringToBytes(hex.toLowerCase(Locale.ROOT)));
+        }
+    }
+    
+    @Test
+    public void roundTripWithOffsets() throws IOException {
+        for (int i = 0; i < ITERATIONS; i++) {
+            byte[] bytes = randomBytes();
+            if (bytes.length == 0) {
+                continue;
+            }
+            int offset = random.nextInt(bytes.length);
+            int length = 1 + random.nextInt(bytes.length - offset);
+            String expected = HexUtils.bytesToHexString(Arrays.copyOfRange(bytes, offset, offset + length));
+            
+            // Encoding into a char array at an offset
+            int destOffset = random.nextInt(8);
+            char[] chars = new char[destOffset + 2 * length + 3];
+            Arrays.fill(chars, '#');
+            HexUtils.bytesToHexString(bytes, offset, length, chars, destOffset);
+            assertEquals(expected, new String(chars, destOffset, 2 * length));
+            assertEquals('#', chars[destOffset + 2 * length]);
+            if (destOffset > 0) {
+                assertEquals('#', chars[destOffset - 1]);
+            }
+            
+            // Appending
+            StringBuilder sb = new StringBuilder("x");
+            HexUtils.appendHexString(bytes, offset, length, sb);
+            assertEquals("x" + expected, sb.toString());
+            StringBuilder appendable = new StringBuilder("y");
+            HexUtils.appendHexString(bytes, offset, length, (Appendable) appendable);
+            assertEquals("y" + expected, appendable.toString());
+            
+            // Decoding into a byte array at an offset
+            byte[] decoded = new byte[destOffset + length + 3];
+            Arrays.fill(decoded, (byte) 0x5A);
+            assertEquals(length, HexUtils.hexStringToBytes(expected, decoded, destOffset));
+            assertArrayEquals(Arrays.copyOfRange(bytes, offset, offset + length), Arrays.copyOfRange(decoded, destOffset, destOffset + length));
+            assertEquals(0x5A, decoded[destOffset + length]);
+            if (destOffset > 0) {
+                assertEquals(0x5A, decoded[destOffset - 1]);
+            }
+        }
+    }
+    
+    @Test
+    public void roundTripThroughByteBuffer() {
+        for (int i = 0; i < ITERATIONS; i++) {
+            byte[] bytes = randomBytes();
+            if (bytes.length == 0) {
+                continue;
+            }
+            String hex = HexUtils.bytesToHexString(bytes);
+            int position = random.nextInt(8);
+            ByteBuffer buffer = ByteBuffer.allocate(position + bytes.length + random.nextInt(4));
+            buffer.position(position);
+            assertEquals(bytes.length, HexUtils.hexStringToBytes(hex, buffer));
+            assertEquals(position + bytes.length, buffer.position());
+            byte[] decoded = new byte[bytes.length];
+            buffer.position(position);
+            buffer.get(decoded);
+            assertArrayEquals(bytes, decoded);
+        }
+    }
+    
+    @Test
+    public void emptyString() {
+        assertFalse(HexUtils.isHexString(""));
+        assertArrayEquals(new byte[0], HexUtils.hexStringToBytes(""));
+        assertEquals("", HexUtils.bytesToHexString(new byte[0]));
+        assertEquals(-1, HexUtils.hexStringToBytes("", new byte[1], 0));
+        assertEquals(-1, HexUtils.hexStringToBytes("", ByteBuffer.allocate(1)));
+    }
+    
+    @Test
+    public void oddLength() {
+        for (String s : new String[] { "A", "ABC", "0011223" }) {
+            assertFalse(HexUtils.isHexString(s));
+            assertEquals(-1, HexUtils.hexStringToBytes(s, new byte[4], 0));
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            assertEquals(-1, HexUtils.hexStringToBytes(s, buffer));
+            assertEquals(0, buffer.position());
+            assertInvalid(s);
+        }
+    }
+    
+    @Test
+    public void invalidChars() {
+        for (String s : new String[] { "0G", "G0", "00 1", "zz", "0x12", "1\u00E9", "-1", "\u0660\u0661" }) {
+            assertFalse(HexUtils.isHexString(s));
+            assertEquals(-1, HexUtils.hexStringToBytes(s, new byte[4], 0));
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            buffer.position(1);
+            assertEquals(-1, HexUtils.hexStringToBytes(s, buffer));
+            assertEquals(1, buffer.position());
+            assertInvalid(s);
+        }
+    }
+    
+    @Test
+    public void digits() {
+        for (char c = 0; c < 0x100; c++) {
+            int expected = Character.digit(c, 16);
+            if (c > 0x7F) {
+                // Character.digit also accepts non-ASCII digits
+                expected = -1;
+            }
+            assertEquals("char " + (int) c, expected, HexUtils.digit(c));
+        }
+        assertEquals(-1, HexUtils.digit('\uFF10'));
+    }
+    
+    @Test
+    public void destinationTooSmall() {
+        try {
+            HexUtils.hexStringToBytes("001122", new byte[4], 2);
+            fail("Expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException ioobe) {
+            // Expected
+        }
+        try {
+            HexUtils.hexStringToBytes("001122", ByteBuffer.allocate(2));
+            fail("Expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException ioobe) {
+            // Expected
+        }
+        assertTrue(HexUtils.isHexString("001122"));
+    }
+    
+    /**
+     * @param s a string which is not hexadecimal
+     */
+    private static void assertInvalid(String s) {
+        try {
+            HexUtils.hexStringToBytes(s);
+            fail("Expected IllegalArgumentException for " + s);
+        } catch (IllegalArgumentException iae) {
+            // Expected
+        }
+    }
+    
+    /**
+     * @return a random byte array (0 to 64 bytes)
+     */
+    private byte[] randomBytes() {
+        byte[] bytes = new byte[random.nextInt(65)];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Marc de Verdelhan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package eu.verdelhan.acr122urw;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import javax.smartcardio.CardException;
+import org.junit.Test;
+import org.nfctools.mf.MfAccess;
+import org.nfctools.mf.block.MfBlock;
+import org.nfctools.mf.classic.Key;
+
+/**
+ * Tests of the template writing of {@link MifareUtils}, on a {@link SimulatedCard}.
+ */
+public class MifareUtilsTest {
+
+    private static final byte[] UID = HexUtils.hexStringToBytes("04A1B2C3");
+    
+    private static final byte[] DATA = HexUtils.hexStringToBytes("00112233445566778899AABBCCDDEEFF");
+    
+    /** Trailer changing key A, with the transport access bits */
+    private static final byte[] NEW_TRAILER = HexUtils.hexStringToBytes("A0A1A2A3A4A5FF078069FFFFFFFFFFFF");
+    
+    @Test
+    public void verifyWithChangedKeyA() throws CardException {
+        SimulatedCard card = new SimulatedCard(UID);
+        SimulatedReaderWriter reader = new SimulatedReaderWriter();
+        reader.insertCard(card);
+        
+        WriteStats stats = MifareUtils.writeTemplateToMifareClassicCard(reader, card.getMfCard(), createTemplate(), createOptions());
+        assertEquals(3, stats.getWrittenCount());
+        assertEquals(0, stats.getMismatchedCount());
+        assertEquals(0, stats.getFailedCount());
+        assertTrue(card.authenticate(1, Key.A, HexUtils.hexStringToBytes("A0A1A2A3A4A5")));
+    }
+    
+    @Test
+    public void rewriteWithChangedKeyA() throws CardException {
+        final SimulatedCard card = new SimulatedCard(UID);
+        SimulatedReaderWriter reader = new SimulatedReaderWriter() {
+            
+            private boolean corrupted;
+            
+            @Override
+            public void writeBlock(MfAccess access, MfBlock... mfBlock) throws IOException {
+                super.writeBlock(access, mfBlock);
+                if (!corrupted && access.getBlock() + mfBlock.length == 4) {
+                    // Block 2 lost once the trailer is written
+                    corrupted = true;
+                    card.setBlock(1, 2, new byte[16]);
+                }
+            }
+        };
+        reader.insertCard(card);
+        
+        WriteStats stats = MifareUtils.writeTemplateToMifareClassicCard(reader, card.getMfCard(), createTemplate(), createOptions());
+        assertEquals(1, stats.getRewrittenCount());
+        assertEquals(0, stats.getFailedCount());
+        assertArrayEquals(DATA, card.getBlock(1, 2));
+    }
+    
+    /**
+     * @return a template writing blocks 0 and 2 of sector 1, then its trailer with a new key A
+     */
+    private static WriteTemplate createTemplate() {
+        long key = KeyStore.toKey(SimulatedCard.DEFAULT_KEY);
+        WriteTemplate template = new WriteTemplate();
+        template.setBlock(1, 0, key, DATA);
+        template.setBlock(1, 2, key, DATA);
+        template.setBlock(1, 3, key, NEW_TRAILER);
+        return template;
+    }
+    
+    private static WriteOptions createOptions() {
+        WriteOptions options = new WriteOptions();
+        options.setVerify(true);
+        options.setRewriteMismatches(true);
+        return options;
+    }
+}